@@ -0,0 +1,199 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.loadtest;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.apache.catalina.Context;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.jasper.servlet.JasperInitializer;
+import org.couchbase.mock.CouchbaseMock;
+import org.springframework.session.data.couchbase.CouchbaseSessionMetrics;
+import org.springframework.session.data.couchbase.SessionMetricsHistogram;
+import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+import sample.Initializer;
+import sample.SecurityInitializer;
+import sample.SessionServlet;
+
+import javax.servlet.ServletContainerInitializer;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the security sample in an embedded Tomcat against an embedded {@link CouchbaseMock} and drives it with
+ * concurrent {@link VirtualUser}s.
+ *
+ * <p>
+ * The settings are read from system properties:
+ * </p>
+ * <ul>
+ *     <li>loadTest.users - number of concurrent virtual users (default 50)</li>
+ *     <li>loadTest.durationSeconds - duration of the measurement (default 30)</li>
+ *     <li>loadTest.warmupSeconds - duration of the warm up, not measured (default 10)</li>
+ *     <li>loadTest.thinkTimeMillis - pause of a virtual user between two requests (default 0)</li>
+ *     <li>loadTest.sessionSize - size in characters of the attribute written to the session (default 1024)</li>
+ *     <li>loadTest.port - HTTP port of the embedded Tomcat (default 8080)</li>
+ *     <li>loadTest.output - JSON file the results are written to (default build/load-test-result.json)</li>
+ * </ul>
+ *
+ * <p>
+ * The KV operations are counted by the {@link CouchbaseSessionMetrics} of the sample, so the numbers per HTTP request
+ * measure the overhead of the session layer only.
+ * </p>
+ *
+ * @author Laurent Doguin
+ */
+public class LoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int users = Integer.getInteger("loadTest.users", 50);
+		int durationSeconds = Integer.getInteger("loadTest.durationSeconds", 30);
+		int warmupSeconds = Integer.getInteger("loadTest.warmupSeconds", 10);
+		long thinkTimeMillis = Long.getLong("loadTest.thinkTimeMillis", 0L);
+		int sessionSize = Integer.getInteger("loadTest.sessionSize", 1024);
+		int port = Integer.getInteger("loadTest.port", 8080);
+		String output = System.getProperty("loadTest.output", "build/load-test-result.json");
+		String webapp = System.getProperty("loadTest.webapp", "src/main/webapp");
+
+		CouchbaseMock mock = new CouchbaseMock("127.0.0.1", 8091, 1, 11210, 1, null, 1);
+		mock.start();
+		mock.waitForStartup();
+		// the sample connects with the default environment, which reads its overrides from system properties
+		int carrierPort = mock.getBuckets().get("default").activeServers().get(0).getPort();
+		System.setProperty("com.couchbase.bootstrapCarrierDirectPort", String.valueOf(carrierPort));
+
+		Tomcat tomcat = new Tomcat();
+		tomcat.setPort(port);
+		tomcat.setBaseDir(new File("build/load-test-tomcat").getAbsolutePath());
+		// the sample classes are on the class path rather than in WEB-INF/classes, so they are registered explicitly
+		// instead of relying on annotation scanning
+		Context context = tomcat.addContext("", new File(webapp).getAbsolutePath());
+		Tomcat.initWebappDefaults(context);
+		context.addServletContainerInitializer(new JasperInitializer(), null);
+		context.addServletContainerInitializer(new SampleInitializer(), null);
+		Tomcat.addServlet(context, "sessionServlet", new SessionServlet());
+		context.addServletMapping("/session", "sessionServlet");
+		tomcat.start();
+
+		try {
+			String baseUrl = "http://127.0.0.1:" + port;
+			char[] value = new char[sessionSize];
+			Arrays.fill(value, 'x');
+			String attributeValue = new String(value);
+
+			run(baseUrl, attributeValue, users, warmupSeconds, thinkTimeMillis);
+
+			WebApplicationContext applicationContext = WebApplicationContextUtils
+					.getRequiredWebApplicationContext(context.getServletContext());
+			CouchbaseSessionMetrics metrics = applicationContext.getBean(CouchbaseSessionMetrics.class);
+			metrics.reset();
+
+			SessionMetricsHistogram latencies = new SessionMetricsHistogram();
+			AtomicLong requests = new AtomicLong();
+			AtomicLong errors = new AtomicLong();
+			long start = System.nanoTime();
+			run(baseUrl, attributeValue, users, durationSeconds, thinkTimeMillis, latencies, requests, errors);
+			double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+			long httpRequests = Math.max(1, requests.get());
+			JsonObject result = JsonObject.create()
+					.put("users", users)
+					.put("durationSeconds", durationSeconds)
+					.put("thinkTimeMillis", thinkTimeMillis)
+					.put("sessionSize", sessionSize)
+					.put("requests", requests.get())
+					.put("errors", errors.get())
+					.put("throughput", requests.get() / elapsedSeconds)
+					.put("latencyMicros", JsonObject.create()
+							.put("mean", latencies.getMean())
+							.put("p50", latencies.getValueAtPercentile(50))
+							.put("p99", latencies.getValueAtPercentile(99))
+							.put("p999", latencies.getValueAtPercentile(99.9))
+							.put("max", latencies.getMax()))
+					.put("kvOperationsPerRequest", JsonObject.create()
+							.put("get", (double) metrics.getLoadCount() / httpRequests)
+							.put("upsert", (double) metrics.getSaveCount() / httpRequests)
+							.put("remove", (double) metrics.getDeleteCount() / httpRequests)
+							.put("total", (double) (metrics.getLoadCount() + metrics.getSaveCount()
+									+ metrics.getDeleteCount()) / httpRequests))
+					.put("sessionLatencyMicros", JsonObject.create()
+							.put("getP99", metrics.getLoadLatencyP99())
+							.put("saveP99", metrics.getSaveLatencyP99()))
+					.put("documentSizeP50", metrics.getDocumentSizeP50());
+
+			File outputFile = new File(output);
+			if (outputFile.getParentFile() != null) {
+				outputFile.getParentFile().mkdirs();
+			}
+			OutputStream out = new FileOutputStream(outputFile);
+			try {
+				out.write(result.toString().getBytes("UTF-8"));
+			}
+			finally {
+				out.close();
+			}
+			System.out.println(result);
+		}
+		finally {
+			tomcat.stop();
+			tomcat.destroy();
+			mock.stop();
+		}
+	}
+
+	/**
+	 * Does what {@code SpringServletContainerInitializer} would do with the sample initializers.
+	 */
+	static class SampleInitializer implements ServletContainerInitializer {
+
+		public void onStartup(Set<Class<?>> types, ServletContext servletContext) throws ServletException {
+			// same order as the @Order of the initializers, so springSessionRepositoryFilter wraps the security chain
+			new Initializer().onStartup(servletContext);
+			new SecurityInitializer().onStartup(servletContext);
+		}
+	}
+
+	private static void run(String baseUrl, String attributeValue, int users, int seconds, long thinkTimeMillis)
+			throws InterruptedException {
+		run(baseUrl, attributeValue, users, seconds, thinkTimeMillis, new SessionMetricsHistogram(), new AtomicLong(),
+				new AtomicLong());
+	}
+
+	private static void run(String baseUrl, String attributeValue, int users, int seconds, long thinkTimeMillis,
+			SessionMetricsHistogram latencies, AtomicLong requests, AtomicLong errors) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		List<Thread> threads = new ArrayList<Thread>(users);
+		for (int i = 0; i < users; i++) {
+			Thread thread = new Thread(new VirtualUser(baseUrl, attributeValue, thinkTimeMillis, deadline, latencies,
+					requests, errors), "virtual-user-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.loadtest;
+
+import org.springframework.session.data.couchbase.SessionMetricsHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A simulated browser: logs in once, then keeps loading the home page and writing a session attribute through
+ * {@code SessionServlet}, pausing for the think time between two requests.
+ *
+ * @author Laurent Doguin
+ */
+class VirtualUser implements Runnable {
+
+	private static final Pattern CSRF_TOKEN = Pattern.compile("name=\"_csrf\"[^>]*value=\"([^\"]+)\"");
+
+	private final String baseUrl;
+
+	private final String attributeValue;
+
+	private final long thinkTimeMillis;
+
+	private final long deadlineNanos;
+
+	private final SessionMetricsHistogram latencies;
+
+	private final AtomicLong requests;
+
+	private final AtomicLong errors;
+
+	private String cookie;
+
+	private String csrfToken;
+
+	VirtualUser(String baseUrl, String attributeValue, long thinkTimeMillis, long deadlineNanos,
+			SessionMetricsHistogram latencies, AtomicLong requests, AtomicLong errors) {
+		this.baseUrl = baseUrl;
+		this.attributeValue = attributeValue;
+		this.thinkTimeMillis = thinkTimeMillis;
+		this.deadlineNanos = deadlineNanos;
+		this.latencies = latencies;
+		this.requests = requests;
+		this.errors = errors;
+	}
+
+	public void run() {
+		try {
+			csrfToken = token(request("GET", "/login", null));
+			request("POST", "/login", "username=user&password=password&_csrf=" + csrfToken);
+			int iteration = 0;
+			while (System.nanoTime() < deadlineNanos) {
+				if (iteration++ % 2 == 0) {
+					csrfToken = token(request("GET", "/", null));
+				}
+				else {
+					request("POST", "/session", "attributeName=loadTest&attributeValue="
+							+ URLEncoder.encode(attributeValue, "UTF-8") + "&_csrf=" + csrfToken);
+				}
+				if (thinkTimeMillis > 0) {
+					Thread.sleep(thinkTimeMillis);
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e) {
+			errors.incrementAndGet();
+		}
+	}
+
+	private String request(String method, String path, String form) throws IOException {
+		long start = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		try {
+			connection.setInstanceFollowRedirects(false);
+			connection.setRequestMethod(method);
+			if (cookie != null) {
+				connection.setRequestProperty("Cookie", cookie);
+			}
+			if (form != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+				OutputStream out = connection.getOutputStream();
+				out.write(form.getBytes("UTF-8"));
+				out.close();
+			}
+			int status = connection.getResponseCode();
+			List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+			if (setCookies != null) {
+				for (String setCookie : setCookies) {
+					if (setCookie.startsWith("SESSION=")) {
+						cookie = setCookie.substring(0, setCookie.indexOf(';') < 0 ? setCookie.length() : setCookie.indexOf(';'));
+					}
+				}
+			}
+			String body = read(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+			if (status >= 400) {
+				errors.incrementAndGet();
+			}
+			return body;
+		}
+		finally {
+			connection.disconnect();
+			latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+			requests.incrementAndGet();
+		}
+	}
+
+	private static String token(String page) {
+		Matcher matcher = CSRF_TOKEN.matcher(page);
+		return matcher.find() ? matcher.group(1) : "";
+	}
+
+	private static String read(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			return body.toString("UTF-8");
+		}
+		finally {
+			in.close();
+		}
+	}
+}
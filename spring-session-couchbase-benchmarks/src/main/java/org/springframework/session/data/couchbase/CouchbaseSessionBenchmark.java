@@ -0,0 +1,109 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.JsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the in-memory work done by {@link CouchbaseSession} on every request.
+ *
+ * <p>
+ * The attribute values are lists of 32 characters strings: the small one is about the size of a user id and a couple of
+ * flags, the large one about the size of a security context with many authorities.
+ * </p>
+ *
+ * @author Laurent Doguin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CouchbaseSessionBenchmark {
+
+    private static final String ATTRIBUTE_NAME = "benchmarkAttribute";
+
+    @Param({"4", "1024"})
+    public int valueSize;
+
+    private ArrayList<String> value;
+
+    private String serializedValue;
+
+    private CouchbaseSession session;
+
+    private JsonDocument document;
+
+    @Setup
+    public void setup() {
+        value = new ArrayList<String>(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            value.add(String.format("%032d", i));
+        }
+        session = new CouchbaseSession();
+        session.setAttribute(ATTRIBUTE_NAME, value);
+        serializedValue = session.objectToString(value);
+        document = JsonDocument.create(session.getId(), session.getMaxInactiveIntervalInSeconds(),
+                session.getSessionAttrs());
+    }
+
+    @Benchmark
+    public CouchbaseSession newSession() {
+        return new CouchbaseSession();
+    }
+
+    @Benchmark
+    public CouchbaseSession setAttribute() {
+        session.setAttribute(ATTRIBUTE_NAME, value);
+        return session;
+    }
+
+    @Benchmark
+    public Object getAttribute() {
+        return session.getAttribute(ATTRIBUTE_NAME);
+    }
+
+    @Benchmark
+    public String objectToString() {
+        return session.objectToString(value);
+    }
+
+    @Benchmark
+    public Object stringToObject() throws IOException, ClassNotFoundException {
+        return session.stringToObject(serializedValue);
+    }
+
+    @Benchmark
+    public CouchbaseSession fromJsonDocument() {
+        return new CouchbaseSession(document);
+    }
+}
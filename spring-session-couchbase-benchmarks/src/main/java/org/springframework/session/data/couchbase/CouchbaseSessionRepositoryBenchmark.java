@@ -0,0 +1,97 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.CouchbaseCluster;
+import com.couchbase.client.java.env.CouchbaseEnvironment;
+import com.couchbase.client.java.env.DefaultCouchbaseEnvironment;
+import org.couchbase.mock.CouchbaseMock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of {@link CouchbaseSessionRepository} against an in-process {@link CouchbaseMock}. The numbers include
+ * the client and the loopback network, they are meant to compare changes of the repository, not to size a cluster.
+ *
+ * @author Laurent Doguin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CouchbaseSessionRepositoryBenchmark {
+
+    @Param({"4", "1024"})
+    public int valueSize;
+
+    private CouchbaseMock mock;
+
+    private CouchbaseCluster cluster;
+
+    private CouchbaseSessionRepository repository;
+
+    private CouchbaseSession session;
+
+    @Setup
+    public void setup() throws Exception {
+        mock = new CouchbaseMock("127.0.0.1", 8091, 1, 11210, 1, null, 1);
+        mock.start();
+        mock.waitForStartup();
+        int port = mock.getBuckets().get("default").activeServers().get(0).getPort();
+        CouchbaseEnvironment ce = DefaultCouchbaseEnvironment.builder().bootstrapCarrierDirectPort(port).build();
+        cluster = CouchbaseCluster.create(ce, "127.0.0.1");
+        repository = new CouchbaseSessionRepository(cluster.openBucket("default").async());
+
+        ArrayList<String> value = new ArrayList<String>(valueSize);
+        for (int i = 0; i < valueSize; i++) {
+            value.add(String.format("%032d", i));
+        }
+        session = repository.createSession();
+        session.setAttribute("benchmarkAttribute", value);
+        repository.save(session);
+    }
+
+    @TearDown
+    public void tearDown() {
+        cluster.disconnect();
+        mock.stop();
+    }
+
+    @Benchmark
+    public CouchbaseSession getSession() {
+        return repository.getSession(session.getId());
+    }
+
+    @Benchmark
+    public void save() {
+        repository.save(session);
+    }
+}
@@ -46,7 +46,7 @@ public class CouchbaseReader {
     private final String bucket;
     private final String streamName;
     private final String password;
-
+    private CouchbaseReaderMetrics metrics;
 
     private static final EventTranslatorOneArg<DCPEvent, CouchbaseMessage> TRANSLATOR =
             new EventTranslatorOneArg<DCPEvent, CouchbaseMessage>() {
@@ -73,6 +73,16 @@ public class CouchbaseReader {
         this.streamName = "CouchbaseKafka(" + this.hashCode() + ")";
     }
 
+    /**
+     * @param metrics where to record the published and dropped events, may be null.
+     */
+    public void setMetrics(final CouchbaseReaderMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.setRingBuffer(dcpRingBuffer);
+        }
+    }
+
     /**
      * Performs connection with 2 seconds timeout.
      */
@@ -87,6 +97,11 @@ public class CouchbaseReader {
      * @param timeUnit the unit for the timeout.
      */
     public void connect(final long timeout, final TimeUnit timeUnit) {
+        connect(core, nodes, bucket, password, timeout, timeUnit);
+    }
+
+    static void connect(final ClusterFacade core, final List<String> nodes, final String bucket,
+                        final String password, final long timeout, final TimeUnit timeUnit) {
         core.send(new SeedNodesRequest(nodes))
                 .timeout(timeout, timeUnit)
                 .toBlocking()
@@ -109,6 +124,10 @@ public class CouchbaseReader {
      * @param timeUnit the unit for the timeout.
      */
     public void disconnect(final long timeout, final TimeUnit timeUnit) {
+        disconnect(core, timeout, timeUnit);
+    }
+
+    static void disconnect(final ClusterFacade core, final long timeout, final TimeUnit timeUnit) {
         CouchbaseResponse dr = core.send(new DisconnectRequest())
                 .timeout(timeout, timeUnit)
                 .toBlocking()
@@ -123,32 +142,47 @@ public class CouchbaseReader {
      * Executes worker reading loop, which relays events from Couchbase to Kafka.
      */
     public void run() {
-        core.send(new OpenConnectionRequest(streamName, bucket))
+        openStreams(core, bucket, streamName)
+//                .toBlocking()
+                .forEach(new Action1<DCPRequest>() {
+                    @Override
+                    public void call(final DCPRequest dcpRequest) {
+                        boolean published = dcpRingBuffer.tryPublishEvent(TRANSLATOR, dcpRequest);
+                        if (metrics != null) {
+                            metrics.onPublished(dcpRequest, published);
+                        }
+                    }
+                });
+
+    }
+
+
+    /**
+     * Opens a DCP connection and streams every partition of the bucket from its first sequence number.
+     *
+     * @param core the connected core.
+     * @param bucket the name of the bucket.
+     * @param streamName the name of the DCP connection.
+     * @return the events of all the partitions.
+     */
+    static Observable<DCPRequest> openStreams(final ClusterFacade core, final String bucket, final String streamName) {
+        return core.send(new OpenConnectionRequest(streamName, bucket))
                 .toList()
                 .flatMap(new Func1<List<CouchbaseResponse>, Observable<Integer>>() {
                     @Override
                     public Observable<Integer> call(final List<CouchbaseResponse> couchbaseResponses) {
-                        return partitionSize();
+                        return partitionSize(core, bucket);
                     }
                 })
                 .flatMap(new Func1<Integer, Observable<DCPRequest>>() {
                     @Override
                     public Observable<DCPRequest> call(final Integer numberOfPartitions) {
-                        return requestStreams(numberOfPartitions);
-                    }
-                })
-//                .toBlocking()
-                .forEach(new Action1<DCPRequest>() {
-                    @Override
-                    public void call(final DCPRequest dcpRequest) {
-                        dcpRingBuffer.tryPublishEvent(TRANSLATOR, dcpRequest);
+                        return requestStreams(core, bucket, numberOfPartitions);
                     }
                 });
-
     }
 
-
-    private Observable<Integer> partitionSize() {
+    private static Observable<Integer> partitionSize(final ClusterFacade core, final String bucket) {
         return core
                 .<GetClusterConfigResponse>send(new GetClusterConfigRequest())
                 .map(new Func1<GetClusterConfigResponse, Integer>() {
@@ -161,7 +195,8 @@ public class CouchbaseReader {
                 });
     }
 
-    private Observable<DCPRequest> requestStreams(final int numberOfPartitions) {
+    private static Observable<DCPRequest> requestStreams(final ClusterFacade core, final String bucket,
+                                                         final int numberOfPartitions) {
         return Observable.merge(
                 Observable.range(0, numberOfPartitions)
                         .flatMap(new Func1<Integer, Observable<StreamRequestResponse>>() {
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+* the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.util.Assert;
+
+/**
+ * A Spring Boot {@link org.springframework.boot.actuate.health.HealthIndicator} reporting the DCP consumer as down
+ * when it lags too much behind the server or when its ring buffer is almost full.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseReaderHealthIndicator extends AbstractHealthIndicator {
+
+    /**
+     * Default {@link #setMaxLag(long)}.
+     */
+    public static final long DEFAULT_MAX_LAG = 10000;
+
+    /**
+     * Default {@link #setMaxRingBufferOccupancy(double)}.
+     */
+    public static final double DEFAULT_MAX_RING_BUFFER_OCCUPANCY = 0.9;
+
+    private final CouchbaseReaderMetrics metrics;
+
+    private long maxLag = DEFAULT_MAX_LAG;
+
+    private double maxRingBufferOccupancy = DEFAULT_MAX_RING_BUFFER_OCCUPANCY;
+
+    /**
+     * @param metrics the metrics of the monitored reader. Cannot be null.
+     */
+    public CouchbaseReaderHealthIndicator(CouchbaseReaderMetrics metrics) {
+        Assert.notNull(metrics, "metrics cannot be null");
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param maxLag the highest acceptable lag of a single partition, in sequence numbers.
+     */
+    public void setMaxLag(long maxLag) {
+        this.maxLag = maxLag;
+    }
+
+    /**
+     * @param maxRingBufferOccupancy the highest acceptable ratio of used ring buffer slots, between 0 and 1.
+     */
+    public void setMaxRingBufferOccupancy(double maxRingBufferOccupancy) {
+        this.maxRingBufferOccupancy = maxRingBufferOccupancy;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        long lag = metrics.getMaxLag();
+        long occupancy = metrics.getRingBufferOccupancy();
+        int size = metrics.getRingBufferSize();
+        boolean healthy = lag <= maxLag && (size == 0 || (double) occupancy / size <= maxRingBufferOccupancy);
+        (healthy ? builder.up() : builder.down())
+                .withDetail("maxLag", lag)
+                .withDetail("totalLag", metrics.getTotalLag())
+                .withDetail("ringBufferOccupancy", occupancy)
+                .withDetail("ringBufferRemainingCapacity", metrics.getRingBufferRemainingCapacity())
+                .withDetail("eventsPerSecond", metrics.getEventsPerSecond())
+                .withDetail("dropped", metrics.getDroppedCount())
+                .withDetail("filtered", metrics.getFilteredCount());
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+* the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.core.message.CouchbaseMessage;
+import com.couchbase.client.core.message.dcp.DCPRequest;
+import com.couchbase.client.core.message.dcp.MutationMessage;
+import com.couchbase.client.core.message.dcp.RemoveMessage;
+import com.couchbase.client.core.message.dcp.SnapshotMarkerMessage;
+import com.couchbase.client.deps.com.lmax.disruptor.RingBuffer;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tells whether the DCP consumer keeps up with the server.
+ *
+ * <p>
+ * The server announces the sequence numbers of every partition through snapshot markers: the end of the last marker
+ * received by {@link CouchbaseReader} is the high sequence number known for the partition. The mutations of the
+ * client version in use do not carry their own sequence number, so the processed sequence number is estimated on the
+ * consumer side from the last consumed marker plus the events consumed since. The difference between both is the lag
+ * of the partition. Events that could not be published because the ring buffer was full are counted as dropped.
+ * </p>
+ *
+ * <p>
+ * The server deduplicates the mutations of a snapshot, so a snapshot of often rewritten session documents carries
+ * fewer events than its range of sequence numbers. A partition is therefore considered caught up to the end of its
+ * snapshot once the next marker is consumed, or once none of its events is waiting in the ring buffer and none was
+ * received for {@link #setIdleMillis(long)}.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+@ManagedResource(objectName = "org.springframework.session:type=CouchbaseReaderMetrics",
+        description = "Spring Session Couchbase DCP reader metrics")
+public class CouchbaseReaderMetrics {
+
+    /**
+     * Number of partitions of a Couchbase bucket.
+     */
+    public static final int MAX_PARTITIONS = 1024;
+
+    /**
+     * Default {@link #setIdleMillis(long)}.
+     */
+    public static final long DEFAULT_IDLE_MILLIS = 1000;
+
+    private static final long RATE_WINDOW_MILLIS = 1000;
+
+    private final AtomicLongArray highSeqnos = new AtomicLongArray(MAX_PARTITIONS);
+
+    private final AtomicLongArray processedSeqnos = new AtomicLongArray(MAX_PARTITIONS);
+
+    private final AtomicLongArray snapshotEnds = new AtomicLongArray(MAX_PARTITIONS);
+
+    private final AtomicLongArray pendingEvents = new AtomicLongArray(MAX_PARTITIONS);
+
+    private final AtomicLongArray lastPublished = new AtomicLongArray(MAX_PARTITIONS);
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final AtomicLong filtered = new AtomicLong();
+
+    private final AtomicLong destroyedEvents = new AtomicLong();
+
+    private RingBuffer<DCPEvent> ringBuffer;
+
+    private long rateWindowStart = System.currentTimeMillis();
+
+    private long rateWindowCount;
+
+    private volatile double eventsPerSecond;
+
+    private volatile long idleMillis = DEFAULT_IDLE_MILLIS;
+
+    /**
+     * @param ringBuffer the ring buffer the events go through, to report its occupancy.
+     */
+    public void setRingBuffer(RingBuffer<DCPEvent> ringBuffer) {
+        this.ringBuffer = ringBuffer;
+    }
+
+    /**
+     * @param idleMillis how long a partition must have received no event before the snapshot it was sent last is
+     * considered fully processed, once its events left the ring buffer.
+     */
+    public void setIdleMillis(long idleMillis) {
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Called by the producer for each event received from the server.
+     *
+     * @param request the event.
+     * @param accepted false if the ring buffer was full and the event was dropped.
+     */
+    void onPublished(DCPRequest request, boolean accepted) {
+        int partition = partition(request);
+        lastPublished.set(partition, System.currentTimeMillis());
+        if (accepted) {
+            pendingEvents.incrementAndGet(partition);
+        }
+        if (request instanceof SnapshotMarkerMessage) {
+            SnapshotMarkerMessage marker = (SnapshotMarkerMessage) request;
+            long high = highSeqnos.get(partition);
+            while (marker.endSequenceNumber() > high
+                    && !highSeqnos.compareAndSet(partition, high, marker.endSequenceNumber())) {
+                high = highSeqnos.get(partition);
+            }
+        }
+        if (accepted) {
+            published.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Called by the consumer for each event taken off the ring buffer.
+     *
+     * @param message the event.
+     * @param passed true if the event resulted in a {@link org.springframework.session.events.SessionDestroyedEvent}.
+     */
+    void onConsumed(CouchbaseMessage message, boolean passed) {
+        consumed.incrementAndGet();
+        if (passed) {
+            destroyedEvents.incrementAndGet();
+        } else {
+            filtered.incrementAndGet();
+        }
+        if (message instanceof DCPRequest) {
+            pendingEvents.decrementAndGet(partition((DCPRequest) message));
+        }
+        if (message instanceof SnapshotMarkerMessage) {
+            SnapshotMarkerMessage marker = (SnapshotMarkerMessage) message;
+            int partition = partition((DCPRequest) message);
+            processedSeqnos.set(partition, Math.max(0, marker.startSequenceNumber() - 1));
+            snapshotEnds.set(partition, marker.endSequenceNumber());
+        } else if (message instanceof MutationMessage || message instanceof RemoveMessage) {
+            int partition = partition((DCPRequest) message);
+            long processed = processedSeqnos.get(partition);
+            if (processed < snapshotEnds.get(partition)) {
+                processedSeqnos.set(partition, processed + 1);
+            }
+        }
+        updateRate();
+    }
+
+    private void updateRate() {
+        rateWindowCount++;
+        long now = System.currentTimeMillis();
+        long elapsed = now - rateWindowStart;
+        if (elapsed >= RATE_WINDOW_MILLIS) {
+            eventsPerSecond = rateWindowCount * 1000.0 / elapsed;
+            rateWindowStart = now;
+            rateWindowCount = 0;
+        }
+    }
+
+    /**
+     * @return the high sequence number known for each partition that received a snapshot marker.
+     */
+    public Map<Integer, Long> getHighSeqnos() {
+        Map<Integer, Long> seqnos = new TreeMap<Integer, Long>();
+        for (int partition = 0; partition < MAX_PARTITIONS; partition++) {
+            long high = highSeqnos.get(partition);
+            if (high > 0) {
+                seqnos.put(partition, high);
+            }
+        }
+        return seqnos;
+    }
+
+    /**
+     * @return the estimated last processed sequence number of each partition that received a snapshot marker.
+     */
+    public Map<Integer, Long> getProcessedSeqnos() {
+        Map<Integer, Long> seqnos = new TreeMap<Integer, Long>();
+        long now = System.currentTimeMillis();
+        for (int partition = 0; partition < MAX_PARTITIONS; partition++) {
+            if (highSeqnos.get(partition) > 0) {
+                seqnos.put(partition, processed(partition, now));
+            }
+        }
+        return seqnos;
+    }
+
+    /**
+     * @return the lag of each partition that has one, in number of sequence numbers.
+     */
+    public Map<Integer, Long> getPartitionLags() {
+        Map<Integer, Long> lags = new TreeMap<Integer, Long>();
+        long now = System.currentTimeMillis();
+        for (int partition = 0; partition < MAX_PARTITIONS; partition++) {
+            long lag = lag(partition, now);
+            if (lag > 0) {
+                lags.put(partition, lag);
+            }
+        }
+        return lags;
+    }
+
+    @ManagedAttribute(description = "Highest lag among the partitions, in sequence numbers")
+    public long getMaxLag() {
+        long max = 0;
+        long now = System.currentTimeMillis();
+        for (int partition = 0; partition < MAX_PARTITIONS; partition++) {
+            max = Math.max(max, lag(partition, now));
+        }
+        return max;
+    }
+
+    @ManagedAttribute(description = "Sum of the lags of all the partitions, in sequence numbers")
+    public long getTotalLag() {
+        long total = 0;
+        long now = System.currentTimeMillis();
+        for (int partition = 0; partition < MAX_PARTITIONS; partition++) {
+            total += lag(partition, now);
+        }
+        return total;
+    }
+
+    @ManagedAttribute(description = "Events waiting in the ring buffer")
+    public long getRingBufferOccupancy() {
+        return ringBuffer == null ? 0 : ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+    }
+
+    @ManagedAttribute(description = "Free slots in the ring buffer")
+    public long getRingBufferRemainingCapacity() {
+        return ringBuffer == null ? 0 : ringBuffer.remainingCapacity();
+    }
+
+    @ManagedAttribute(description = "Size of the ring buffer")
+    public int getRingBufferSize() {
+        return ringBuffer == null ? 0 : ringBuffer.getBufferSize();
+    }
+
+    @ManagedAttribute(description = "Events consumed per second over the last second")
+    public double getEventsPerSecond() {
+        if (System.currentTimeMillis() - rateWindowStart > 2 * RATE_WINDOW_MILLIS) {
+            return 0;
+        }
+        return eventsPerSecond;
+    }
+
+    @ManagedAttribute(description = "Events published into the ring buffer")
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    @ManagedAttribute(description = "Events dropped because the ring buffer was full")
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @ManagedAttribute(description = "Events consumed from the ring buffer")
+    public long getConsumedCount() {
+        return consumed.get();
+    }
+
+    @ManagedAttribute(description = "Consumed events that did not concern a session")
+    public long getFilteredCount() {
+        return filtered.get();
+    }
+
+    @ManagedAttribute(description = "SessionDestroyedEvents published")
+    public long getSessionDestroyedCount() {
+        return destroyedEvents.get();
+    }
+
+    /**
+     * Clears the counters. Sequence numbers are kept.
+     */
+    @ManagedOperation(description = "Clears the counters")
+    public void reset() {
+        published.set(0);
+        dropped.set(0);
+        consumed.set(0);
+        filtered.set(0);
+        destroyedEvents.set(0);
+    }
+
+    private long lag(int partition, long now) {
+        return Math.max(0, highSeqnos.get(partition) - processed(partition, now));
+    }
+
+    /**
+     * @return the estimated processed sequence number, the end of the current snapshot if the partition is idle.
+     */
+    private long processed(int partition, long now) {
+        long processed = processedSeqnos.get(partition);
+        if (pendingEvents.get(partition) <= 0 && now - lastPublished.get(partition) >= idleMillis) {
+            // whatever the server deduplicated, nothing else of this snapshot is coming
+            return Math.max(processed, snapshotEnds.get(partition));
+        }
+        return processed;
+    }
+
+    private static int partition(DCPRequest request) {
+        return request.partition() & (MAX_PARTITIONS - 1);
+    }
+}
@@ -34,6 +34,8 @@ public class CouchbaseSessionDestroyedListener implements EventHandler<DCPEvent>
 
     private final ApplicationEventPublisher eventPublisher;
 
+    private CouchbaseReaderMetrics metrics;
+
     /**
      * @param eventPublisher the {@link ApplicationEventPublisher} to use. Cannot be null.
      */
@@ -42,12 +44,23 @@ public class CouchbaseSessionDestroyedListener implements EventHandler<DCPEvent>
         this.eventPublisher = eventPublisher;
     }
 
+    /**
+     * @param metrics where to record the consumed events, may be null.
+     */
+    public void setMetrics(CouchbaseReaderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * Handles {@link DCPEvent}s that come into the response RingBuffer.
      */
     @Override
     public void onEvent(final DCPEvent event, final long sequence, final boolean endOfBatch) throws Exception {
-        if (pass(event)) {
+        boolean passed = pass(event);
+        if (metrics != null) {
+            metrics.onConsumed(event.message(), passed);
+        }
+        if (passed) {
             String sessionId = event.key();
             if(logger.isDebugEnabled()) {
                 logger.debug("Publishing SessionDestroyedEvent for session " + sessionId);
@@ -57,7 +70,8 @@ public class CouchbaseSessionDestroyedListener implements EventHandler<DCPEvent>
     }
 
     public boolean pass(final DCPEvent dcpEvent) {
-        if (dcpEvent.key().startsWith(CouchbaseSession.SESSION_KEY_PREFIX)) {
+        String key = dcpEvent.key();
+        if (key != null && key.startsWith(CouchbaseSession.SESSION_KEY_PREFIX)) {
             return dcpEvent.message() instanceof MutationMessage
                     || dcpEvent.message() instanceof RemoveMessage;
         }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.message.dcp.DCPRequest;
+import com.couchbase.client.core.message.dcp.MutationMessage;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.util.CharsetUtil;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+import rx.Subscription;
+import rx.functions.Action1;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Enumerates the live sessions of a bucket through a DCP snapshot, without N1QL nor views, for exports, format
+ * migrations or session counts.
+ *
+ * <p>
+ * Every partition is streamed from its first sequence number, the same way {@link CouchbaseReader} does. A stream
+ * usually starts with a snapshot read from disk followed by snapshots from memory, and the sessions written recently,
+ * which are the most active ones, may only be in the latter. The scan therefore reads all the snapshots, and as the
+ * client does not report the end of the streams, ends when the bucket stays quiet for {@link #setIdleMillis(long)},
+ * or after {@link #setMaxDurationMillis(long)} on a bucket that is never quiet.
+ * </p>
+ *
+ * <p>
+ * A session rewritten during the scan is streamed again: each session is handed to the consumer once, in the first
+ * live version streamed, and its later versions, removal or expiration are not reported. The ids of the sessions
+ * handed over are kept for the duration of the scan to tell them apart.
+ * </p>
+ *
+ * <p>
+ * The sessions are handed to the consumer one at a time on the calling thread. Between the network and the consumer
+ * sits a buffer of {@link #setBufferSize(int)} events: when it is full, the I/O thread of the core waits, which applies
+ * backpressure all the way to the server. Apart from the ids, memory stays bounded whatever the number of sessions.
+ * </p>
+ *
+ * <p>
+ * The client cannot close the streams of a finished scan, so the scanner should own its core and be disconnected
+ * afterwards.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionScanner {
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionScanner.class);
+
+    /**
+     * Default {@link #setIdleMillis(long)}.
+     */
+    public static final long DEFAULT_IDLE_MILLIS = 2000;
+
+    /**
+     * Default {@link #setBufferSize(int)}.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private static final long POLL_MILLIS = 100;
+
+    private final ClusterFacade core;
+
+    private final List<String> nodes;
+
+    private final String bucket;
+
+    private final String password;
+
+    private long idleMillis = DEFAULT_IDLE_MILLIS;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    private long maxDurationMillis;
+
+    private SessionDocumentFormats documentFormats = new SessionDocumentFormats();
+
+    /**
+     * @param core the core reference, with DCP enabled.
+     * @param nodes the list of Couchbase nodes.
+     * @param bucket the name of the session bucket.
+     * @param password the bucket password.
+     */
+    public CouchbaseSessionScanner(final ClusterFacade core, final List<String> nodes, final String bucket,
+                                   final String password) {
+        Assert.notNull(core, "core cannot be null");
+        this.core = core;
+        this.nodes = nodes;
+        this.bucket = bucket;
+        this.password = password;
+    }
+
+    /**
+     * @param documentFormats the formats the sessions may be stored in, including the {@link DictionaryDocumentFormat}
+     * of the scanned bucket if the names are encoded.
+     * @see CouchbaseSessionRepository#setDocumentFormats(SessionDocumentFormats)
+     */
+    public void setDocumentFormats(final SessionDocumentFormats documentFormats) {
+        Assert.notNull(documentFormats, "documentFormats cannot be null");
+        this.documentFormats = documentFormats;
+    }
+
+    /**
+     * @param idleMillis how long the bucket may stay quiet before the scan is considered complete.
+     */
+    public void setIdleMillis(final long idleMillis) {
+        Assert.isTrue(idleMillis > 0, "idleMillis must be positive");
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * @param maxDurationMillis the time after which the scan ends even if the bucket is still streaming mutations, 0
+     * to wait until it is quiet.
+     */
+    public void setMaxDurationMillis(final long maxDurationMillis) {
+        Assert.isTrue(maxDurationMillis >= 0, "maxDurationMillis cannot be negative");
+        this.maxDurationMillis = maxDurationMillis;
+    }
+
+    /**
+     * @param bufferSize the number of events buffered between the network and the consumer.
+     */
+    public void setBufferSize(final int bufferSize) {
+        Assert.isTrue(bufferSize > 0, "bufferSize must be positive");
+        this.bufferSize = bufferSize;
+    }
+
+    public void connect() {
+        CouchbaseReader.connect(core, nodes, bucket, password, 2, TimeUnit.SECONDS);
+    }
+
+    public void disconnect() {
+        CouchbaseReader.disconnect(core, 2, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Streams the live sessions to the consumer, blocking until the bucket is quiet.
+     *
+     * @param consumer called with every session, on the calling thread.
+     * @return the number of sessions handed to the consumer.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public long scan(final Action1<CouchbaseSession> consumer) throws InterruptedException {
+        final BlockingQueue<DCPRequest> buffer = new ArrayBlockingQueue<DCPRequest>(bufferSize);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        String streamName = "SpringSessionScan(" + System.identityHashCode(this) + "," + System.nanoTime() + ")";
+        Subscription subscription = CouchbaseReader.openStreams(core, bucket, streamName).subscribe(
+                new Action1<DCPRequest>() {
+                    @Override
+                    public void call(final DCPRequest request) {
+                        try {
+                            buffer.put(request);
+                        } catch (InterruptedException e) {
+                            release(request);
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                },
+                new Action1<Throwable>() {
+                    @Override
+                    public void call(final Throwable error) {
+                        failure.set(error);
+                    }
+                });
+        Set<String> scannedIds = new HashSet<String>();
+        long start = System.currentTimeMillis();
+        long lastProgress = start;
+        try {
+            while (failure.get() == null) {
+                if (maxDurationMillis > 0 && System.currentTimeMillis() - start >= maxDurationMillis) {
+                    logger.warn("Session scan stopped after " + maxDurationMillis + "ms, the bucket is still busy");
+                    break;
+                }
+                DCPRequest request = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (request == null) {
+                    if (System.currentTimeMillis() - lastProgress >= idleMillis) {
+                        break;
+                    }
+                    continue;
+                }
+                lastProgress = System.currentTimeMillis();
+                if (request instanceof MutationMessage) {
+                    MutationMessage mutation = (MutationMessage) request;
+                    if (scannedIds.contains(mutation.key())) {
+                        release(mutation);
+                        continue;
+                    }
+                    CouchbaseSession session = toSession(mutation);
+                    if (session != null) {
+                        scannedIds.add(session.getId());
+                        consumer.call(session);
+                    }
+                }
+            }
+        } finally {
+            subscription.unsubscribe();
+            for (DCPRequest request = buffer.poll(); request != null; request = buffer.poll()) {
+                release(request);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Session scan failed after " + scannedIds.size() + " sessions",
+                    failure.get());
+        }
+        return scannedIds.size();
+    }
+
+    /**
+     * @return the live session carried by the mutation, null if it is not a session or already expired.
+     */
+    private CouchbaseSession toSession(final MutationMessage mutation) {
+        String key = mutation.key();
+        try {
+            if (key == null || !key.startsWith(CouchbaseSession.SESSION_KEY_PREFIX)) {
+                return null;
+            }
+            int expiration = mutation.expiration();
+            if (expiration != 0 && expiration <= TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())) {
+                return null;
+            }
+            JsonObject content = JsonObject.fromJson(mutation.content().toString(CharsetUtil.UTF_8));
+            content = documentFormats.read(content);
+            CouchbaseSession session = new CouchbaseSession(
+                    JsonDocument.create(key, expiration, content, mutation.cas()));
+            return session.isExpired() ? null : session;
+        } catch (RuntimeException e) {
+            logger.warn("Skipping unreadable session " + key, e);
+            return null;
+        } finally {
+            release(mutation);
+        }
+    }
+
+    private static void release(final DCPRequest request) {
+        if (request instanceof MutationMessage) {
+            ByteBuf content = ((MutationMessage) request).content();
+            if (content != null && content.refCnt() > 0) {
+                content.release();
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.springframework.session.data.couchbase;
 
 import com.couchbase.client.core.message.CouchbaseMessage;
 import com.couchbase.client.core.message.dcp.MutationMessage;
+import com.couchbase.client.core.message.dcp.RemoveMessage;
 
 /**
  * A pre allocated event which carries a {@link CouchbaseMessage} and associated information.
@@ -60,6 +61,9 @@ public class DCPEvent {
         if (message instanceof MutationMessage) {
             MutationMessage mutation = (MutationMessage) message;
             return mutation.key();
+        } else if (message instanceof RemoveMessage) {
+            RemoveMessage removal = (RemoveMessage) message;
+            return removal.key();
         } else {
             return null;
         }
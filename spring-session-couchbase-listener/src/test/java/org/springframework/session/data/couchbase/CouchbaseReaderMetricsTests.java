@@ -0,0 +1,101 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.core.message.dcp.DCPRequest;
+import com.couchbase.client.core.message.dcp.MutationMessage;
+import com.couchbase.client.core.message.dcp.SnapshotMarkerMessage;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CouchbaseReaderMetricsTests {
+
+    private static final short PARTITION = 7;
+
+    @Test
+    public void lagCountsTheEventsNotConsumedYet() {
+        CouchbaseReaderMetrics metrics = new CouchbaseReaderMetrics();
+        metrics.setIdleMillis(Long.MAX_VALUE);
+        receive(metrics, marker(1, 100));
+        receive(metrics, mutation("a"));
+        consume(metrics, marker(1, 100));
+        assertThat(metrics.getMaxLag()).isEqualTo(100);
+        consume(metrics, mutation("a"));
+        assertThat(metrics.getMaxLag()).isEqualTo(99);
+        assertThat(metrics.getProcessedSeqnos().get((int) PARTITION)).isEqualTo(1);
+    }
+
+    @Test
+    public void deduplicatedSnapshotIsCaughtUpByTheNextMarker() {
+        CouchbaseReaderMetrics metrics = new CouchbaseReaderMetrics();
+        metrics.setIdleMillis(Long.MAX_VALUE);
+        receive(metrics, marker(1, 100));
+        receive(metrics, mutation("a"));
+        receive(metrics, marker(101, 150));
+        consume(metrics, marker(1, 100));
+        consume(metrics, mutation("a"));
+        consume(metrics, marker(101, 150));
+        assertThat(metrics.getMaxLag()).isEqualTo(50);
+        assertThat(metrics.getProcessedSeqnos().get((int) PARTITION)).isEqualTo(100);
+    }
+
+    @Test
+    public void deduplicatedSnapshotIsCaughtUpOnceThePartitionIsIdle() {
+        CouchbaseReaderMetrics metrics = new CouchbaseReaderMetrics();
+        metrics.setIdleMillis(0);
+        receive(metrics, marker(1, 100));
+        receive(metrics, mutation("a"));
+        receive(metrics, mutation("b"));
+        consume(metrics, marker(1, 100));
+        consume(metrics, mutation("a"));
+        // an event of the partition is still waiting in the ring buffer
+        assertThat(metrics.getMaxLag()).isEqualTo(99);
+        consume(metrics, mutation("b"));
+        assertThat(metrics.getMaxLag()).isEqualTo(0);
+        assertThat(metrics.getTotalLag()).isEqualTo(0);
+        assertThat(metrics.getPartitionLags()).isEmpty();
+        assertThat(metrics.getProcessedSeqnos().get((int) PARTITION)).isEqualTo(100);
+    }
+
+    @Test
+    public void droppedEventsAreNotWaitedFor() {
+        CouchbaseReaderMetrics metrics = new CouchbaseReaderMetrics();
+        metrics.setIdleMillis(0);
+        receive(metrics, marker(1, 10));
+        metrics.onPublished(mutation("a"), false);
+        consume(metrics, marker(1, 10));
+        assertThat(metrics.getMaxLag()).isEqualTo(0);
+        assertThat(metrics.getDroppedCount()).isEqualTo(1);
+    }
+
+    private static void receive(CouchbaseReaderMetrics metrics, DCPRequest request) {
+        metrics.onPublished(request, true);
+    }
+
+    private static void consume(CouchbaseReaderMetrics metrics, DCPRequest request) {
+        metrics.onConsumed(request, false);
+    }
+
+    private static SnapshotMarkerMessage marker(long start, long end) {
+        return new SnapshotMarkerMessage(PARTITION, start, end, 0, "default");
+    }
+
+    private static MutationMessage mutation(String key) {
+        return new MutationMessage(PARTITION, key, Unpooled.EMPTY_BUFFER, 0, 0, 0, 0, "default");
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Resolves the classes of the Java serialized attributes through a given class loader rather than the one
+ * {@link ObjectInputStream} finds by walking the stack, which is slow and is not the web application class loader when
+ * the session layer is deployed in a shared library of the container.
+ *
+ * <p>
+ * The classes are resolved once per name, and the proxy classes once per list of interfaces, and cached, so the class
+ * loader, and its locks, are only involved the first time a type is read. The local class descriptors are already cached by {@link ObjectStreamClass#lookup(Class)}, and
+ * the descriptors written in the stream have to be read from it anyway. Names the class loader does not know fall back
+ * to the default resolution, which also handles the primitive types.
+ * </p>
+ *
+ * <p>
+ * When allowed classes are given, any other class found in a stream is rejected before it is loaded, with an
+ * {@link InvalidClassException}. A pattern is either a class name, or a package name followed by {@code .*} for the
+ * classes of the package, or by {@code .**} for the classes of the package and its sub packages. Arrays are checked
+ * by their component type and primitive types are always allowed.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+class AttributeClassResolver {
+
+    private static final Set<String> PRIMITIVE_TYPES = new HashSet<String>(Arrays.asList(
+            "boolean", "byte", "char", "short", "int", "long", "float", "double", "void"));
+
+    /**
+     * Handler of the proxy instances created to get a proxy class, never invoked.
+     */
+    private static final InvocationHandler UNUSED_HANDLER = new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final ClassLoader classLoader;
+
+    private final List<String> allowedClasses;
+
+    private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+    private final ConcurrentMap<List<String>, Class<?>> proxyClasses = new ConcurrentHashMap<List<String>, Class<?>>();
+
+    /**
+     * @param classLoader the class loader the classes are resolved with, null for the default resolution.
+     * @param allowedClasses the allowed class patterns, empty to allow all classes.
+     */
+    AttributeClassResolver(ClassLoader classLoader, Collection<String> allowedClasses) {
+        this.classLoader = classLoader;
+        this.allowedClasses = new ArrayList<String>(allowedClasses);
+    }
+
+    ObjectInputStream newObjectInputStream(InputStream in) throws IOException {
+        return new ResolvingObjectInputStream(in);
+    }
+
+    boolean isAllowed(String className) {
+        if (allowedClasses.isEmpty() || PRIMITIVE_TYPES.contains(className)) {
+            return true;
+        }
+        String name = className;
+        while (name.startsWith("[")) {
+            name = name.substring(1);
+        }
+        if (name.startsWith("L") && name.endsWith(";")) {
+            name = name.substring(1, name.length() - 1);
+        } else if (name.length() != className.length()) {
+            // array of primitives
+            return true;
+        }
+        for (String pattern : allowedClasses) {
+            if (pattern.endsWith(".**")) {
+                if (name.startsWith(pattern.substring(0, pattern.length() - 2))) {
+                    return true;
+                }
+            } else if (pattern.endsWith(".*")) {
+                String packageName = pattern.substring(0, pattern.length() - 2);
+                if (name.startsWith(packageName) && name.lastIndexOf('.') == packageName.length()) {
+                    return true;
+                }
+            } else if (pattern.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class ResolvingObjectInputStream extends ObjectInputStream {
+
+        private ResolvingObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            Class<?> resolved = classes.get(name);
+            if (resolved != null) {
+                return resolved;
+            }
+            if (!isAllowed(name)) {
+                throw new InvalidClassException(name, "class not allowed in a session");
+            }
+            resolved = load(name, desc);
+            classes.putIfAbsent(name, resolved);
+            return resolved;
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(String[] interfaces) throws IOException, ClassNotFoundException {
+            for (String name : interfaces) {
+                if (!isAllowed(name)) {
+                    throw new InvalidClassException(name, "class not allowed in a session");
+                }
+            }
+            if (classLoader == null) {
+                return super.resolveProxyClass(interfaces);
+            }
+            Class<?> proxyClass = proxyClasses.get(Arrays.asList(interfaces));
+            if (proxyClass != null) {
+                return proxyClass;
+            }
+            Class<?>[] resolved = new Class<?>[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                resolved[i] = Class.forName(interfaces[i], false, classLoader);
+            }
+            try {
+                // the class of a throwaway instance, Proxy.getProxyClass is deprecated
+                proxyClass = Proxy.newProxyInstance(classLoader, resolved, UNUSED_HANDLER).getClass();
+            } catch (IllegalArgumentException e) {
+                throw new ClassNotFoundException(null, e);
+            }
+            proxyClasses.putIfAbsent(new ArrayList<String>(Arrays.asList(interfaces)), proxyClass);
+            return proxyClass;
+        }
+
+        private Class<?> load(String name, ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (classLoader != null) {
+                try {
+                    return Class.forName(name, false, classLoader);
+                } catch (ClassNotFoundException e) {
+                    // primitive types, or a class only the default resolution knows
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces the attribute names of the session documents by short codes, so that names such as
+ * {@code SPRING_SECURITY_CONTEXT} or {@code lastAccessedTime} are not repeated in millions of documents.
+ *
+ * <p>
+ * The names are listed in a single document of the bucket, {@code {"version": 3, "names": ["creationTime", ...]}},
+ * and the code of a name is {@value #CODE_PREFIX} followed by its index in base 36. The list is append only, so a code
+ * never changes meaning: every node keeps a local copy, appends the names it does not know yet with a CAS replace, and
+ * reloads the list when it reads a code it does not know. Names that could not be appended, because the dictionary is
+ * full or Couchbase failed, are stored as is, and so are the names of two characters or less, which a code would not
+ * shorten. Names already starting with {@value #CODE_PREFIX} are escaped by doubling it.
+ * </p>
+ *
+ * <p>
+ * Every access to the dictionary document is bounded by {@link #setTimeoutMillis(long)}, and the list is reloaded at
+ * most once per {@link #setMinRefreshIntervalMillis(long)}: the callers waiting for a reload share it. While the list
+ * cannot be loaded, the names are stored as is and the codes read as is, the sessions keep being served.
+ * </p>
+ *
+ * <p>
+ * The codes only exist in Couchbase: {@link DictionaryDocumentFormat} translates the documents of its version, the
+ * sessions always see the real names.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class AttributeNameDictionary {
+
+    private static final Log logger = LogFactory.getLog(AttributeNameDictionary.class);
+
+    /**
+     * Default id of the dictionary document.
+     */
+    public static final String DEFAULT_ID = "spring:session:dictionary";
+
+    /**
+     * Default {@link #setMaxNames(int)}.
+     */
+    public static final int DEFAULT_MAX_NAMES = 1024;
+
+    /**
+     * Default {@link #setTimeoutMillis(long)}.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2500;
+
+    /**
+     * Default {@link #setMinRefreshIntervalMillis(long)}.
+     */
+    public static final long DEFAULT_MIN_REFRESH_INTERVAL_MILLIS = 1000;
+
+    static final char CODE_PREFIX = '~';
+
+    private static final String VERSION = "version";
+
+    private static final String NAMES = "names";
+
+    private static final int MAX_CAS_ATTEMPTS = 10;
+
+    private final AsyncBucket asyncBucket;
+
+    private final String id;
+
+    private int maxNames = DEFAULT_MAX_NAMES;
+
+    private long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    private long minRefreshIntervalMillis = DEFAULT_MIN_REFRESH_INTERVAL_MILLIS;
+
+    private volatile Snapshot snapshot;
+
+    private long lastReloadMillis;
+
+    public AttributeNameDictionary(AsyncBucket asyncBucket) {
+        this(asyncBucket, DEFAULT_ID);
+    }
+
+    /**
+     * @param asyncBucket the bucket the sessions, and the dictionary, are stored in. Cannot be null.
+     * @param id the id of the dictionary document.
+     */
+    public AttributeNameDictionary(AsyncBucket asyncBucket, String id) {
+        Assert.notNull(asyncBucket, "asyncBucket cannot be null");
+        Assert.hasText(id, "id cannot be empty");
+        this.asyncBucket = asyncBucket;
+        this.id = id;
+    }
+
+    /**
+     * @param maxNames the number of names the dictionary holds at most, to bound it when the attribute names are
+     * dynamic. The other names are stored as is.
+     */
+    public void setMaxNames(int maxNames) {
+        this.maxNames = maxNames;
+    }
+
+    /**
+     * @param timeoutMillis the time a read or a write of the dictionary document waits for Couchbase, typically the
+     * operation timeout of the repository. 0 to rely on the client timeouts only.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param minRefreshIntervalMillis the time between two reloads of the dictionary caused by an unknown code or a
+     * failed load.
+     */
+    public void setMinRefreshIntervalMillis(long minRefreshIntervalMillis) {
+        this.minRefreshIntervalMillis = minRefreshIntervalMillis;
+    }
+
+    /**
+     * @return the version of the local copy of the dictionary, incremented by every append. 0 if it could not be
+     * loaded.
+     */
+    public long getVersion() {
+        Snapshot current = snapshot();
+        return current == null ? 0 : current.version;
+    }
+
+    /**
+     * @return the names of the local copy of the dictionary, in code order. None if it could not be loaded.
+     */
+    public List<String> getNames() {
+        Snapshot current = snapshot();
+        return current == null ? Collections.<String>emptyList() : current.names;
+    }
+
+    /**
+     * Reloads the local copy of the dictionary.
+     * @throws RuntimeException if the dictionary document could not be read, the local copy is kept.
+     */
+    public synchronized void refresh() {
+        lastReloadMillis = System.currentTimeMillis();
+        JsonDocument document = withTimeout(asyncBucket.get(id)).toBlocking().singleOrDefault(null);
+        snapshot = document == null ? Snapshot.EMPTY : new Snapshot(document);
+    }
+
+    /**
+     * @return a copy of the content with the names replaced by their code, appending the unknown names.
+     */
+    JsonObject encode(JsonObject content) {
+        JsonObject encoded = JsonObject.create();
+        for (String name : content.getNames()) {
+            encoded.put(encodeName(name), content.get(name));
+        }
+        return encoded;
+    }
+
+    /**
+     * @return a copy of the content with the codes replaced by their name.
+     */
+    JsonObject decode(JsonObject content) {
+        JsonObject decoded = JsonObject.create();
+        for (String name : content.getNames()) {
+            decoded.put(decodeName(name), content.get(name));
+        }
+        return decoded;
+    }
+
+    String encodeName(String name) {
+        Snapshot current = snapshot();
+        Integer index = current == null ? null : current.codes.get(name);
+        if (index == null && current != null && name.length() > 2) {
+            index = append(name);
+        }
+        if (index != null) {
+            return CODE_PREFIX + Integer.toString(index, Character.MAX_RADIX);
+        }
+        return name.charAt(0) == CODE_PREFIX ? CODE_PREFIX + name : name;
+    }
+
+    String decodeName(String key) {
+        if (key.isEmpty() || key.charAt(0) != CODE_PREFIX) {
+            return key;
+        }
+        if (key.length() > 1 && key.charAt(1) == CODE_PREFIX) {
+            return key.substring(1);
+        }
+        int index;
+        try {
+            index = Integer.parseInt(key.substring(1), Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            return key;
+        }
+        Snapshot current = snapshot();
+        if (current != null && index >= current.names.size()) {
+            // appended by another node
+            current = reload(current);
+        }
+        if (current == null) {
+            // the failed load was logged
+            return key;
+        }
+        if (index >= current.names.size()) {
+            logger.warn("Unknown attribute name code " + key + " in dictionary " + id + ", reading it as is");
+            return key;
+        }
+        return current.names.get(index);
+    }
+
+    /**
+     * @return the local copy, null if it could not be loaded.
+     */
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        return current != null ? current : reload(null);
+    }
+
+    /**
+     * Reloads the dictionary unless another caller did since the stale copy was read, or a reload happened less than
+     * {@link #setMinRefreshIntervalMillis(long)} ago.
+     *
+     * @param stale the local copy found lacking, null if none was loaded.
+     * @return the local copy after the reload, null if it could not be loaded.
+     */
+    private synchronized Snapshot reload(Snapshot stale) {
+        Snapshot current = snapshot;
+        if (current != stale || System.currentTimeMillis() - lastReloadMillis < minRefreshIntervalMillis) {
+            return current;
+        }
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            logger.warn("Could not load dictionary " + id + ", reading and writing the names as is", e);
+        }
+        return snapshot;
+    }
+
+    private <T> Observable<T> withTimeout(Observable<T> operation) {
+        return timeoutMillis > 0 ? operation.timeout(timeoutMillis, TimeUnit.MILLISECONDS) : operation;
+    }
+
+    /**
+     * @return the index of the name, null if it could not be appended.
+     */
+    private synchronized Integer append(String name) {
+        try {
+            for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+                Snapshot current = snapshot();
+                if (current == null) {
+                    return null;
+                }
+                Integer index = current.codes.get(name);
+                if (index != null) {
+                    return index;
+                }
+                if (current.names.size() >= maxNames) {
+                    return null;
+                }
+                JsonArray names = JsonArray.create();
+                for (String known : current.names) {
+                    names.add(known);
+                }
+                names.add(name);
+                JsonObject content = JsonObject.create().put(VERSION, current.version + 1).put(NAMES, names);
+                try {
+                    JsonDocument saved = withTimeout(current.cas == 0
+                            ? asyncBucket.insert(JsonDocument.create(id, content))
+                            : asyncBucket.replace(JsonDocument.create(id, content, current.cas))).toBlocking().single();
+                    snapshot = new Snapshot(JsonDocument.create(id, content, saved.cas()));
+                    return current.names.size();
+                } catch (CASMismatchException e) {
+                    refresh();
+                } catch (DocumentAlreadyExistsException e) {
+                    refresh();
+                }
+            }
+            logger.warn("Too much contention on dictionary " + id + ", storing " + name + " as is");
+        } catch (RuntimeException e) {
+            logger.warn("Could not append " + name + " to dictionary " + id + ", storing it as is", e);
+        }
+        return null;
+    }
+
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot();
+
+        private final long version;
+
+        private final long cas;
+
+        private final List<String> names;
+
+        private final Map<String, Integer> codes;
+
+        private Snapshot() {
+            this.version = 0;
+            this.cas = 0;
+            this.names = Collections.emptyList();
+            this.codes = Collections.emptyMap();
+        }
+
+        private Snapshot(JsonDocument document) {
+            JsonArray array = document.content().getArray(NAMES);
+            List<String> names = new ArrayList<String>(array.size());
+            Map<String, Integer> codes = new HashMap<String, Integer>();
+            for (int i = 0; i < array.size(); i++) {
+                names.add(array.getString(i));
+                codes.put(array.getString(i), i);
+            }
+            Object version = document.content().get(VERSION);
+            this.version = version instanceof Number ? ((Number) version).longValue() : names.size();
+            this.cas = document.cas();
+            this.names = Collections.unmodifiableList(names);
+            this.codes = codes;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * The layout of version {@value SessionDocumentFormats#LEGACY_VERSION} whose attributes may also hold values written
+ * by a {@link SessionAttributeCodec}. Its version tells the nodes that do not know the codecs not to read these
+ * documents, instead of handing the codec objects to the application as plain JSON.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ * @see SessionAttributeSerializer#addCodec(SessionAttributeCodec)
+ */
+public class CodecDocumentFormat implements SessionDocumentFormat {
+
+    /**
+     * Version of the documents written by this format.
+     */
+    public static final int VERSION = 2;
+
+    public int getVersion() {
+        return VERSION;
+    }
+
+    public JsonObject read(JsonObject stored) {
+        return stored;
+    }
+
+    public JsonObject write(JsonObject attributes) {
+        JsonObject stored = JsonObject.create();
+        for (String name : attributes.getNames()) {
+            stored.put(name, attributes.get(name));
+        }
+        return stored;
+    }
+
+    public boolean storesCodecValues() {
+        return true;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.springframework.util.Assert;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable ketama style consistent hash ring: every node is placed {@link #DEFAULT_VIRTUAL_NODES} times on a ring
+ * of MD5 hashes and a key belongs to the first node found clockwise from its own hash. Adding a node only moves the
+ * keys that the new node takes over, about 1/N of them.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+class ConsistentHashRing {
+
+    static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    private final List<String> nodes;
+
+    private final int virtualNodes;
+
+    ConsistentHashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        Assert.notEmpty(nodes, "nodes cannot be empty");
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(nodes));
+        this.virtualNodes = virtualNodes;
+        for (String node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "-" + i), node);
+            }
+        }
+    }
+
+    /**
+     * @return a new ring with the given node added.
+     */
+    ConsistentHashRing with(String node) {
+        List<String> extended = new ArrayList<String>(nodes);
+        extended.add(node);
+        return new ConsistentHashRing(extended, virtualNodes);
+    }
+
+    List<String> getNodes() {
+        return nodes;
+    }
+
+    String owner(String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return (entry == null ? ring.firstEntry() : entry).getValue();
+    }
+
+    static long hash(String key) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+}
@@ -58,6 +58,27 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 
 	private JsonObject sessionAttrs = JsonObject.create();
 
+	private transient SessionAttributeSerializer serializer;
+
+	private transient OffloadedAttributeStore offloadStore;
+
+	private transient Map<String, Object> offloadedValues;
+
+	private transient Set<String> droppedReferences;
+
+	private transient boolean changed = true;
+
+	private transient long cas;
+
+	private transient boolean fromReplica;
+
+	private transient boolean placeholder;
+
+	private transient boolean persisted;
+
+	private transient int formatVersion;
+
+	private transient Set<String> changedAttributeNames;
 
 	/**
 	 * Creates a new instance
@@ -92,6 +113,7 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 
 	public void setLastAccessedTime(long lastAccessedTime) {
         sessionAttrs.put(CouchbaseSessionRepository.LAST_ACCESSED_ATTR, lastAccessedTime);
+        attributeChanged(CouchbaseSessionRepository.LAST_ACCESSED_ATTR);
 	}
 
 	public long getCreationTime() {
@@ -109,6 +131,8 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 	public void setMaxInactiveIntervalInSeconds(int interval) {
         interval = convertTTLForCouchbase(interval);
 		sessionAttrs.put(CouchbaseSessionRepository.MAX_INACTIVE_ATTR, interval);
+        attributeChanged(CouchbaseSessionRepository.MAX_INACTIVE_ATTR);
+        changed = true;
 	}
 
 	public int getMaxInactiveIntervalInSeconds() {
@@ -128,6 +152,12 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 
 	public Object getAttribute(String attributeName) {
         Object obj = sessionAttrs.get(attributeName);
+        if (OffloadedAttributeStore.isReference(obj)) {
+            obj = loadOffloadedAttribute(attributeName, (JsonObject) obj);
+        }
+        if (getSerializer().isEncoded(obj)) {
+            return getSerializer().decode((JsonObject) obj);
+        }
         if (obj instanceof String) {
             try {
                 return stringToObject((String)obj);
@@ -143,6 +173,22 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
         return obj;
 	}
 
+    private Object loadOffloadedAttribute(String attributeName, JsonObject ref) {
+        if (offloadedValues != null && offloadedValues.containsKey(attributeName)) {
+            return offloadedValues.get(attributeName);
+        }
+        if (offloadStore == null) {
+            throw new IllegalStateException("Attribute " + attributeName + " is stored in its own document, "
+                    + "the session must be loaded through a repository to read it");
+        }
+        Object stored = offloadStore.load(ref);
+        if (offloadedValues == null) {
+            offloadedValues = new HashMap<String, Object>();
+        }
+        offloadedValues.put(attributeName, stored);
+        return stored;
+    }
+
     private boolean checkType(Object item) {
         return item == null
                 || item instanceof String
@@ -155,29 +201,216 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
     }
 
     public String objectToString(Serializable object) {
-        String encoded = null;
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
-            objectOutputStream.writeObject(object);
-            objectOutputStream.close();
-            encoded = new String(Base64.getEncoder().encode(byteArrayOutputStream.toByteArray()));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return encoded;
+        return getSerializer().objectToString(object);
     }
 
-    @SuppressWarnings("unchecked")
     public Object stringToObject(String string) throws IOException, ClassNotFoundException{
-        if (string == null){
-            return null;
+        return getSerializer().stringToObject(string);
+    }
+
+    SessionAttributeSerializer getSerializer() {
+        return serializer == null ? SessionAttributeSerializer.DEFAULT : serializer;
+    }
+
+    void setSerializer(SessionAttributeSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    void setOffloadStore(OffloadedAttributeStore offloadStore) {
+        this.offloadStore = offloadStore;
+    }
+
+    /**
+     * @return true if something else than the last accessed time changed since the session was loaded or saved.
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    void markSaved() {
+        changed = false;
+        persisted = true;
+        fromReplica = false;
+        changedAttributeNames = null;
+    }
+
+    /**
+     * @return a copy of the content of this session, to hand over to another thread. Nested JSON values are shared.
+     */
+    JsonObject copySessionAttrs() {
+        JsonObject copy = JsonObject.create();
+        for (String attrName : sessionAttrs.getNames()) {
+            copy.put(attrName, sessionAttrs.get(attrName));
+        }
+        return copy;
+    }
+
+    /**
+     * @return the CAS of the document this session was loaded from or last saved to, 0 if unknown.
+     */
+    long getCas() {
+        return cas;
+    }
+
+    void setCas(long cas) {
+        this.cas = cas;
+    }
+
+    /**
+     * @return true if this session was read from a replica and may be older than the active document.
+     */
+    boolean isFromReplica() {
+        return fromReplica;
+    }
+
+    void setFromReplica(boolean fromReplica) {
+        this.fromReplica = fromReplica;
+    }
+
+    /**
+     * @return true if this session stands in for a session that could not be loaded and must never be saved.
+     */
+    boolean isPlaceholder() {
+        return placeholder;
+    }
+
+    void setPlaceholder(boolean placeholder) {
+        this.placeholder = placeholder;
+    }
+
+    /**
+     * @return the version of the document this session was loaded from, 0 if it was not loaded.
+     * @see SessionDocumentFormats
+     */
+    int getFormatVersion() {
+        return formatVersion;
+    }
+
+    void setFormatVersion(int formatVersion) {
+        this.formatVersion = formatVersion;
+    }
+
+    /**
+     * @return true if this session was loaded from or saved to Couchbase at least once.
+     */
+    boolean isPersisted() {
+        return persisted;
+    }
+
+    /**
+     * @return true if this session holds attributes set by the application, not only its creation time, last access
+     * time and timeout.
+     */
+    boolean hasApplicationAttributes() {
+        for (String attrName : sessionAttrs.getNames()) {
+            if (!CouchbaseSessionRepository.CREATION_TIME_ATTR.equals(attrName)
+                    && !CouchbaseSessionRepository.LAST_ACCESSED_ATTR.equals(attrName)
+                    && !CouchbaseSessionRepository.MAX_INACTIVE_ATTR.equals(attrName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replays the attributes changed since this session was loaded on top of a more recent version of its document,
+     * and makes the result the content of this session.
+     *
+     * @param current the content of the active document.
+     * @return the merged content.
+     */
+    JsonObject mergeChangesInto(JsonObject current) {
+        JsonObject merged = JsonObject.create();
+        for (String attrName : current.getNames()) {
+            merged.put(attrName, current.get(attrName));
+        }
+        if (changedAttributeNames != null) {
+            for (String attrName : changedAttributeNames) {
+                if (sessionAttrs.containsKey(attrName)) {
+                    merged.put(attrName, sessionAttrs.get(attrName));
+                } else {
+                    merged.removeKey(attrName);
+                }
+            }
+        }
+        this.sessionAttrs = merged;
+        return merged;
+    }
+
+    /**
+     * Remembers the document of an offloaded attribute about to be overwritten, so that the next save removes it.
+     */
+    private void dropReference(String attrName) {
+        Object stored = sessionAttrs.get(attrName);
+        if (OffloadedAttributeStore.isReference(stored)) {
+            if (droppedReferences == null) {
+                droppedReferences = new HashSet<String>();
+            }
+            droppedReferences.add(((JsonObject) stored).getString(OffloadedAttributeStore.REF));
+        }
+        if (offloadedValues != null) {
+            offloadedValues.remove(attrName);
+        }
+    }
+
+    /**
+     * @return the ids of the attribute documents no longer referenced since the last call.
+     */
+    Set<String> pollDroppedReferences() {
+        Set<String> dropped = droppedReferences == null ? Collections.<String>emptySet() : droppedReferences;
+        droppedReferences = null;
+        return dropped;
+    }
+
+    /**
+     * Gives back the ids polled for a save that failed, so that they are removed on the next one.
+     */
+    void restoreDroppedReferences(Set<String> dropped) {
+        if (dropped.isEmpty()) {
+            return;
+        }
+        if (droppedReferences == null) {
+            droppedReferences = new HashSet<String>();
+        }
+        droppedReferences.addAll(dropped);
+    }
+
+    /**
+     * Replaces the stored value of an attribute by a reference to the document it was written to, keeping the value
+     * at hand for this session.
+     */
+    void setOffloadedAttribute(String attrName, JsonObject ref, Object stored) {
+        sessionAttrs.put(attrName, ref);
+        if (offloadedValues == null) {
+            offloadedValues = new HashMap<String, Object>();
         }
-        byte[] bytes = Base64.getDecoder().decode(string.getBytes());
-        Object object = null;
-        ObjectInputStream objectInputStream = new ObjectInputStream( new ByteArrayInputStream(bytes) );
-        object = objectInputStream.readObject();
-        return object;
+        offloadedValues.put(attrName, stored);
+    }
+
+    /**
+     * @return the names of the attributes set or removed since the session was loaded or saved, null if none.
+     */
+    Set<String> getChangedAttributeNames() {
+        return changedAttributeNames;
+    }
+
+    /**
+     * Records attributes as changed, so that they are merged into a more recent version of the document on save.
+     *
+     * @param attrNames the names of the attributes changed by earlier requests whose saves did not reach Couchbase.
+     */
+    void addChangedAttributeNames(Collection<String> attrNames) {
+        for (String attrName : attrNames) {
+            attributeChanged(attrName);
+        }
+        changed = true;
+    }
+
+    private void attributeChanged(String attrName) {
+        if (changedAttributeNames == null) {
+            changedAttributeNames = new HashSet<String>();
+        }
+        changedAttributeNames.add(attrName);
     }
 
 
@@ -186,20 +419,28 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 	}
 
 	public void setAttribute(String attributeName, Object attributeValue) {
+		if (SessionDocumentFormats.VERSION_KEY.equals(attributeName)) {
+			throw new IllegalArgumentException(attributeName + " is reserved for the session document version");
+		}
 		if (attributeValue == null) {
 			removeAttribute(attributeName);
 		} else {
+            dropReference(attributeName);
             if (checkType(attributeValue)) {
-                sessionAttrs.put(attributeName, attributeValue);
+                sessionAttrs.put(attributeName, SessionAttributeSerializer.escape(attributeValue));
             } else {
-                String serializedAttribute = objectToString((Serializable)attributeValue);
-                sessionAttrs.put(attributeName, serializedAttribute);
+                sessionAttrs.put(attributeName, getSerializer().encode(attributeValue));
             }
+            attributeChanged(attributeName);
+            changed = true;
 		}
 	}
 
 	public void removeAttribute(String attributeName) {
+        dropReference(attributeName);
 		sessionAttrs.removeKey(attributeName);
+        attributeChanged(attributeName);
+        changed = true;
 	}
 
 	/**
@@ -208,6 +449,8 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 	 */
 	public void setCreationTime(long creationTime) {
 		sessionAttrs.put(CouchbaseSessionRepository.CREATION_TIME_ATTR, creationTime);
+        attributeChanged(CouchbaseSessionRepository.CREATION_TIME_ATTR);
+        changed = true;
 	}
 
 	/**
@@ -217,6 +460,7 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
 	 */
 	public void setId(String id) {
 		this.id = id;
+        changed = true;
 	}
 
 	public boolean equals(Object obj) {
@@ -248,6 +492,9 @@ public final class CouchbaseSession implements ExpiringSession, Serializable {
             Object attrValue = jsonDoc.content().get(attrName);
             this.sessionAttrs.put(attrName, attrValue);
         }
+        this.cas = jsonDoc.cas();
+        this.changed = false;
+        this.persisted = true;
     }
 
     /**
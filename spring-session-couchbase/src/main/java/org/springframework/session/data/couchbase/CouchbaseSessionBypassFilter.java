@@ -0,0 +1,200 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.springframework.session.ExpiringSession;
+import org.springframework.session.SessionRepository;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.Assert;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Sits in front of the {@link org.springframework.session.web.http.SessionRepositoryFilter} and keeps the requests
+ * that do not need the session, or only read it, from costing Couchbase round trips.
+ *
+ * <ul>
+ *     <li>The requests matching {@link #setSkippedPaths(String...)} or {@link #setSkippedMethods(String...)}, such as
+ *     static assets and health probes, go straight down the chain: the session is neither loaded nor saved and
+ *     {@link HttpServletRequest#getSession()} returns the container session.</li>
+ *     <li>The requests matching {@link #setReadOnlyPaths(String...)} or {@link #setReadOnlyMethods(String...)} load
+ *     the session but never save it, so neither the changes nor the last access time are written back. An invalidated
+ *     session is still deleted, and a session created by such a request is never stored.</li>
+ * </ul>
+ *
+ * <p>
+ * Paths are Ant-style patterns matched against the path within the application, e.g. {@code /resources/**}.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionBypassFilter extends OncePerRequestFilter {
+
+    private final Filter sessionRepositoryFilter;
+
+    private final Filter readOnlySessionRepositoryFilter;
+
+    private final PathMatcher pathMatcher = new AntPathMatcher();
+
+    private final UrlPathHelper urlPathHelper = new UrlPathHelper();
+
+    private List<String> skippedPaths = Collections.emptyList();
+
+    private Set<String> skippedMethods = Collections.emptySet();
+
+    private List<String> readOnlyPaths = Collections.emptyList();
+
+    private Set<String> readOnlyMethods = Collections.emptySet();
+
+    /**
+     * @param sessionRepositoryFilter the filter handling the requests that use the session.
+     * @param readOnlySessionRepositoryFilter the same filter, backed by a repository wrapped with
+     * {@link #readOnly(SessionRepository)}.
+     */
+    public CouchbaseSessionBypassFilter(Filter sessionRepositoryFilter, Filter readOnlySessionRepositoryFilter) {
+        Assert.notNull(sessionRepositoryFilter, "sessionRepositoryFilter cannot be null");
+        Assert.notNull(readOnlySessionRepositoryFilter, "readOnlySessionRepositoryFilter cannot be null");
+        this.sessionRepositoryFilter = sessionRepositoryFilter;
+        this.readOnlySessionRepositoryFilter = readOnlySessionRepositoryFilter;
+    }
+
+    /**
+     * @param patterns the paths of the requests that never touch the session.
+     */
+    public void setSkippedPaths(String... patterns) {
+        this.skippedPaths = Arrays.asList(patterns);
+    }
+
+    /**
+     * @param methods the HTTP methods of the requests that never touch the session, e.g. OPTIONS.
+     */
+    public void setSkippedMethods(String... methods) {
+        this.skippedMethods = upperCase(methods);
+    }
+
+    /**
+     * @param patterns the paths of the requests that read the session without saving it.
+     */
+    public void setReadOnlyPaths(String... patterns) {
+        this.readOnlyPaths = Arrays.asList(patterns);
+    }
+
+    /**
+     * @param methods the HTTP methods of the requests that read the session without saving it, e.g. GET and HEAD.
+     */
+    public void setReadOnlyMethods(String... methods) {
+        this.readOnlyMethods = upperCase(methods);
+    }
+
+    /**
+     * @return true if at least one skipped or read-only rule is set.
+     */
+    public boolean hasRules() {
+        return !skippedPaths.isEmpty() || !skippedMethods.isEmpty() || !readOnlyPaths.isEmpty()
+                || !readOnlyMethods.isEmpty();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String method = request.getMethod().toUpperCase(Locale.ENGLISH);
+        String path = urlPathHelper.getPathWithinApplication(request);
+        if (skippedMethods.contains(method) || matches(skippedPaths, path)) {
+            filterChain.doFilter(request, response);
+        } else if (readOnlyMethods.contains(method) || matches(readOnlyPaths, path)) {
+            readOnlySessionRepositoryFilter.doFilter(request, response, filterChain);
+        } else {
+            sessionRepositoryFilter.doFilter(request, response, filterChain);
+        }
+    }
+
+    private boolean matches(List<String> patterns, String path) {
+        for (String pattern : patterns) {
+            if (pathMatcher.match(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> upperCase(String... methods) {
+        Set<String> upperCase = new HashSet<String>();
+        for (String method : methods) {
+            upperCase.add(method.toUpperCase(Locale.ENGLISH));
+        }
+        return upperCase;
+    }
+
+    /**
+     * @param repository the repository to wrap.
+     * @return a repository whose {@link SessionRepository#save} does nothing. It prefetches like the wrapped one.
+     */
+    public static <S extends ExpiringSession> SessionRepository<S> readOnly(SessionRepository<S> repository) {
+        return new ReadOnlySessionRepository<S>(repository);
+    }
+
+    private static final class ReadOnlySessionRepository<S extends ExpiringSession>
+            implements SessionRepository<S>, SessionPrefetcher {
+
+        private final SessionRepository<S> repository;
+
+        private ReadOnlySessionRepository(SessionRepository<S> repository) {
+            this.repository = repository;
+        }
+
+        public S createSession() {
+            return repository.createSession();
+        }
+
+        public void save(S session) {
+        }
+
+        public S getSession(String id) {
+            return repository.getSession(id);
+        }
+
+        public void delete(String id) {
+            repository.delete(id);
+        }
+
+        public void prefetch(String id) {
+            if (repository instanceof SessionPrefetcher) {
+                ((SessionPrefetcher) repository).prefetch(id);
+            }
+        }
+
+        public void cancelPrefetch() {
+            if (repository instanceof SessionPrefetcher) {
+                ((SessionPrefetcher) repository).cancelPrefetch();
+            }
+        }
+    }
+}
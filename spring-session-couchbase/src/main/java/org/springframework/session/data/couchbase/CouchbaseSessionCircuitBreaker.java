@@ -0,0 +1,124 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A circuit breaker protecting the session I/O of a node from a slow or unavailable Couchbase.
+ *
+ * <p>
+ * The breaker opens after {@link #setFailureThreshold(int)} consecutive failed operations. While open, no operation
+ * reaches Couchbase and {@link CouchbaseSessionRepository} applies its
+ * {@link CouchbaseSessionRepository.DegradedPolicy}. After {@link #setOpenMillis(long)}, a single trial operation is let
+ * through: it closes the breaker if it succeeds and opens it again otherwise.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionCircuitBreaker {
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionCircuitBreaker.class);
+
+    /**
+     * Default {@link #setFailureThreshold(int)}.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * Default {@link #setOpenMillis(long)} (5 seconds).
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 5000;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    private volatile long openMillis = DEFAULT_OPEN_MILLIS;
+
+    /**
+     * @param failureThreshold the number of consecutive failures that opens the breaker.
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        Assert.isTrue(failureThreshold > 0, "failureThreshold must be positive");
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @param openMillis how long the breaker stays open before a trial operation is let through.
+     */
+    public void setOpenMillis(long openMillis) {
+        Assert.isTrue(openMillis >= 0, "openMillis cannot be negative");
+        this.openMillis = openMillis;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return true if the operation may reach Couchbase. The caller must then report its outcome with
+     * {@link #onSuccess()} or {@link #onFailure()}.
+     */
+    public boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.currentTimeMillis() - openedAt >= openMillis
+                        && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                // the trial operation is in flight
+                return false;
+        }
+    }
+
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            logger.info("Couchbase session store available again, circuit breaker closed");
+        }
+    }
+
+    public void onFailure() {
+        if (state.get() == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            if (state.getAndSet(State.OPEN) != State.OPEN) {
+                logger.warn("Couchbase session store failing, circuit breaker opened for " + openMillis + "ms");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CouchbaseSessionCircuitBreaker{state=" + state.get() + ", consecutiveFailures="
+                + consecutiveFailures.get() + "}";
+    }
+}
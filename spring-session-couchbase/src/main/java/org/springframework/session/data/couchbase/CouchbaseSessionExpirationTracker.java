@@ -0,0 +1,225 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.message.kv.ObserveRequest;
+import com.couchbase.client.core.message.kv.ObserveResponse;
+import com.couchbase.client.java.AsyncBucket;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.session.events.SessionDestroyedEvent;
+import org.springframework.util.Assert;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Func1;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the expiration of the sessions saved by this node and fires a
+ * {@link org.springframework.session.events.SessionDestroyedEvent} once they are gone. This is an alternative to the
+ * DCP based listener for deployments that cannot open a DCP stream.
+ *
+ * <p>
+ * Deadlines are computed from {@code lastAccessedTime + maxInactiveInterval} and kept in a
+ * {@link SessionExpirationTimingWheel}. When a deadline passes, the document is observed on its active node, which is
+ * much cheaper than fetching it. If it is gone the event is published. If it was saved again by another node, that node
+ * is now in charge of it. Otherwise the check is retried a few ticks later, to account for clock skew with the server.
+ * A session touched without being saved, see {@link #touched(String, int, long)}, is tracked without its CAS, which
+ * the touch does not return: the first observe records it, and the next ones compare with it.
+ * </p>
+ *
+ * <p>
+ * {@link #processExpirations()} must be called periodically, typically by the scheduler enabled in
+ * {@link org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseHttpSessionConfiguration}.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionExpirationTracker {
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionExpirationTracker.class);
+
+    /**
+     * Default tick of the timing wheel (1 second).
+     */
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+
+    /**
+     * Number of times a session still present after its deadline is checked again before giving up.
+     */
+    static final int MAX_CONFIRMATION_ATTEMPTS = 3;
+
+    private final AsyncBucket asyncBucket;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final long tickMillis;
+
+    private final SessionExpirationTimingWheel wheel;
+
+    public CouchbaseSessionExpirationTracker(AsyncBucket asyncBucket, ApplicationEventPublisher eventPublisher) {
+        this(asyncBucket, eventPublisher, DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * @param asyncBucket the bucket the sessions are stored in. Cannot be null.
+     * @param eventPublisher the {@link ApplicationEventPublisher} to use. Cannot be null.
+     * @param tickMillis the resolution of the expiration deadlines in milliseconds.
+     */
+    public CouchbaseSessionExpirationTracker(AsyncBucket asyncBucket, ApplicationEventPublisher eventPublisher,
+                                             long tickMillis) {
+        Assert.notNull(asyncBucket, "asyncBucket cannot be null");
+        Assert.notNull(eventPublisher, "eventPublisher cannot be null");
+        this.asyncBucket = asyncBucket;
+        this.eventPublisher = eventPublisher;
+        this.tickMillis = tickMillis;
+        this.wheel = new SessionExpirationTimingWheel(tickMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts or updates the tracking of a session that has just been saved.
+     *
+     * @param session the saved session.
+     * @param cas the CAS returned by the save operation.
+     */
+    public void track(CouchbaseSession session, long cas) {
+        schedule(session.getId(), session.getMaxInactiveIntervalInSeconds(), session.getLastAccessedTime(), cas);
+    }
+
+    /**
+     * Starts or updates the tracking of a session whose document has just been touched, which changed its CAS.
+     *
+     * @param id the session id.
+     * @param maxInactiveInterval the maximum inactive interval the document was touched with.
+     * @param touchedAt when the document was touched.
+     */
+    public void touched(String id, int maxInactiveInterval, long touchedAt) {
+        schedule(id, maxInactiveInterval, touchedAt, 0);
+    }
+
+    /**
+     * @param cas the CAS of the document, 0 if unknown.
+     */
+    private void schedule(String id, int maxInactiveInterval, long lastAccessedTime, long cas) {
+        if (maxInactiveInterval < 0) {
+            wheel.cancel(id);
+            return;
+        }
+        long deadline;
+        if (maxInactiveInterval > CouchbaseSession.THIRTY_DAYS_TIMESTAMP) {
+            // already converted to an absolute Unix time, see CouchbaseSession#convertTTLForCouchbase
+            deadline = TimeUnit.SECONDS.toMillis(maxInactiveInterval);
+        } else {
+            deadline = lastAccessedTime + TimeUnit.SECONDS.toMillis(maxInactiveInterval);
+        }
+        wheel.schedule(id, deadline, cas);
+    }
+
+    /**
+     * Stops tracking the given session, for instance because it was deleted.
+     *
+     * @param id the session id.
+     */
+    public void untrack(String id) {
+        wheel.cancel(id);
+    }
+
+    /**
+     * @return the number of sessions currently tracked by this node.
+     */
+    public int getTrackedSessionCount() {
+        return wheel.size();
+    }
+
+    /**
+     * Advances the timing wheel and confirms the expiration of every session whose deadline has passed. Confirmations
+     * are asynchronous, this method does not block on Couchbase.
+     */
+    public void processExpirations() {
+        for (SessionExpirationTimingWheel.Entry entry : wheel.advance(System.currentTimeMillis())) {
+            confirmExpiration(entry);
+        }
+    }
+
+    private void confirmExpiration(final SessionExpirationTimingWheel.Entry entry) {
+        asyncBucket.core()
+                .flatMap(new Func1<ClusterFacade, Observable<ObserveResponse>>() {
+                    @Override
+                    public Observable<ObserveResponse> call(ClusterFacade core) {
+                        return core.send(new ObserveRequest(entry.id, entry.cas, true, (short) 0, asyncBucket.name()));
+                    }
+                })
+                .subscribe(new Subscriber<ObserveResponse>() {
+                    @Override
+                    public void onCompleted() {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        logger.warn("Could not check expiration of session " + entry.id, e);
+                        retry(entry);
+                    }
+
+                    @Override
+                    public void onNext(ObserveResponse response) {
+                        switch (response.observeStatus()) {
+                            case NOT_FOUND_PERSISTED:
+                            case NOT_FOUND_NOT_PERSISTED:
+                                publishEvent(entry.id);
+                                break;
+                            default:
+                                if (entry.cas == 0) {
+                                    // touched, the CAS is only known now
+                                    retry(entry, response.cas());
+                                } else if (response.cas() != entry.cas) {
+                                    if (logger.isDebugEnabled()) {
+                                        logger.debug("Session " + entry.id + " was saved by another node, no longer tracked");
+                                    }
+                                } else if (entry.attempts >= MAX_CONFIRMATION_ATTEMPTS) {
+                                    publishEvent(entry.id);
+                                } else {
+                                    retry(entry);
+                                }
+                        }
+                    }
+                });
+    }
+
+    private void retry(SessionExpirationTimingWheel.Entry entry) {
+        retry(entry, entry.cas);
+    }
+
+    private void retry(SessionExpirationTimingWheel.Entry entry, long cas) {
+        if (entry.attempts < MAX_CONFIRMATION_ATTEMPTS) {
+            wheel.retry(entry, System.currentTimeMillis() + tickMillis, cas);
+        }
+    }
+
+    private void publishEvent(String sessionId) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Publishing SessionDestroyedEvent for session " + sessionId);
+        }
+        try {
+            this.eventPublisher.publishEvent(new SessionDestroyedEvent(this, sessionId));
+        } catch (Throwable ex) {
+            logger.error("Error publishing SessionDestroyedEvent for session " + sessionId + ".", ex);
+        }
+    }
+}
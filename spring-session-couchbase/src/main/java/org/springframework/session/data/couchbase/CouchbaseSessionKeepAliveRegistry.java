@@ -0,0 +1,239 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.session.MapSession;
+import org.springframework.util.Assert;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketHandlerDecoratorFactory;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
+
+import javax.servlet.http.HttpSession;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps alive the HTTP sessions of the open WebSocket connections, which never go through the
+ * {@link org.springframework.session.web.http.SessionRepositoryFilter} once established.
+ *
+ * <p>
+ * The registry counts the open connections of every session and {@link #touchAll()} resets the expiration of all the
+ * registered sessions in one bulk touch, so the cost is one touch per session per interval whatever the number of
+ * connections or messages. The sessions are not read: the registry records their maximum inactive interval at
+ * handshake. {@link #touchAll()} must be called periodically, more often than the session timeout, typically by the
+ * scheduler of
+ * {@link org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseWebSocketSessionConfiguration}.
+ * </p>
+ *
+ * <p>
+ * The registry is a {@link WebSocketHandlerDecoratorFactory}: the decorated handlers register the session id put in the
+ * WebSocket session attributes by an {@link HttpSessionHandshakeInterceptor}. It is also a {@link HandshakeInterceptor}
+ * recording the interval of the HTTP session; the sessions registered without it are touched with the
+ * {@link #setDefaultMaxInactiveInterval(int) default interval}. For a STOMP endpoint:
+ * </p>
+ *
+ * <pre>
+ * registry.addEndpoint("/messages").addInterceptors(new HttpSessionHandshakeInterceptor(), keepAliveRegistry);
+ * ...
+ * registration.addDecoratorFactory(keepAliveRegistry);
+ * </pre>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionKeepAliveRegistry implements WebSocketHandlerDecoratorFactory, HandshakeInterceptor {
+
+    /**
+     * WebSocket session attribute holding the maximum inactive interval of the HTTP session.
+     */
+    public static final String MAX_INACTIVE_INTERVAL_ATTR_NAME =
+            CouchbaseSessionKeepAliveRegistry.class.getName() + ".MAX_INACTIVE_INTERVAL";
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionKeepAliveRegistry.class);
+
+    private final SessionToucher toucher;
+
+    private final ConcurrentMap<String, Connections> connections = new ConcurrentHashMap<String, Connections>();
+
+    private final AtomicBoolean touching = new AtomicBoolean();
+
+    private int defaultMaxInactiveInterval = MapSession.DEFAULT_MAX_INACTIVE_INTERVAL_SECONDS;
+
+    /**
+     * @param toucher the repository the sessions are stored in. Cannot be null.
+     */
+    public CouchbaseSessionKeepAliveRegistry(SessionToucher toucher) {
+        Assert.notNull(toucher, "toucher cannot be null");
+        this.toucher = toucher;
+    }
+
+    /**
+     * @param defaultMaxInactiveInterval the maximum inactive interval of the sessions registered without theirs.
+     */
+    public void setDefaultMaxInactiveInterval(int defaultMaxInactiveInterval) {
+        this.defaultMaxInactiveInterval = defaultMaxInactiveInterval;
+    }
+
+    /**
+     * Adds an open connection to a session, with the default maximum inactive interval.
+     *
+     * @param id the session id.
+     */
+    public void register(String id) {
+        register(id, defaultMaxInactiveInterval);
+    }
+
+    /**
+     * Adds an open connection to a session.
+     *
+     * @param id the session id.
+     * @param maxInactiveInterval the maximum inactive interval of the session, as stored in the session.
+     */
+    public void register(String id, int maxInactiveInterval) {
+        while (true) {
+            Connections open = connections.get(id);
+            if (open == null) {
+                if (connections.putIfAbsent(id, new Connections(maxInactiveInterval)) == null) {
+                    return;
+                }
+                continue;
+            }
+            int current = open.count.get();
+            if (current > 0) {
+                if (open.count.compareAndSet(current, current + 1)) {
+                    open.maxInactiveInterval = maxInactiveInterval;
+                    return;
+                }
+            } else {
+                // being removed by unregister
+                connections.remove(id, open);
+            }
+        }
+    }
+
+    /**
+     * Removes a closed connection from a session. The session is no longer kept alive once it has no connection left.
+     *
+     * @param id the session id.
+     */
+    public void unregister(String id) {
+        Connections open = connections.get(id);
+        if (open != null && open.count.decrementAndGet() == 0) {
+            connections.remove(id, open);
+        }
+    }
+
+    /**
+     * @return the number of sessions kept alive.
+     */
+    public int getSessionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Touches every registered session. Does nothing if the previous call is still running.
+     *
+     * @return the number of sessions touched.
+     */
+    public int touchAll() {
+        if (connections.isEmpty() || !touching.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            Map<String, Integer> maxInactiveIntervals = new HashMap<String, Integer>();
+            for (Map.Entry<String, Connections> session : connections.entrySet()) {
+                maxInactiveIntervals.put(session.getKey(), session.getValue().maxInactiveInterval);
+            }
+            return toucher.touchSessions(maxInactiveIntervals).size();
+        } catch (CouchbaseSessionUnavailableException e) {
+            logger.warn("Could not keep the WebSocket sessions alive", e);
+            return 0;
+        } finally {
+            touching.set(false);
+        }
+    }
+
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                                   Map<String, Object> attributes) {
+        if (request instanceof ServletServerHttpRequest) {
+            HttpSession session = ((ServletServerHttpRequest) request).getServletRequest().getSession(false);
+            if (session != null) {
+                attributes.put(MAX_INACTIVE_INTERVAL_ATTR_NAME, session.getMaxInactiveInterval());
+            }
+        }
+        return true;
+    }
+
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+                               Exception exception) {
+    }
+
+    public WebSocketHandler decorate(WebSocketHandler handler) {
+        return new WebSocketHandlerDecorator(handler) {
+
+            @Override
+            public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+                String id = sessionId(session);
+                if (id != null) {
+                    Integer maxInactiveInterval =
+                            (Integer) session.getAttributes().get(MAX_INACTIVE_INTERVAL_ATTR_NAME);
+                    register(id, maxInactiveInterval == null ? defaultMaxInactiveInterval : maxInactiveInterval);
+                }
+                super.afterConnectionEstablished(session);
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+                String id = sessionId(session);
+                if (id != null) {
+                    unregister(id);
+                }
+                super.afterConnectionClosed(session, closeStatus);
+            }
+        };
+    }
+
+    private static String sessionId(WebSocketSession session) {
+        return (String) session.getAttributes().get(HttpSessionHandshakeInterceptor.HTTP_SESSION_ID_ATTR_NAME);
+    }
+
+    /**
+     * The number of open connections of a session, and the interval it is touched with.
+     */
+    private static final class Connections {
+
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        private volatile int maxInactiveInterval;
+
+        private Connections(int maxInactiveInterval) {
+            this.maxInactiveInterval = maxInactiveInterval;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.transcoder.JsonTranscoder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, least recently used, copy of the sessions this node loaded or saved last. It lets
+ * {@link CouchbaseSessionRepository} keep serving the sessions it knows while Couchbase is unavailable, see
+ * {@link CouchbaseSessionRepository.DegradedPolicy#LOCAL_CACHE}.
+ *
+ * <p>
+ * The documents are kept with the CAS they had in Couchbase, so that a session modified while degraded can be merged
+ * safely once Couchbase is back. The sessions saved while degraded are marked dirty along with the names of the
+ * attributes they changed, and keep their mark until a save reaches Couchbase. A dirty session evicted from the cache
+ * loses its changes.
+ * </p>
+ *
+ * <p>
+ * With a {@link #setSnapshotFile(File) snapshot file}, the cache survives a restart: {@link #writeSnapshot()}, called
+ * by {@link CouchbaseSessionRepository#destroy()}, writes the sessions still alive to a memory-mapped file, and the
+ * next start maps that file instead of starting empty. The snapshot is not read onto the heap: the entries are found
+ * by a binary search on the hashes of their ids and decoded the first time they are asked for. The dirty marks are
+ * saved along, so the changes made while degraded are still merged after the restart. While Couchbase is available,
+ * the repository serves a clean entry of the snapshot only once an observe on its active node confirmed that the
+ * session still has the CAS of the entry, and drops the entry otherwise.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionLocalCache {
+
+    /**
+     * Default {@link #CouchbaseSessionLocalCache(int)} maximum size.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionLocalCache.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x53455353;
+
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Map<String, JsonDocument> documents;
+
+    private final JsonTranscoder transcoder = new JsonTranscoder();
+
+    private File snapshotFile;
+
+    private ByteBuffer snapshot;
+
+    private int snapshotCount;
+
+    /**
+     * Ids of the snapshot entries superseded by a put or remove since the restore, guarded by documents.
+     */
+    private final Set<String> snapshotShadowed = new HashSet<String>();
+
+    /**
+     * Names of the attributes changed while degraded, by id of the dirty sessions, guarded by documents.
+     */
+    private final Map<String, Set<String>> dirtyAttributeNames = new HashMap<String, Set<String>>();
+
+    public CouchbaseSessionLocalCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize the number of sessions kept, the least recently used ones are evicted first.
+     */
+    public CouchbaseSessionLocalCache(final int maxSize) {
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        this.documents = new LinkedHashMap<String, JsonDocument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JsonDocument> eldest) {
+                if (size() > maxSize) {
+                    dirtyAttributeNames.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Keeps a copy of the session as loaded from or saved to Couchbase, later changes to the session are not
+     * reflected. Clears the dirty mark of the session.
+     *
+     * @param session the session.
+     */
+    void put(CouchbaseSession session) {
+        JsonDocument document = JsonDocument.create(session.getId(), session.getMaxInactiveIntervalInSeconds(),
+                session.copySessionAttrs(), session.getCas());
+        synchronized (documents) {
+            documents.put(session.getId(), document);
+            dirtyAttributeNames.remove(session.getId());
+            shadowSnapshot(session.getId());
+        }
+    }
+
+    /**
+     * Keeps a copy of a session that could not be saved to Couchbase, and marks it dirty with the attributes it
+     * changed, added to those of its earlier degraded saves.
+     *
+     * @param session the session.
+     */
+    void putDirty(CouchbaseSession session) {
+        JsonDocument document = JsonDocument.create(session.getId(), session.getMaxInactiveIntervalInSeconds(),
+                session.copySessionAttrs(), session.getCas());
+        synchronized (documents) {
+            documents.put(session.getId(), document);
+            Set<String> attrNames = dirtyAttributeNames.get(session.getId());
+            if (attrNames == null) {
+                attrNames = new HashSet<String>();
+                dirtyAttributeNames.put(session.getId(), attrNames);
+            }
+            if (session.getChangedAttributeNames() != null) {
+                attrNames.addAll(session.getChangedAttributeNames());
+            }
+            shadowSnapshot(session.getId());
+        }
+    }
+
+    /**
+     * @param id the session id.
+     * @return the names of the attributes changed while degraded and not saved to Couchbase yet, null if the session
+     * is not dirty.
+     */
+    Set<String> getDirtyAttributeNames(String id) {
+        synchronized (documents) {
+            if (!documents.containsKey(id)) {
+                restoreFromSnapshot(id);
+            }
+            Set<String> attrNames = dirtyAttributeNames.get(id);
+            return attrNames == null ? null : new HashSet<String>(attrNames);
+        }
+    }
+
+    /**
+     * @param id the session id.
+     * @return the last known document of the session, null if unknown.
+     */
+    JsonDocument get(String id) {
+        synchronized (documents) {
+            JsonDocument document = documents.get(id);
+            return document == null ? restoreFromSnapshot(id) : document;
+        }
+    }
+
+    /**
+     * Reads the entry of a session from the snapshot without restoring it, for its CAS to be checked first.
+     *
+     * @param id the session id.
+     * @return the document of the session in the snapshot, null if it is not there, was already restored or
+     * superseded, or is dirty.
+     */
+    JsonDocument getSnapshotEntry(String id) {
+        synchronized (documents) {
+            if (snapshot == null || snapshotShadowed.contains(id)) {
+                return null;
+            }
+            SnapshotEntry entry = readSnapshot(id);
+            return entry == null || entry.dirtyAttributeNames != null ? null : entry.document;
+        }
+    }
+
+    /**
+     * Drops the entry of a session from the snapshot, because it is stale.
+     *
+     * @param id the session id.
+     */
+    void dropSnapshotEntry(String id) {
+        synchronized (documents) {
+            shadowSnapshot(id);
+        }
+    }
+
+    /**
+     * Records an access to a session touched in Couchbase without being saved, keeping its dirty mark.
+     *
+     * @param id the session id.
+     * @param lastAccessedTime when the session was touched.
+     */
+    void touch(String id, long lastAccessedTime) {
+        synchronized (documents) {
+            JsonDocument document = documents.get(id);
+            if (document == null) {
+                return;
+            }
+            JsonObject content = JsonObject.create();
+            for (String name : document.content().getNames()) {
+                content.put(name, document.content().get(name));
+            }
+            content.put(CouchbaseSessionRepository.LAST_ACCESSED_ATTR, lastAccessedTime);
+            documents.put(id, JsonDocument.create(id, document.expiry(), content, document.cas()));
+        }
+    }
+
+    void remove(String id) {
+        synchronized (documents) {
+            documents.remove(id);
+            dirtyAttributeNames.remove(id);
+            shadowSnapshot(id);
+        }
+    }
+
+    public int size() {
+        synchronized (documents) {
+            return documents.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (documents) {
+            documents.clear();
+            dirtyAttributeNames.clear();
+            dropSnapshot();
+        }
+    }
+
+    /**
+     * Sets the file the cache is saved to by {@link #writeSnapshot()}, and restores the cache from it if it exists.
+     *
+     * @param snapshotFile the snapshot file, null to start empty and not save the cache.
+     */
+    public void setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return;
+        }
+        try {
+            restore(snapshotFile);
+        } catch (IOException e) {
+            logger.warn("Could not restore the session cache from " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * @return the number of sessions of the restored snapshot not read or replaced yet.
+     */
+    public int getSnapshotSize() {
+        synchronized (documents) {
+            return snapshot == null ? 0 : snapshotCount - snapshotShadowed.size();
+        }
+    }
+
+    /**
+     * Writes the sessions of the cache that did not expire to the snapshot file, if any. The file is replaced
+     * atomically, so a crash while writing leaves the previous snapshot.
+     *
+     * @throws IOException if the file cannot be written.
+     */
+    public void writeSnapshot() throws IOException {
+        if (snapshotFile == null) {
+            return;
+        }
+        List<JsonDocument> alive = new ArrayList<JsonDocument>();
+        Map<String, Set<String>> dirty = new HashMap<String, Set<String>>();
+        synchronized (documents) {
+            for (JsonDocument document : documents.values()) {
+                if (!new CouchbaseSession(document).isExpired()) {
+                    alive.add(document);
+                }
+            }
+            for (Map.Entry<String, Set<String>> attrNames : dirtyAttributeNames.entrySet()) {
+                dirty.put(attrNames.getKey(), new HashSet<String>(attrNames.getValue()));
+            }
+        }
+        Collections.sort(alive, new Comparator<JsonDocument>() {
+            public int compare(JsonDocument a, JsonDocument b) {
+                int ha = a.id().hashCode();
+                int hb = b.id().hashCode();
+                return ha < hb ? -1 : (ha == hb ? 0 : 1);
+            }
+        });
+        byte[][] ids = new byte[alive.size()][];
+        byte[][][] dirtyNames = new byte[alive.size()][][];
+        byte[][] contents = new byte[alive.size()][];
+        int[] entrySizes = new int[alive.size()];
+        long size = HEADER_SIZE + (long) INDEX_ENTRY_SIZE * alive.size();
+        for (int i = 0; i < alive.size(); i++) {
+            ids[i] = alive.get(i).id().getBytes(UTF_8);
+            try {
+                contents[i] = transcoder.jsonObjectToString(alive.get(i).content()).getBytes(UTF_8);
+            } catch (Exception e) {
+                throw new IOException("Could not encode session " + alive.get(i).id(), e);
+            }
+            entrySizes[i] = 4 + ids[i].length + 8 + 4 + 4 + 4 + contents[i].length;
+            Set<String> attrNames = dirty.get(alive.get(i).id());
+            if (attrNames != null) {
+                dirtyNames[i] = new byte[attrNames.size()][];
+                int n = 0;
+                for (String attrName : attrNames) {
+                    dirtyNames[i][n] = attrName.getBytes(UTF_8);
+                    entrySizes[i] += 4 + dirtyNames[i][n++].length;
+                }
+            }
+            size += entrySizes[i];
+        }
+
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(tmp, "rw");
+        try {
+            file.setLength(0);
+            MappedByteBuffer out = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(alive.size());
+            int offset = (int) (HEADER_SIZE + (long) INDEX_ENTRY_SIZE * alive.size());
+            for (int i = 0; i < alive.size(); i++) {
+                out.putInt(alive.get(i).id().hashCode()).putInt(offset);
+                offset += entrySizes[i];
+            }
+            for (int i = 0; i < alive.size(); i++) {
+                JsonDocument document = alive.get(i);
+                out.putInt(ids[i].length).put(ids[i]).putLong(document.cas()).putInt(document.expiry());
+                // -1 for a clean session
+                out.putInt(dirtyNames[i] == null ? -1 : dirtyNames[i].length);
+                if (dirtyNames[i] != null) {
+                    for (byte[] attrName : dirtyNames[i]) {
+                        out.putInt(attrName.length).put(attrName);
+                    }
+                }
+                out.putInt(contents[i].length).put(contents[i]);
+            }
+            out.force();
+        } finally {
+            file.close();
+        }
+        if (!tmp.renameTo(snapshotFile) && !(snapshotFile.delete() && tmp.renameTo(snapshotFile))) {
+            throw new IOException("Could not replace " + snapshotFile);
+        }
+    }
+
+    private void restore(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid once the file is closed
+            MappedByteBuffer mapped = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != SNAPSHOT_MAGIC
+                    || mapped.getInt(4) != SNAPSHOT_VERSION) {
+                logger.warn("Ignoring " + file + ", not a session cache snapshot of this version");
+                return;
+            }
+            synchronized (documents) {
+                snapshot = mapped;
+                snapshotCount = mapped.getInt(8);
+                snapshotShadowed.clear();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Moves the entry of a session from the snapshot to the cache, along with its dirty mark. Guarded by documents.
+     *
+     * @return the document of the session, null if it is not in the snapshot.
+     */
+    private JsonDocument restoreFromSnapshot(String id) {
+        if (snapshot == null || snapshotShadowed.contains(id)) {
+            return null;
+        }
+        SnapshotEntry entry = readSnapshot(id);
+        if (entry == null) {
+            return null;
+        }
+        documents.put(id, entry.document);
+        if (entry.dirtyAttributeNames != null) {
+            dirtyAttributeNames.put(id, entry.dirtyAttributeNames);
+        }
+        shadowSnapshot(id);
+        return entry.document;
+    }
+
+    /**
+     * @return the entry of the session in the snapshot, null if it is not there. Guarded by documents.
+     */
+    private SnapshotEntry readSnapshot(String id) {
+        int offset = findInSnapshot(id);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer entry = snapshot.duplicate();
+        entry.position(offset);
+        entry.position(offset + 4 + entry.getInt());
+        long cas = entry.getLong();
+        int expiry = entry.getInt();
+        int dirtyCount = entry.getInt();
+        Set<String> dirty = dirtyCount < 0 ? null : new HashSet<String>();
+        for (int i = 0; i < dirtyCount; i++) {
+            byte[] attrName = new byte[entry.getInt()];
+            entry.get(attrName);
+            dirty.add(new String(attrName, UTF_8));
+        }
+        int length = entry.getInt();
+        entry.limit(entry.position() + length);
+        try {
+            JsonObject content = transcoder.byteBufToJsonObject(Unpooled.wrappedBuffer(entry.slice()));
+            return new SnapshotEntry(JsonDocument.create(id, expiry, content, cas), dirty);
+        } catch (Exception e) {
+            logger.warn("Could not decode session " + id + " from the snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the offset of the entry of the session in the snapshot, -1 if it is not there.
+     */
+    private int findInSnapshot(String id) {
+        int hash = id.hashCode();
+        int low = 0;
+        int high = snapshotCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (hashAt(middle) < hash) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        byte[] idBytes = null;
+        for (int i = low; i < snapshotCount && hashAt(i) == hash; i++) {
+            int offset = snapshot.getInt(HEADER_SIZE + i * INDEX_ENTRY_SIZE + 4);
+            if (idBytes == null) {
+                idBytes = id.getBytes(UTF_8);
+            }
+            if (snapshot.getInt(offset) == idBytes.length
+                    && Arrays.equals(idBytes, bytesAt(offset + 4, idBytes.length))) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private int hashAt(int index) {
+        return snapshot.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE);
+    }
+
+    private byte[] bytesAt(int offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = snapshot.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Makes sure an older version of the session is never read from the snapshot, and releases the snapshot once
+     * all its entries are superseded. Guarded by documents.
+     */
+    private void shadowSnapshot(String id) {
+        if (snapshot == null || snapshotShadowed.contains(id) || findInSnapshot(id) < 0) {
+            return;
+        }
+        snapshotShadowed.add(id);
+        if (snapshotShadowed.size() >= snapshotCount) {
+            dropSnapshot();
+        }
+    }
+
+    private void dropSnapshot() {
+        snapshot = null;
+        snapshotCount = 0;
+        snapshotShadowed.clear();
+    }
+
+    private static final class SnapshotEntry {
+
+        private final JsonDocument document;
+
+        /**
+         * Null if the session is clean.
+         */
+        private final Set<String> dirtyAttributeNames;
+
+        private SnapshotEntry(JsonDocument document, Set<String> dirtyAttributeNames) {
+            this.document = document;
+            this.dirtyAttributeNames = dirtyAttributeNames;
+        }
+    }
+}
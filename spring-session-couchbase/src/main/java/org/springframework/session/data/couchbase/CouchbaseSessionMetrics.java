@@ -0,0 +1,489 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Low overhead metrics of the session layer, recorded by {@link CouchbaseSessionRepository} and
+ * {@link SessionAttributeSerializer}.
+ *
+ * <p>
+ * Latencies and durations are recorded in microseconds, document sizes in bytes of UTF-8 encoded JSON, as sent to
+ * Couchbase. Measuring the size of a document means encoding it once more, so only one document out of
+ * {@link #setSizeSamplingInterval(int)} is measured.
+ * </p>
+ *
+ * <p>
+ * The instance exposed by
+ * {@link org.springframework.session.data.couchbase.config.annotation.web.http.CouchbaseHttpSessionConfiguration} is
+ * annotated for JMX and gets exported as soon as an {@code MBeanExporter} is registered, for instance with
+ * {@code @EnableMBeanExport}.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+@ManagedResource(objectName = "org.springframework.session:type=CouchbaseSessionMetrics",
+        description = "Spring Session Couchbase metrics")
+public class CouchbaseSessionMetrics {
+
+    /**
+     * Default {@link #setSizeSamplingInterval(int)}.
+     */
+    public static final int DEFAULT_SIZE_SAMPLING_INTERVAL = 16;
+
+    /**
+     * Duration of the windows of {@link #getRecentLoadLatency(long)}.
+     */
+    static final long RECENT_WINDOW_MILLIS = 30000;
+
+    private final SessionMetricsHistogram loadLatency = new SessionMetricsHistogram();
+
+    private volatile SessionMetricsHistogram currentWindowLoadLatency = new SessionMetricsHistogram();
+
+    private volatile SessionMetricsHistogram lastWindowLoadLatency = new SessionMetricsHistogram();
+
+    private final AtomicLong currentWindowStart = new AtomicLong(System.currentTimeMillis());
+
+    private final SessionMetricsHistogram saveLatency = new SessionMetricsHistogram();
+
+    private final SessionMetricsHistogram deleteLatency = new SessionMetricsHistogram();
+
+    private final SessionMetricsHistogram documentSizes = new SessionMetricsHistogram();
+
+    private final SessionMetricsHistogram serializationTime = new SessionMetricsHistogram();
+
+    private final SessionMetricsHistogram deserializationTime = new SessionMetricsHistogram();
+
+    private final SessionMetricsHistogram writeBehindLag = new SessionMetricsHistogram();
+
+    private final AtomicLong sessionsNotFound = new AtomicLong();
+
+    private final AtomicLong unchangedSaves = new AtomicLong();
+
+    private final AtomicLong degradedOperations = new AtomicLong();
+
+    private final AtomicLong deferredSaves = new AtomicLong();
+
+    private final AtomicLong deserializationCacheHits = new AtomicLong();
+
+    private final ConcurrentMap<Integer, AtomicLong> formatReads = new ConcurrentHashMap<Integer, AtomicLong>();
+
+    private final AtomicLong formatMigrations = new AtomicLong();
+
+    private final AtomicLong replicationChecks = new AtomicLong();
+
+    private final AtomicLong replicationFailures = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong retryGiveUps = new AtomicLong();
+
+    private final AtomicLong sizeSamples = new AtomicLong();
+
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+    private volatile int sizeSamplingInterval = DEFAULT_SIZE_SAMPLING_INTERVAL;
+
+    /**
+     * @param sizeSamplingInterval measure the size of one document out of this many. 1 measures all of them.
+     */
+    public void setSizeSamplingInterval(int sizeSamplingInterval) {
+        if (sizeSamplingInterval < 1) {
+            throw new IllegalArgumentException("sizeSamplingInterval must be at least 1");
+        }
+        this.sizeSamplingInterval = sizeSamplingInterval;
+    }
+
+    void recordLoad(long startNanos, boolean found) {
+        long micros = elapsedMicros(startNanos);
+        loadLatency.record(micros);
+        currentWindowLoadLatency.record(micros);
+        if (!found) {
+            sessionsNotFound.incrementAndGet();
+        }
+    }
+
+    void recordSave(long startNanos, boolean changed) {
+        saveLatency.record(elapsedMicros(startNanos));
+        if (!changed) {
+            unchangedSaves.incrementAndGet();
+        }
+    }
+
+    void recordDelete(long startNanos) {
+        deleteLatency.record(elapsedMicros(startNanos));
+    }
+
+    void recordDocumentSize(JsonObject content) {
+        if (content != null && sizeSamples.incrementAndGet() % sizeSamplingInterval == 0) {
+            documentSizes.record(utf8Length(content.toString()));
+        }
+    }
+
+    void recordSerialization(long startNanos) {
+        serializationTime.record(elapsedMicros(startNanos));
+    }
+
+    void recordDeserialization(long startNanos) {
+        deserializationTime.record(elapsedMicros(startNanos));
+    }
+
+    void recordWriteBehindLag(long dirtySinceNanos) {
+        writeBehindLag.record(elapsedMicros(dirtySinceNanos));
+    }
+
+    void recordDegraded() {
+        degradedOperations.incrementAndGet();
+    }
+
+    void recordDeferredSave() {
+        deferredSaves.incrementAndGet();
+    }
+
+    void recordDeserializationCacheHit() {
+        deserializationCacheHits.incrementAndGet();
+    }
+
+    void recordReplicationCheck(boolean replicated) {
+        replicationChecks.incrementAndGet();
+        if (!replicated) {
+            replicationFailures.incrementAndGet();
+        }
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    void recordRetryGiveUp() {
+        retryGiveUps.incrementAndGet();
+    }
+
+    void recordFormatRead(int version) {
+        AtomicLong count = formatReads.get(version);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = formatReads.putIfAbsent(version, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    void recordFormatMigration() {
+        formatMigrations.incrementAndGet();
+    }
+
+    void recordError(Throwable error) {
+        String type = error.getClass().getSimpleName();
+        AtomicLong count = errors.get(type);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = errors.putIfAbsent(type, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return the latency of {@link CouchbaseSessionRepository#getSession(String)} in microseconds.
+     */
+    public SessionMetricsHistogram getLoadLatency() {
+        return loadLatency;
+    }
+
+    /**
+     * The load latency of the last complete window of {@value #RECENT_WINDOW_MILLIS}ms, unlike
+     * {@link #getLoadLatency()} it follows the changes of the latency. The windows are rotated by the calls to this
+     * method, the values recorded meanwhile fall in the window that was current.
+     *
+     * @param now the current time in milliseconds.
+     * @return the latency in microseconds, empty until a window completes.
+     */
+    SessionMetricsHistogram getRecentLoadLatency(long now) {
+        long start = currentWindowStart.get();
+        if (now - start >= RECENT_WINDOW_MILLIS && currentWindowStart.compareAndSet(start, now)) {
+            lastWindowLoadLatency = currentWindowLoadLatency;
+            currentWindowLoadLatency = new SessionMetricsHistogram();
+        }
+        return lastWindowLoadLatency;
+    }
+
+    /**
+     * @return the latency of {@link CouchbaseSessionRepository#save(CouchbaseSession)} in microseconds.
+     */
+    public SessionMetricsHistogram getSaveLatency() {
+        return saveLatency;
+    }
+
+    /**
+     * @return the latency of {@link CouchbaseSessionRepository#delete(String)} in microseconds.
+     */
+    public SessionMetricsHistogram getDeleteLatency() {
+        return deleteLatency;
+    }
+
+    /**
+     * @return the sampled size of the loaded and saved documents in bytes.
+     */
+    public SessionMetricsHistogram getDocumentSizes() {
+        return documentSizes;
+    }
+
+    /**
+     * @return the time spent serializing a single attribute in microseconds.
+     */
+    public SessionMetricsHistogram getSerializationTime() {
+        return serializationTime;
+    }
+
+    /**
+     * @return the time spent deserializing a single attribute in microseconds.
+     */
+    public SessionMetricsHistogram getDeserializationTime() {
+        return deserializationTime;
+    }
+
+    /**
+     * @return the time between a session being queued by {@link CouchbaseSessionWriteBehindQueue} and its write to
+     * Couchbase, in microseconds.
+     */
+    public SessionMetricsHistogram getWriteBehindLag() {
+        return writeBehindLag;
+    }
+
+    /**
+     * @return the error counts keyed by the simple name of the exception type.
+     */
+    @ManagedAttribute(description = "Errors by exception type")
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @ManagedAttribute(description = "Number of session loads")
+    public long getLoadCount() {
+        return loadLatency.getCount();
+    }
+
+    @ManagedAttribute(description = "Number of session loads that did not find the session")
+    public long getNotFoundCount() {
+        return sessionsNotFound.get();
+    }
+
+    @ManagedAttribute(description = "Number of session saves")
+    public long getSaveCount() {
+        return saveLatency.getCount();
+    }
+
+    @ManagedAttribute(description = "Number of session saves that did not change anything but the last access time")
+    public long getUnchangedSaveCount() {
+        return unchangedSaves.get();
+    }
+
+    @ManagedAttribute(description = "Number of session deletes")
+    public long getDeleteCount() {
+        return deleteLatency.getCount();
+    }
+
+    @ManagedAttribute(description = "Number of session operations handled by the degraded policy")
+    public long getDegradedCount() {
+        return degradedOperations.get();
+    }
+
+    @ManagedAttribute(description = "Number of saves skipped because the new session held no application attribute")
+    public long getDeferredSaveCount() {
+        return deferredSaves.get();
+    }
+
+    @ManagedAttribute(description = "Number of attributes served by the deserialized attribute cache")
+    public long getDeserializationCacheHitCount() {
+        return deserializationCacheHits.get();
+    }
+
+    /**
+     * @return the number of sessions loaded per document format version.
+     */
+    @ManagedAttribute(description = "Number of sessions loaded per document format version")
+    public Map<Integer, Long> getFormatReadCounts() {
+        Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, AtomicLong> entry : formatReads.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts;
+    }
+
+    @ManagedAttribute(description = "Number of sessions saved in a newer document format than they were loaded in")
+    public long getFormatMigrationCount() {
+        return formatMigrations.get();
+    }
+
+    @ManagedAttribute(description = "Number of writes whose replication was checked in the background")
+    public long getReplicationCheckCount() {
+        return replicationChecks.get();
+    }
+
+    @ManagedAttribute(description = "Number of writes found on fewer replicas than required by the background check")
+    public long getReplicationFailureCount() {
+        return replicationFailures.get();
+    }
+
+    @ManagedAttribute(description = "Number of operations retried after a temporary failure")
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    @ManagedAttribute(description = "Number of operations that kept failing temporarily until the retry policy gave up")
+    public long getRetryGiveUpCount() {
+        return retryGiveUps.get();
+    }
+
+    @ManagedAttribute(description = "99th percentile of the session load latency in microseconds")
+    public long getLoadLatencyP99() {
+        return loadLatency.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99.9th percentile of the session load latency in microseconds")
+    public long getLoadLatencyP999() {
+        return loadLatency.getValueAtPercentile(99.9);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the session save latency in microseconds")
+    public long getSaveLatencyP99() {
+        return saveLatency.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99.9th percentile of the session save latency in microseconds")
+    public long getSaveLatencyP999() {
+        return saveLatency.getValueAtPercentile(99.9);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the session delete latency in microseconds")
+    public long getDeleteLatencyP99() {
+        return deleteLatency.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the write-behind lag in microseconds")
+    public long getWriteBehindLagP99() {
+        return writeBehindLag.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "Median document size in bytes")
+    public long getDocumentSizeP50() {
+        return documentSizes.getValueAtPercentile(50);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the document size in bytes")
+    public long getDocumentSizeP99() {
+        return documentSizes.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the attribute serialization time in microseconds")
+    public long getSerializationTimeP99() {
+        return serializationTime.getValueAtPercentile(99);
+    }
+
+    @ManagedAttribute(description = "99th percentile of the attribute deserialization time in microseconds")
+    public long getDeserializationTimeP99() {
+        return deserializationTime.getValueAtPercentile(99);
+    }
+
+    /**
+     * Clears all the metrics.
+     */
+    @ManagedOperation(description = "Clears all the metrics")
+    public void reset() {
+        loadLatency.reset();
+        currentWindowLoadLatency = new SessionMetricsHistogram();
+        lastWindowLoadLatency = new SessionMetricsHistogram();
+        currentWindowStart.set(System.currentTimeMillis());
+        saveLatency.reset();
+        deleteLatency.reset();
+        documentSizes.reset();
+        serializationTime.reset();
+        deserializationTime.reset();
+        writeBehindLag.reset();
+        sessionsNotFound.set(0);
+        unchangedSaves.set(0);
+        degradedOperations.set(0);
+        deferredSaves.set(0);
+        deserializationCacheHits.set(0);
+        formatReads.clear();
+        formatMigrations.set(0);
+        replicationChecks.set(0);
+        replicationFailures.set(0);
+        retries.set(0);
+        retryGiveUps.set(0);
+        errors.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "CouchbaseSessionMetrics{load={" + loadLatency + "}, save={" + saveLatency + "}, delete={"
+                + deleteLatency + "}, documentSizes={" + documentSizes + "}, serialization={" + serializationTime
+                + "}, deserialization={" + deserializationTime + "}, writeBehindLag={" + writeBehindLag
+                + "}, notFound=" + sessionsNotFound
+                + ", unchangedSaves=" + unchangedSaves + ", degraded=" + degradedOperations
+                + ", deferred=" + deferredSaves + ", deserializationCacheHits=" + deserializationCacheHits
+                + ", formatReads=" + getFormatReadCounts() + ", formatMigrations=" + formatMigrations
+                + ", replicationChecks=" + replicationChecks + ", replicationFailures=" + replicationFailures
+                + ", retries=" + retries + ", retryGiveUps=" + retryGiveUps + ", errors=" + getErrorCounts() + "}";
+    }
+
+    /**
+     * @return the length of the UTF-8 encoding of the string, without encoding it.
+     */
+    static int utf8Length(CharSequence chars) {
+        int length = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static long elapsedMicros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.springframework.session.web.http.HttpSessionStrategy;
+import org.springframework.util.Assert;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Starts loading the requested session as soon as the request enters, then hands over to the
+ * {@link org.springframework.session.web.http.SessionRepositoryFilter}. The session is joined when the request first
+ * accesses it, by then the security filters and the routing have run alongside the round trip. The prefetch is dropped
+ * when the request leaves, whether or not the session was used.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionPrefetchFilter extends OncePerRequestFilter {
+
+    private final Filter sessionRepositoryFilter;
+
+    private final SessionPrefetcher prefetcher;
+
+    private final HttpSessionStrategy httpSessionStrategy;
+
+    /**
+     * @param sessionRepositoryFilter the filter handling the session of the request.
+     * @param prefetcher the repository used by that filter.
+     * @param httpSessionStrategy the strategy used by that filter to read the session id.
+     */
+    public CouchbaseSessionPrefetchFilter(Filter sessionRepositoryFilter, SessionPrefetcher prefetcher,
+            HttpSessionStrategy httpSessionStrategy) {
+        Assert.notNull(sessionRepositoryFilter, "sessionRepositoryFilter cannot be null");
+        Assert.notNull(prefetcher, "prefetcher cannot be null");
+        Assert.notNull(httpSessionStrategy, "httpSessionStrategy cannot be null");
+        this.sessionRepositoryFilter = sessionRepositoryFilter;
+        this.prefetcher = prefetcher;
+        this.httpSessionStrategy = httpSessionStrategy;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String id = httpSessionStrategy.getRequestedSessionId(request);
+        if (id != null) {
+            prefetcher.prefetch(id);
+        }
+        try {
+            sessionRepositoryFilter.doFilter(request, response, filterChain);
+        } finally {
+            prefetcher.cancelPrefetch();
+        }
+    }
+}
@@ -15,31 +15,118 @@
  */
 package org.springframework.session.data.couchbase;
 
+import com.couchbase.client.core.ClusterFacade;
+import com.couchbase.client.core.message.kv.ObserveRequest;
+import com.couchbase.client.core.message.kv.ObserveResponse;
 import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.PersistTo;
+import com.couchbase.client.java.ReplicaMode;
+import com.couchbase.client.java.ReplicateTo;
 import com.couchbase.client.java.document.JsonDocument;
 import com.couchbase.client.java.document.SerializableDocument;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.CASMismatchException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.MapSession;
 import org.springframework.session.SessionRepository;
 import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
 import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.subjects.AsyncSubject;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A {@link org.springframework.session.SessionRepository} for
  * {@link org.springframework.session.data.couchbase.CouchbaseSession}. It's backed by a couchbase bucket.
  *
  * <p>
- * The implementation does NOT support firing {@link org.springframework.session.events.SessionDestroyedEvent}.
+ * The implementation does NOT support firing {@link org.springframework.session.events.SessionDestroyedEvent} on its
+ * own. Use the DCP based listener or set a {@link CouchbaseSessionExpirationTracker}.
+ * </p>
+ *
+ * <p>
+ * With {@link #setHedgedReads(boolean)}, a session that the active node does not return within the
+ * {@link #setHedgeDelayPercentile(double) usual} load latency is also read from the replicas, and the first answer
+ * wins. The active node stays authoritative: a replica answer never turns into a missing session, expired replica
+ * copies are ignored, and a session read from a replica is saved with a CAS replace. If the document changed in the
+ * meantime, the attributes modified by the request are merged into the active version; if it was deleted, the session
+ * is not resurrected.
+ * </p>
+ *
+ * <p>
+ * A slow Couchbase should degrade the service rather than take it down. Every operation can be bounded by a timeout,
+ * the number of operations in flight can be limited with {@link #setMaxConcurrentOperations(int)}, and a
+ * {@link CouchbaseSessionCircuitBreaker} stops calling Couchbase after repeated failures. Operations that are rejected
+ * by the limit or the open breaker are handled by the {@link DegradedPolicy}.
+ * </p>
+ *
+ * <p>
+ * With a {@link CouchbaseSessionWriteBehindQueue}, {@link #save(CouchbaseSession)} only queues the session and returns.
+ * This node reads its own pending writes, the other nodes see them once flushed. Sessions read from a replica or from
+ * the local cache keep being saved synchronously, as they need a CAS replace.
+ * </p>
+ *
+ * <p>
+ * {@link #getSessions(Collection)} and {@link #deleteSessions(Collection)} serve administrative tools that handle many
+ * sessions at once: the ids are fanned out over the bucket with at most {@link #setBulkConcurrency(int)} operations in
+ * flight, and the whole batch counts as a single operation for the limit and the circuit breaker.
  * </p>
  *
  * @author Laurent Doguin
  * @since 1.0
  */
-public class CouchbaseSessionRepository implements SessionRepository<CouchbaseSession> {
+public class CouchbaseSessionRepository implements SessionRepository<CouchbaseSession>, SessionPrefetcher,
+        SessionToucher, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionRepository.class);
+
+    /**
+     * What happens to the session operations that cannot reach Couchbase because too many operations are in flight or
+     * the circuit breaker is open.
+     */
+    public enum DegradedPolicy {
+
+        /**
+         * Throw a {@link CouchbaseSessionUnavailableException}.
+         */
+        FAIL_FAST,
+
+        /**
+         * Serve and update the sessions from a {@link CouchbaseSessionLocalCache} of the sessions this node used last.
+         * The sessions modified meanwhile are merged into Couchbase when they are loaded or saved again after the
+         * outage. Deleted sessions are only removed from the cache and expire in Couchbase.
+         */
+        LOCAL_CACHE,
+
+        /**
+         * Handle the request with an empty session that keeps the requested id but is never saved, so the client keeps
+         * its session once Couchbase is back.
+         */
+        ANONYMOUS
+    }
 
     public static final String CREATION_TIME_ATTR = "creationTime";
 
@@ -47,6 +134,34 @@ public class CouchbaseSessionRepository implements SessionRepository<CouchbaseSe
 
     public static final String LAST_ACCESSED_ATTR = "lastAccessedTime";
 
+    /**
+     * Default {@link #setHedgeDelayPercentile(double)}.
+     */
+    public static final double DEFAULT_HEDGE_DELAY_PERCENTILE = 95;
+
+    /**
+     * Delay before a replica read while too few loads were measured to compute a percentile.
+     */
+    static final long DEFAULT_HEDGE_DELAY_MICROS = 10000;
+
+    private static final long MIN_HEDGE_DELAY_MICROS = 500;
+
+    private static final long MIN_HEDGE_SAMPLES = 100;
+
+    private static final long HEDGE_DELAY_REFRESH_MILLIS = 1000;
+
+    private static final int MAX_CAS_ATTEMPTS = 3;
+
+    /**
+     * Default {@link #setBulkConcurrency(int)}.
+     */
+    public static final int DEFAULT_BULK_CONCURRENCY = 64;
+
+    /**
+     * Default {@link #setReplicationCheckDelayMillis(long)}.
+     */
+    public static final long DEFAULT_REPLICATION_CHECK_DELAY_MILLIS = 100;
+
     /**
 	 * If non-null, this value is used to override {@link org.springframework.session.ExpiringSession#setMaxInactiveIntervalInSeconds(int)}.
 	 */
@@ -54,9 +169,63 @@ public class CouchbaseSessionRepository implements SessionRepository<CouchbaseSe
 
 	private final AsyncBucket asyncBucket;
 
+	private CouchbaseSessionExpirationTracker expirationTracker;
+
+	private CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+
+	private final SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+
+	private boolean deferEmptySessions;
+
+	private boolean hedgedReads;
+
+	private double hedgeDelayPercentile = DEFAULT_HEDGE_DELAY_PERCENTILE;
+
+	private volatile long hedgeDelayMicros = DEFAULT_HEDGE_DELAY_MICROS;
+
+	private volatile long hedgeDelayComputedAt;
+
+	private long loadTimeoutMillis;
+
+	private long saveTimeoutMillis;
+
+	private long deleteTimeoutMillis;
+
+	private Semaphore bulkhead;
+
+	private CouchbaseSessionCircuitBreaker circuitBreaker;
+
+	private DegradedPolicy degradedPolicy = DegradedPolicy.FAIL_FAST;
+
+	private CouchbaseSessionLocalCache localCache;
+
+	private CouchbaseSessionWriteBehindQueue writeBehindQueue;
+
+	private SessionDocumentFormats documentFormats = new SessionDocumentFormats();
+
+	private OffloadedAttributeStore offloadStore;
+
+	private final ThreadLocal<Prefetch> prefetches = new ThreadLocal<Prefetch>();
+
+	private int bulkConcurrency = DEFAULT_BULK_CONCURRENCY;
+
+	private Durability saveDurability = Durability.NONE;
+
+	private Durability createDurability = Durability.NONE;
+
+	private Durability deleteDurability = Durability.NONE;
+
+	private boolean asyncReplicationCheck;
+
+	private CouchbaseSessionRetryPolicy retryPolicy;
+
+	private long replicationCheckDelayMillis = DEFAULT_REPLICATION_CHECK_DELAY_MILLIS;
+
     public CouchbaseSessionRepository(AsyncBucket asyncBucket) {
         Assert.notNull(asyncBucket, "connectionFactory cannot be null");
         this.asyncBucket = asyncBucket;
+        this.serializer.setMetrics(metrics);
+        this.serializer.setDocumentFormats(documentFormats);
     }
 
 	/**
@@ -67,35 +236,1358 @@ public class CouchbaseSessionRepository implements SessionRepository<CouchbaseSe
 		this.defaultMaxInactiveInterval = Integer.valueOf(defaultMaxInactiveInterval);
 	}
 
+	/**
+	 * If non-null, the sessions saved through this repository are tracked locally so that a
+	 * {@link org.springframework.session.events.SessionDestroyedEvent} is fired when they expire.
+	 * @param expirationTracker the tracker to notify on save and delete.
+	 */
+	public void setExpirationTracker(CouchbaseSessionExpirationTracker expirationTracker) {
+		this.expirationTracker = expirationTracker;
+	}
+
+	/**
+	 * Sets the formats the session documents are read and written with.
+	 * @param documentFormats the formats, cannot be null.
+	 */
+	public void setDocumentFormats(SessionDocumentFormats documentFormats) {
+		Assert.notNull(documentFormats, "documentFormats cannot be null");
+		this.documentFormats = documentFormats;
+		this.serializer.setDocumentFormats(documentFormats);
+	}
+
+	/**
+	 * Stores the attributes of the types the codec handles as JSON objects instead of Java serialization, once the
+	 * sessions are written with a format that {@link SessionDocumentFormat#storesCodecValues() stores codec values}.
+	 * @param codec the codec, to register on every node before any node writes such a format.
+	 * @see SessionAttributeSerializer#addCodec(SessionAttributeCodec)
+	 */
+	public void addAttributeCodec(SessionAttributeCodec codec) {
+		this.serializer.addCodec(codec);
+	}
+
+	/**
+	 * Registers the codec storing the Spring Security context of form and basic logins as a small JSON object, see
+	 * {@link #addAttributeCodec(SessionAttributeCodec)}. Spring Security must be on the class path.
+	 */
+	public void addSecurityContextCodec() {
+		Assert.state(ClassUtils.isPresent("org.springframework.security.core.context.SecurityContextImpl",
+				getClass().getClassLoader()), "Spring Security is not on the class path");
+		addAttributeCodec(new SecurityContextCodec(serializer));
+	}
+
+	/**
+	 * Stores the attributes whose serialized value is longer than the threshold in documents of their own, read only
+	 * when the attribute is asked for and written only when it is set, so that the session document loaded and saved
+	 * on every request stays small.
+	 * @param offloadThreshold the length in characters of the serialized value above which an attribute is stored
+	 * apart, 0 to store all the attributes in the session document.
+	 */
+	public void setAttributeOffloadThreshold(int offloadThreshold) {
+		Assert.isTrue(offloadThreshold >= 0, "offloadThreshold cannot be negative");
+		this.offloadStore = offloadThreshold > 0 ? new OffloadedAttributeStore(this, asyncBucket, offloadThreshold) : null;
+	}
+
+	/**
+	 * @param classLoader the class loader the classes of the Java serialized attributes are resolved with, typically
+	 * the bean class loader of the application.
+	 * @see SessionAttributeSerializer#setClassLoader(ClassLoader)
+	 */
+	public void setAttributeClassLoader(ClassLoader classLoader) {
+		this.serializer.setClassLoader(classLoader);
+	}
+
+	/**
+	 * Rejects the Java serialized attributes made of other classes than these.
+	 * @param allowedClasses class names or package patterns, none to allow all the classes.
+	 * @see SessionAttributeSerializer#setAllowedClasses(String...)
+	 */
+	public void setAllowedAttributeClasses(String... allowedClasses) {
+		this.serializer.setAllowedClasses(allowedClasses);
+	}
+
+	/**
+	 * Shares the deserialized values of the immutable attribute types between the sessions loaded by this node.
+	 * @param deserializedCache the cache, may be shared with other repositories. Null to deserialize every time.
+	 */
+	public void setDeserializedAttributeCache(DeserializedAttributeCache deserializedCache) {
+		this.serializer.setDeserializedCache(deserializedCache);
+	}
+
+	/**
+	 * Sets the metrics recorded by this repository, typically to share them with other components.
+	 * @param metrics the metrics to record into. Cannot be null.
+	 */
+	public void setMetrics(CouchbaseSessionMetrics metrics) {
+		Assert.notNull(metrics, "metrics cannot be null");
+		this.metrics = metrics;
+		this.serializer.setMetrics(metrics);
+		if (writeBehindQueue != null) {
+			writeBehindQueue.setMetrics(metrics);
+		}
+	}
+
+	/**
+	 * @return the metrics recorded by this repository.
+	 */
+	public CouchbaseSessionMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Does not write the new sessions to Couchbase as long as they hold no application attribute, so that clients
+	 * which never use their session, such as crawlers and health checks, do not leave a document behind. The id of
+	 * such a session is kept, so it is written under the same id once an attribute is set, but a client coming back
+	 * with it before that gets a new session.
+	 * @param deferEmptySessions true to defer the first write of the new sessions.
+	 */
+	public void setDeferEmptySessions(boolean deferEmptySessions) {
+		this.deferEmptySessions = deferEmptySessions;
+	}
+
+	/**
+	 * Reads the sessions from the replicas as well when the active node is slow to answer.
+	 * @param hedgedReads true to enable the hedged reads, requires at least one replica on the bucket.
+	 */
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	/**
+	 * @param hedgeDelayPercentile the percentile of the recent load latency after which the replicas are read,
+	 * between 0 and 100. The higher, the fewer additional reads.
+	 */
+	public void setHedgeDelayPercentile(double hedgeDelayPercentile) {
+		Assert.isTrue(hedgeDelayPercentile > 0 && hedgeDelayPercentile <= 100,
+				"hedgeDelayPercentile must be between 0 and 100");
+		this.hedgeDelayPercentile = hedgeDelayPercentile;
+		this.hedgeDelayComputedAt = 0;
+	}
+
+	/**
+	 * @param loadTimeoutMillis the time {@link #getSession(String)} waits for Couchbase, 0 to rely on the client
+	 * timeouts only.
+	 */
+	public void setLoadTimeoutMillis(long loadTimeoutMillis) {
+		this.loadTimeoutMillis = loadTimeoutMillis;
+	}
+
+	/**
+	 * @param saveTimeoutMillis the time {@link #save(CouchbaseSession)} waits for Couchbase, 0 to rely on the client
+	 * timeouts only.
+	 */
+	public void setSaveTimeoutMillis(long saveTimeoutMillis) {
+		this.saveTimeoutMillis = saveTimeoutMillis;
+	}
+
+	/**
+	 * @param deleteTimeoutMillis the time {@link #delete(String)} waits for Couchbase, 0 to rely on the client
+	 * timeouts only.
+	 */
+	public void setDeleteTimeoutMillis(long deleteTimeoutMillis) {
+		this.deleteTimeoutMillis = deleteTimeoutMillis;
+	}
+
+	/**
+	 * Sets the same timeout for the loads, saves and deletes.
+	 * @param operationTimeoutMillis the time an operation waits for Couchbase, 0 to rely on the client timeouts only.
+	 */
+	public void setOperationTimeoutMillis(long operationTimeoutMillis) {
+		setLoadTimeoutMillis(operationTimeoutMillis);
+		setSaveTimeoutMillis(operationTimeoutMillis);
+		setDeleteTimeoutMillis(operationTimeoutMillis);
+	}
+
+	/**
+	 * Bounds the number of threads of this node waiting for Couchbase at the same time, the operations above the
+	 * limit are handled by the {@link DegradedPolicy} right away.
+	 * @param maxConcurrentOperations the maximum number of operations in flight, 0 for no limit.
+	 */
+	public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+		Assert.isTrue(maxConcurrentOperations >= 0, "maxConcurrentOperations cannot be negative");
+		this.bulkhead = maxConcurrentOperations == 0 ? null : new Semaphore(maxConcurrentOperations);
+	}
+
+	/**
+	 * @param circuitBreaker the breaker the operations go through, null to always call Couchbase.
+	 */
+	public void setCircuitBreaker(CouchbaseSessionCircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * @return the breaker the operations go through, may be null.
+	 */
+	public CouchbaseSessionCircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * @param degradedPolicy what to do with the operations that cannot reach Couchbase. Cannot be null.
+	 */
+	public void setDegradedPolicy(DegradedPolicy degradedPolicy) {
+		Assert.notNull(degradedPolicy, "degradedPolicy cannot be null");
+		this.degradedPolicy = degradedPolicy;
+		if (degradedPolicy == DegradedPolicy.LOCAL_CACHE && localCache == null) {
+			localCache = new CouchbaseSessionLocalCache();
+		}
+	}
+
+	/**
+	 * @param localCache the cache used by {@link DegradedPolicy#LOCAL_CACHE}, to change its size.
+	 */
+	public void setLocalCache(CouchbaseSessionLocalCache localCache) {
+		this.localCache = localCache;
+	}
+
+	/**
+	 * Saves the sessions in the background.
+	 * @param writeBehindQueue the queue the sessions go through, null to save them synchronously.
+	 */
+	public void setWriteBehindQueue(CouchbaseSessionWriteBehindQueue writeBehindQueue) {
+		this.writeBehindQueue = writeBehindQueue;
+		if (writeBehindQueue != null) {
+			writeBehindQueue.setMetrics(metrics);
+			writeBehindQueue.setSavedCallback(new Action1<JsonDocument>() {
+				public void call(JsonDocument saved) {
+					if (expirationTracker != null) {
+						expirationTracker.track(new CouchbaseSession(saved), saved.cas());
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Flushes the sessions still waiting in the write-behind queue, and saves the local cache to its snapshot file if
+	 * it has one.
+	 */
+	public void destroy() {
+		if (writeBehindQueue != null) {
+			writeBehindQueue.shutdown();
+		}
+		if (localCache != null) {
+			try {
+				localCache.writeSnapshot();
+			} catch (IOException e) {
+				logger.warn("Could not save the local session cache", e);
+			}
+		}
+	}
+
+	/**
+	 * @param bulkConcurrency the number of operations in flight at most during {@link #getSessions(Collection)} and
+	 * {@link #deleteSessions(Collection)}.
+	 */
+	public void setBulkConcurrency(int bulkConcurrency) {
+		Assert.isTrue(bulkConcurrency > 0, "bulkConcurrency must be positive");
+		this.bulkConcurrency = bulkConcurrency;
+	}
+
+	/**
+	 * Sets the durability the saves of the sessions already in Couchbase wait for. The saves of the write-behind queue
+	 * are not concerned.
+	 * @param persistTo the number of nodes the document must be persisted to.
+	 * @param replicateTo the number of replicas the document must be replicated to.
+	 */
+	public void setSaveDurability(PersistTo persistTo, ReplicateTo replicateTo) {
+		this.saveDurability = new Durability(persistTo, replicateTo);
+	}
+
+	/**
+	 * Sets the durability the first save of a session waits for, typically the session created on login.
+	 * @param persistTo the number of nodes the document must be persisted to.
+	 * @param replicateTo the number of replicas the document must be replicated to.
+	 */
+	public void setCreateDurability(PersistTo persistTo, ReplicateTo replicateTo) {
+		this.createDurability = new Durability(persistTo, replicateTo);
+	}
+
+	/**
+	 * Sets the durability the deletes of the sessions wait for.
+	 * @param persistTo the number of nodes the removal must be persisted to.
+	 * @param replicateTo the number of replicas the removal must be replicated to.
+	 */
+	public void setDeleteDurability(PersistTo persistTo, ReplicateTo replicateTo) {
+		this.deleteDurability = new Durability(persistTo, replicateTo);
+	}
+
+	/**
+	 * Acknowledges the saves and deletes as soon as the active node applied them, and checks in the background that
+	 * the replicas required by their durability got them, see
+	 * {@link CouchbaseSessionMetrics#getReplicationFailureCount()}. The replicas are read after
+	 * {@link #setReplicationCheckDelayMillis(long)}: a copy with the CAS of the write counts as replicated, and a copy
+	 * with a higher CAS means a later write superseded this one. The persistence cannot be checked that way and is not
+	 * waited for in this mode.
+	 * @param asyncReplicationCheck true to trade the durability guarantee for the latency of a plain write.
+	 */
+	public void setAsyncReplicationCheck(boolean asyncReplicationCheck) {
+		this.asyncReplicationCheck = asyncReplicationCheck;
+	}
+
+	/**
+	 * @param replicationCheckDelayMillis how long after a write its replication is checked, when
+	 * {@link #setAsyncReplicationCheck(boolean)} is enabled.
+	 */
+	public void setReplicationCheckDelayMillis(long replicationCheckDelayMillis) {
+		this.replicationCheckDelayMillis = replicationCheckDelayMillis;
+	}
+
+	/**
+	 * Retries the reads, upserts, touches and removes that failed on a temporary overload of Couchbase or of the
+	 * client, within the timeout of the operation.
+	 * @param retryPolicy the policy, null to fail on the first error.
+	 */
+	public void setRetryPolicy(CouchbaseSessionRetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
 	public void save(CouchbaseSession session) {
-        JsonDocument sd = JsonDocument.create(
-                session.getId(), session.getMaxInactiveIntervalInSeconds(), session.getSessionAttrs());
-        asyncBucket.upsert(sd).toBlocking().single();
+        if (session.isPlaceholder()) {
+            return;
+        }
+        if (deferEmptySessions && !session.isPersisted() && !session.hasApplicationAttributes()) {
+            metrics.recordDeferredSave();
+            return;
+        }
+        long start = System.nanoTime();
+        boolean changed = session.isChanged();
+        Durability durability = session.isPersisted() ? saveDurability : createDurability;
+        if (session.getFormatVersion() != 0 && session.getFormatVersion() != documentFormats.getWriteVersion()) {
+            metrics.recordFormatMigration();
+            session.setFormatVersion(documentFormats.getWriteVersion());
+        }
+        if (writeBehindQueue != null && !session.isFromReplica() && offloadBeforeWriteBehind(session)) {
+            if (writeBehindQueue.offer(JsonDocument.create(session.getId(), session.getMaxInactiveIntervalInSeconds(),
+                    encode(session.copySessionAttrs())))) {
+                session.markSaved();
+                if (localCache != null) {
+                    localCache.put(session);
+                }
+                metrics.recordSave(start, changed);
+                return;
+            }
+        }
+        if (!acquire()) {
+            degradedSave(session);
+            return;
+        }
+        RuntimeException failure = null;
+        try {
+            if (localCache != null && session.isFromReplica()) {
+                Set<String> dirty = localCache.getDirtyAttributeNames(session.getId());
+                if (dirty != null) {
+                    // the earlier requests served while degraded changed these as well
+                    session.addChangedAttributeNames(dirty);
+                }
+            }
+            offload(session);
+            JsonDocument sd = JsonDocument.create(
+                    session.getId(), session.getMaxInactiveIntervalInSeconds(), encode(session.getSessionAttrs()));
+            metrics.recordDocumentSize(sd.content());
+            JsonDocument saved = session.isFromReplica() && session.getCas() != 0
+                    ? replace(session, durability) : await(upsert(sd, durability), saveTimeoutMillis);
+            if (saved == null) {
+                return;
+            }
+            if (asyncReplicationCheck) {
+                checkReplication(saved.id(), saved.cas(), durability);
+            }
+            session.setCas(saved.cas());
+            session.markSaved();
+            if (localCache != null) {
+                localCache.put(session);
+            }
+            if (expirationTracker != null) {
+                expirationTracker.track(session, saved.cas());
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            metrics.recordError(e);
+            throw e;
+        } finally {
+            release(failure);
+            metrics.recordSave(start, changed);
+        }
 	}
 
 	public CouchbaseSession getSession(String id) {
-        return asyncBucket.get(id).singleOrDefault(null).map(
-                new Func1<JsonDocument, CouchbaseSession>() {
-                    @Override
-                    public CouchbaseSession call(JsonDocument jd) {
-                        if (jd == null) return null;
-                        CouchbaseSession session = new CouchbaseSession(jd);
-                        session.setLastAccessedTime(System.currentTimeMillis());
-//                        asyncBucket.touch(jd).subscribe();
-                        return session;
-                    }
-                }).toBlocking().single();
+        if (writeBehindQueue != null) {
+            JsonDocument pending = writeBehindQueue.get(id);
+            if (pending != null) {
+                return toSession(false).call(pending);
+            }
+        }
+        Prefetch prefetch = prefetches.get();
+        if (prefetch != null && prefetch.id.equals(id)) {
+            prefetches.remove();
+            return join(prefetch);
+        }
+        if (!acquire()) {
+            return degradedGet(id);
+        }
+        long start = System.nanoTime();
+        CouchbaseSession session = null;
+        RuntimeException failure = null;
+        try {
+            session = await(load(id), loadTimeoutMillis);
+            if (localCache != null) {
+                session = replayDegradedChanges(id, session);
+            }
+            return session;
+        } catch (RuntimeException e) {
+            failure = e;
+            metrics.recordError(e);
+            throw e;
+        } finally {
+            release(failure);
+            metrics.recordLoad(start, session != null);
+        }
 	}
 
+    /**
+     * Starts loading a session on the calling thread's behalf, under the same bulkhead, circuit breaker, timeout,
+     * snapshot and hedging rules as {@link #getSession(String)}. Nothing is started when the operation would be
+     * rejected, the following {@link #getSession(String)} then applies the degraded policy as usual. The permit of the
+     * bulkhead is held until the prefetch is joined, which replays the degraded changes like
+     * {@link #getSession(String)}, or cancelled.
+     *
+     * @param id the session id.
+     */
+    public void prefetch(String id) {
+        cancelPrefetch();
+        if (writeBehindQueue != null && writeBehindQueue.get(id) != null) {
+            return;
+        }
+        if (!acquire()) {
+            return;
+        }
+        long start = System.nanoTime();
+        AsyncSubject<CouchbaseSession> result = AsyncSubject.create();
+        Subscription subscription;
+        try {
+            subscription = withTimeout(load(id), loadTimeoutMillis).subscribe(result);
+        } catch (RuntimeException e) {
+            release(e);
+            throw e;
+        }
+        prefetches.set(new Prefetch(id, result, subscription, start));
+    }
+
+    /**
+     * Drops the prefetch of the calling thread, if any, and releases its permit.
+     */
+    public void cancelPrefetch() {
+        Prefetch prefetch = prefetches.get();
+        if (prefetch != null) {
+            prefetches.remove();
+            prefetch.subscription.unsubscribe();
+            release(null);
+        }
+    }
+
     public void delete(String id) {
-		asyncBucket.remove(id).toBlocking().single();
+        long start = System.nanoTime();
+        if (expirationTracker != null) {
+            expirationTracker.untrack(id);
+        }
+        if (localCache != null) {
+            localCache.remove(id);
+        }
+        boolean pending = writeBehindQueue != null && writeBehindQueue.cancel(id);
+        if (!acquire()) {
+            degradedDelete(id);
+            return;
+        }
+        RuntimeException failure = null;
+        try {
+            JsonDocument removed = offloadStore == null ? null : await(get(id), deleteTimeoutMillis);
+            await(remove(id, deleteDurability), deleteTimeoutMillis);
+            if (asyncReplicationCheck) {
+                checkReplication(id, 0, deleteDurability);
+            }
+            if (removed != null) {
+                await(offloadStore.removeAll(decode(removed).content()), deleteTimeoutMillis);
+            }
+        } catch (DocumentDoesNotExistException e) {
+            if (!pending) {
+                failure = e;
+                metrics.recordError(e);
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+            metrics.recordError(e);
+            throw e;
+        } finally {
+            release(failure);
+            metrics.recordDelete(start);
+        }
 	}
 
+    /**
+     * Loads many sessions concurrently. The sessions that cannot be loaded, because they do not exist or because of an
+     * error, are left out of the result. Loading them does not count as an access: their last accessed time is the one
+     * stored.
+     *
+     * @param ids the ids of the sessions.
+     * @return the sessions found, keyed by id.
+     * @throws CouchbaseSessionUnavailableException if too many operations are in flight or the circuit breaker is open.
+     */
+    public Map<String, CouchbaseSession> getSessions(Collection<String> ids) {
+        Map<String, CouchbaseSession> sessions = new HashMap<String, CouchbaseSession>();
+        List<String> remoteIds = new ArrayList<String>(ids.size());
+        for (String id : ids) {
+            JsonDocument pending = writeBehindQueue == null ? null : writeBehindQueue.get(id);
+            if (pending != null) {
+                sessions.put(id, toSession(false, false).call(pending));
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        if (remoteIds.isEmpty()) {
+            return sessions;
+        }
+        if (!acquire()) {
+            throw unavailable();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            List<CouchbaseSession> found = Observable.merge(Observable.from(remoteIds).map(
+                    new Func1<String, Observable<CouchbaseSession>>() {
+                        @Override
+                        public Observable<CouchbaseSession> call(String id) {
+                            return withTimeout(get(id), loadTimeoutMillis)
+                                    .map(toSession(false, false))
+                                    .onErrorResumeNext(skipFailed(failure, CouchbaseSession.class));
+                        }
+                    }), bulkConcurrency).toList().toBlocking().single();
+            for (CouchbaseSession session : found) {
+                sessions.put(session.getId(), session);
+            }
+            return sessions;
+        } finally {
+            release(failure.get());
+        }
+    }
+
+    /**
+     * Deletes many sessions concurrently.
+     *
+     * @param ids the ids of the sessions.
+     * @return the ids of the sessions actually deleted, the others did not exist or could not be deleted.
+     * @throws CouchbaseSessionUnavailableException if too many operations are in flight or the circuit breaker is open.
+     */
+    public Set<String> deleteSessions(Collection<String> ids) {
+        final Set<String> pendingIds = new HashSet<String>();
+        for (String id : ids) {
+            if (expirationTracker != null) {
+                expirationTracker.untrack(id);
+            }
+            if (localCache != null) {
+                localCache.remove(id);
+            }
+            if (writeBehindQueue != null && writeBehindQueue.cancel(id)) {
+                pendingIds.add(id);
+            }
+        }
+        if (!acquire()) {
+            throw unavailable();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            List<String> deleted = Observable.merge(Observable.from(ids).map(
+                    new Func1<String, Observable<String>>() {
+                        @Override
+                        public Observable<String> call(final String id) {
+                            return withTimeout(removeWithAttributes(id), deleteTimeoutMillis)
+                                    .map(new Func1<JsonDocument, String>() {
+                                        @Override
+                                        public String call(JsonDocument removed) {
+                                            if (asyncReplicationCheck) {
+                                                checkReplication(id, 0, deleteDurability);
+                                            }
+                                            return removed.id();
+                                        }
+                                    })
+                                    .onErrorResumeNext(new Func1<Throwable, Observable<String>>() {
+                                        @Override
+                                        public Observable<String> call(Throwable error) {
+                                            if (error instanceof DocumentDoesNotExistException
+                                                    && pendingIds.contains(id)) {
+                                                // only queued for write-behind, cancelled above
+                                                return Observable.just(id);
+                                            }
+                                            return skipFailed(failure, String.class).call(error);
+                                        }
+                                    });
+                        }
+                    }), bulkConcurrency).toList().toBlocking().single();
+            return new HashSet<String>(deleted);
+        } finally {
+            release(failure.get());
+        }
+    }
+
+    /**
+     * Resets concurrently the expiration of many sessions to their own maximum inactive interval, without reading or
+     * saving them. The last access time stored in the sessions is left as is, but the expiration tracker and the local
+     * cache count the touch as an access. With attribute offloading, the session documents are read along with the
+     * touch, as the attribute documents they reference have to be touched too.
+     *
+     * @param maxInactiveIntervals the maximum inactive interval of each session, by id, as stored in the session.
+     * @return the ids of the sessions actually touched, the others did not exist or could not be touched.
+     * @throws CouchbaseSessionUnavailableException if too many operations are in flight or the circuit breaker is open.
+     */
+    public Set<String> touchSessions(final Map<String, Integer> maxInactiveIntervals) {
+        if (!acquire()) {
+            throw unavailable();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        try {
+            List<String> touched = Observable.merge(Observable.from(maxInactiveIntervals.keySet()).map(
+                    new Func1<String, Observable<String>>() {
+                        @Override
+                        public Observable<String> call(final String id) {
+                            final int maxInactive = maxInactiveIntervals.get(id);
+                            return withTimeout(touchWithAttributes(id, maxInactive), saveTimeoutMillis)
+                                    .filter(new Func1<Boolean, Boolean>() {
+                                        @Override
+                                        public Boolean call(Boolean success) {
+                                            return success;
+                                        }
+                                    })
+                                    .map(new Func1<Boolean, String>() {
+                                        @Override
+                                        public String call(Boolean success) {
+                                            touched(id, maxInactive);
+                                            return id;
+                                        }
+                                    })
+                                    .onErrorResumeNext(skipFailed(failure, String.class));
+                        }
+                    }), bulkConcurrency).toList().toBlocking().single();
+            return new HashSet<String>(touched);
+        } finally {
+            release(failure.get());
+        }
+    }
+
+    /**
+     * Touches a session document, and with attribute offloading, the attribute documents it references.
+     *
+     * @return whether the session was touched.
+     */
+    private Observable<Boolean> touchWithAttributes(final String id, final int maxInactive) {
+        if (offloadStore == null) {
+            return touch(id, maxInactive);
+        }
+        return retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                return asyncBucket.getAndTouch(id, maxInactive);
+            }
+        }).flatMap(new Func1<JsonDocument, Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call(JsonDocument document) {
+                return offloadStore.touchAll(decode(document).content(), maxInactive)
+                        .map(new Func1<Integer, Boolean>() {
+                            @Override
+                            public Boolean call(Integer count) {
+                                return true;
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Records a touch of a session as an access, for the expiration tracker and the local cache.
+     */
+    private void touched(String id, int maxInactive) {
+        long now = System.currentTimeMillis();
+        if (expirationTracker != null) {
+            expirationTracker.touched(id, maxInactive, now);
+        }
+        if (localCache != null) {
+            localCache.touch(id, now);
+        }
+    }
+
+    /**
+     * @return a fallback recording the error and skipping the failed item of a bulk operation.
+     */
+    private <T> Func1<Throwable, Observable<T>> skipFailed(final AtomicReference<Throwable> failure, Class<T> type) {
+        return new Func1<Throwable, Observable<T>>() {
+            @Override
+            public Observable<T> call(Throwable error) {
+                if (!(error instanceof DocumentDoesNotExistException)) {
+                    metrics.recordError(error);
+                    failure.set(error);
+                }
+                return Observable.empty();
+            }
+        };
+    }
+
+    private Func1<JsonDocument, CouchbaseSession> toSession(boolean fromReplica) {
+        return toSession(fromReplica, true);
+    }
+
+    /**
+     * @param access true if the session is loaded to serve a request, which sets its last accessed time.
+     */
+    private Func1<JsonDocument, CouchbaseSession> toSession(final boolean fromReplica, final boolean access) {
+        return new Func1<JsonDocument, CouchbaseSession>() {
+            @Override
+            public CouchbaseSession call(JsonDocument jd) {
+                int version = documentFormats.versionOf(jd.content());
+                CouchbaseSession session = new CouchbaseSession(decode(jd));
+                session.setFormatVersion(version);
+                metrics.recordFormatRead(version);
+                if (fromReplica && session.isExpired()) {
+                    // the active copy expired or was touched since, the replica cannot tell
+                    return null;
+                }
+                metrics.recordDocumentSize(jd.content());
+                session.setSerializer(serializer);
+                session.setOffloadStore(offloadStore);
+                session.setFromReplica(fromReplica);
+                if (access) {
+                    session.setLastAccessedTime(System.currentTimeMillis());
+                }
+//                asyncBucket.touch(jd).subscribe();
+                return session;
+            }
+        };
+    }
+
+    private JsonObject encode(JsonObject content) {
+        JsonObject attributes = documentFormats.writesCodecValues() ? content : withoutCodecs(content);
+        return documentFormats.write(attributes);
+    }
+
+    private JsonDocument decode(JsonDocument document) {
+        JsonObject attributes = documentFormats.read(document.content());
+        if (!documentFormats.storesCodecValues(documentFormats.versionOf(document.content()))) {
+            attributes = escapeCodecKeys(attributes);
+        }
+        if (attributes == document.content()) {
+            return document;
+        }
+        return JsonDocument.create(document.id(), document.expiry(), attributes, document.cas());
+    }
+
+    /**
+     * @return the attributes with their codec values Java serialized and their escaped JSON objects unwrapped, for a
+     * document that cannot hold codec values.
+     */
+    private JsonObject withoutCodecs(JsonObject attributes) {
+        JsonObject converted = attributes;
+        for (String name : attributes.getNames()) {
+            Object stored = attributes.get(name);
+            Object value = serializer.withoutCodec(stored);
+            if (value != stored) {
+                if (converted == attributes) {
+                    converted = copy(attributes);
+                }
+                converted.put(name, value);
+            }
+        }
+        return converted;
+    }
+
+    /**
+     * @return the attributes of a document that cannot hold codec values, with the JSON objects of the application
+     * that look like codec values escaped.
+     */
+    private static JsonObject escapeCodecKeys(JsonObject attributes) {
+        JsonObject escaped = attributes;
+        for (String name : attributes.getNames()) {
+            Object stored = attributes.get(name);
+            Object value = SessionAttributeSerializer.escape(stored);
+            if (value != stored) {
+                if (escaped == attributes) {
+                    escaped = copy(attributes);
+                }
+                escaped.put(name, value);
+            }
+        }
+        return escaped;
+    }
+
+    private static JsonObject copy(JsonObject content) {
+        JsonObject copy = JsonObject.create();
+        for (String name : content.getNames()) {
+            copy.put(name, content.get(name));
+        }
+        return copy;
+    }
+
+    /**
+     * Races the active read against replica reads started after the hedge delay. Only an actual session read from a
+     * replica can win: a replica that does not have the document, an expired copy or a replica error leave the
+     * decision to the active node, which also wins when it answers that the session does not exist.
+     */
+    private Observable<CouchbaseSession> hedge(final String id, Observable<CouchbaseSession> active) {
+        Observable<CouchbaseSession> replica = Observable.timer(getHedgeDelayMicros(), TimeUnit.MICROSECONDS)
+                .flatMap(new Func1<Long, Observable<JsonDocument>>() {
+                    @Override
+                    public Observable<JsonDocument> call(Long tick) {
+                        return asyncBucket.getFromReplica(id, ReplicaMode.ALL);
+                    }
+                })
+                .map(toSession(true))
+                .filter(new Func1<CouchbaseSession, Boolean>() {
+                    @Override
+                    public Boolean call(CouchbaseSession session) {
+                        return session != null;
+                    }
+                })
+                .take(1)
+                .onErrorResumeNext(Observable.<CouchbaseSession>empty())
+                .concatWith(Observable.<CouchbaseSession>never());
+        return Observable.amb(active, replica).take(1);
+    }
+
+    /**
+     * @return the current hedge delay, the configured percentile of the recent load latency recomputed at most once
+     * per second.
+     * @see CouchbaseSessionMetrics#getRecentLoadLatency(long)
+     */
+    long getHedgeDelayMicros() {
+        long now = System.currentTimeMillis();
+        if (now - hedgeDelayComputedAt >= HEDGE_DELAY_REFRESH_MILLIS) {
+            SessionMetricsHistogram loads = metrics.getRecentLoadLatency(now);
+            hedgeDelayMicros = loads.getCount() < MIN_HEDGE_SAMPLES ? DEFAULT_HEDGE_DELAY_MICROS
+                    : Math.max(MIN_HEDGE_DELAY_MICROS, loads.getValueAtPercentile(hedgeDelayPercentile));
+            hedgeDelayComputedAt = now;
+        }
+        return hedgeDelayMicros;
+    }
+
+    /**
+     * Writes the large attributes of the session to their own documents before the session document is written.
+     * Does nothing for the attributes already offloaded, so it may run twice for the same save. Must be called with a
+     * permit acquired.
+     */
+    private void offload(CouchbaseSession session) {
+        Observable<?> offloads = offloadStore == null ? null : offloadStore.offload(session);
+        if (offloads != null) {
+            await(offloads, saveTimeoutMillis);
+        }
+    }
+
+    /**
+     * Writes the large attributes of the session to their own documents before the session document is queued for
+     * write-behind, under its own permit.
+     *
+     * @return false if the writes were rejected, the session must then be saved synchronously.
+     */
+    private boolean offloadBeforeWriteBehind(CouchbaseSession session) {
+        Observable<?> offloads = offloadStore == null ? null : offloadStore.offload(session);
+        if (offloads == null) {
+            return true;
+        }
+        if (!acquire()) {
+            return false;
+        }
+        RuntimeException failure = null;
+        try {
+            await(offloads, saveTimeoutMillis);
+            return true;
+        } catch (RuntimeException e) {
+            failure = e;
+            metrics.recordError(e);
+            throw e;
+        } finally {
+            release(failure);
+        }
+    }
+
+    /**
+     * Reads the document of an offloaded attribute under the same limit, circuit breaker and timeout as a session.
+     *
+     * @param read the read of the document, retried under the retry policy.
+     * @return the document, null if it does not exist.
+     * @throws CouchbaseSessionUnavailableException if the read is rejected or times out.
+     */
+    JsonDocument getAttributeDocument(Observable<JsonDocument> read) {
+        if (!acquire()) {
+            metrics.recordDegraded();
+            throw unavailable();
+        }
+        RuntimeException failure = null;
+        try {
+            return await(read, loadTimeoutMillis);
+        } catch (RuntimeException e) {
+            failure = e;
+            metrics.recordError(e);
+            throw e;
+        } finally {
+            release(failure);
+        }
+    }
+
+    /**
+     * Removes a session document and then the documents of its offloaded attributes, if any.
+     *
+     * @return the removed session document.
+     */
+    private Observable<JsonDocument> removeWithAttributes(final String id) {
+        if (offloadStore == null) {
+            return remove(id, deleteDurability);
+        }
+        return get(id).defaultIfEmpty(null).flatMap(new Func1<JsonDocument, Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call(final JsonDocument stored) {
+                Observable<JsonDocument> removal = remove(id, deleteDurability);
+                if (stored == null) {
+                    return removal;
+                }
+                return removal.flatMap(new Func1<JsonDocument, Observable<JsonDocument>>() {
+                    @Override
+                    public Observable<JsonDocument> call(final JsonDocument removed) {
+                        return offloadStore.removeAll(decode(stored).content())
+                                .map(new Func1<Integer, JsonDocument>() {
+                                    @Override
+                                    public JsonDocument call(Integer count) {
+                                        return removed;
+                                    }
+                                });
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Saves a session read from a replica without overwriting a more recent version of the active document.
+     *
+     * @return the saved document, null if the session was deleted since it was read.
+     */
+    private JsonDocument replace(CouchbaseSession session, Durability durability) {
+        JsonObject content = encode(session.getSessionAttrs());
+        long cas = session.getCas();
+        CASMismatchException mismatch = null;
+        for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+            try {
+                return await(replace(JsonDocument.create(session.getId(), session.getMaxInactiveIntervalInSeconds(),
+                        content, cas), durability), saveTimeoutMillis);
+            } catch (DocumentDoesNotExistException e) {
+                return null;
+            } catch (CASMismatchException e) {
+                mismatch = e;
+                JsonDocument current = await(get(session.getId()), saveTimeoutMillis);
+                if (current == null) {
+                    return null;
+                }
+                content = encode(session.mergeChangesInto(decode(current).content()));
+                cas = current.cas();
+            }
+        }
+        throw mismatch;
+    }
+
+    /**
+     * Reads a session, hedged if enabled. A session of the snapshot of the local cache restored on startup is served
+     * from it instead if Couchbase still has the version of the snapshot: an observe on the active node tells without
+     * reading the document.
+     *
+     * @return the operation, completes empty if the session does not exist.
+     */
+    private Observable<CouchbaseSession> load(final String id) {
+        Observable<CouchbaseSession> active = get(id).map(toSession(false));
+        final Observable<CouchbaseSession> read = hedgedReads ? hedge(id, active) : active;
+        final JsonDocument entry = localCache == null ? null : localCache.getSnapshotEntry(id);
+        if (entry == null) {
+            return read;
+        }
+        return observe(id, entry.cas()).singleOrDefault(null)
+                .flatMap(new Func1<ObserveResponse, Observable<CouchbaseSession>>() {
+                    @Override
+                    public Observable<CouchbaseSession> call(ObserveResponse observed) {
+                        CouchbaseSession session = fromSnapshot(id, entry, observed);
+                        return session == null ? read : Observable.just(session);
+                    }
+                });
+    }
+
+    /**
+     * @return the session of the snapshot entry, null if it was saved again, deleted or expired since, in which case
+     * the entry is dropped.
+     */
+    private CouchbaseSession fromSnapshot(String id, JsonDocument entry, ObserveResponse observed) {
+        if (observed == null || observed.cas() != entry.cas()
+                || observed.observeStatus() == ObserveResponse.ObserveStatus.NOT_FOUND_PERSISTED
+                || observed.observeStatus() == ObserveResponse.ObserveStatus.NOT_FOUND_NOT_PERSISTED) {
+            localCache.dropSnapshotEntry(id);
+            return null;
+        }
+        CouchbaseSession session = new CouchbaseSession(entry);
+        if (session.isExpired()) {
+            localCache.dropSnapshotEntry(id);
+            return null;
+        }
+        session.setSerializer(serializer);
+        session.setOffloadStore(offloadStore);
+        session.setLastAccessedTime(System.currentTimeMillis());
+        localCache.put(session);
+        return session;
+    }
+
+    private Observable<ObserveResponse> observe(final String id, final long cas) {
+        return retrying(new Func0<Observable<ObserveResponse>>() {
+            @Override
+            public Observable<ObserveResponse> call() {
+                return asyncBucket.core().flatMap(new Func1<ClusterFacade, Observable<ObserveResponse>>() {
+                    @Override
+                    public Observable<ObserveResponse> call(ClusterFacade core) {
+                        return core.send(new ObserveRequest(id, cas, true, (short) 0, asyncBucket.name()));
+                    }
+                });
+            }
+        });
+    }
+
+    private Observable<JsonDocument> get(final String id) {
+        return retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                return asyncBucket.get(id);
+            }
+        });
+    }
+
+    private Observable<Boolean> touch(final String id, final int expiry) {
+        return retrying(new Func0<Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call() {
+                return asyncBucket.touch(id, expiry);
+            }
+        });
+    }
+
+    private Observable<JsonDocument> upsert(final JsonDocument document, final Durability durability) {
+        return retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                return asyncReplicationCheck || durability.isNone() ? asyncBucket.upsert(document)
+                        : asyncBucket.upsert(document, durability.persistTo, durability.replicateTo);
+            }
+        });
+    }
+
+    private Observable<JsonDocument> replace(JsonDocument document, Durability durability) {
+        return asyncReplicationCheck || durability.isNone() ? asyncBucket.replace(document)
+                : asyncBucket.replace(document, durability.persistTo, durability.replicateTo);
+    }
+
+    private Observable<JsonDocument> remove(final String id, final Durability durability) {
+        final AtomicInteger attempts = new AtomicInteger();
+        return retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                Observable<JsonDocument> removal = asyncReplicationCheck || durability.isNone()
+                        ? asyncBucket.remove(id) : asyncBucket.remove(id, durability.persistTo, durability.replicateTo);
+                if (attempts.incrementAndGet() == 1) {
+                    return removal;
+                }
+                // the previous attempt may have removed the document before failing
+                return removal.onErrorResumeNext(new Func1<Throwable, Observable<JsonDocument>>() {
+                    @Override
+                    public Observable<JsonDocument> call(Throwable error) {
+                        return error instanceof DocumentDoesNotExistException
+                                ? Observable.just(JsonDocument.create(id)) : Observable.<JsonDocument>error(error);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Applies the retry policy, if any, to an idempotent operation, started on subscription.
+     */
+    <T> Observable<T> retrying(Func0<Observable<T>> operation) {
+        return retryPolicy == null ? Observable.defer(operation) : retryPolicy.retry(operation, metrics);
+    }
+
+    /**
+     * Reads all the copies of a document after the replication check delay and records whether enough of them have
+     * the write, or for a removal, whether none of them is left.
+     *
+     * @param cas the CAS of the saved document, 0 for a removal.
+     */
+    private void checkReplication(final String id, final long cas, Durability durability) {
+        if (durability.replicateTo == ReplicateTo.NONE) {
+            return;
+        }
+        final int required = durability.replicateTo.value().value();
+        Observable.timer(replicationCheckDelayMillis, TimeUnit.MILLISECONDS)
+                .flatMap(new Func1<Long, Observable<JsonDocument>>() {
+                    @Override
+                    public Observable<JsonDocument> call(Long tick) {
+                        return asyncBucket.getFromReplica(id, ReplicaMode.ALL);
+                    }
+                })
+                .toList()
+                .subscribe(new Subscriber<List<JsonDocument>>() {
+                    @Override
+                    public void onCompleted() {
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        logger.debug("Could not check the replication of " + id, e);
+                        metrics.recordReplicationCheck(false);
+                    }
+
+                    @Override
+                    public void onNext(List<JsonDocument> copies) {
+                        metrics.recordReplicationCheck(isReplicated(copies, cas, required));
+                    }
+                });
+    }
+
+    private static boolean isReplicated(List<JsonDocument> copies, long cas, int replicas) {
+        if (cas == 0) {
+            return copies.isEmpty();
+        }
+        int matching = 0;
+        for (JsonDocument copy : copies) {
+            if (copy.cas() == cas) {
+                matching++;
+            } else if (copy.cas() > cas) {
+                return true;
+            }
+        }
+        // the active copy is read along with the replicas
+        return matching > replicas;
+    }
+
+    /**
+     * Waits for the result of the prefetch and replays the degraded changes under its permit, then releases it.
+     */
+    private CouchbaseSession join(Prefetch prefetch) {
+        CouchbaseSession session = null;
+        RuntimeException failure = null;
+        try {
+            session = await(prefetch.result, loadTimeoutMillis);
+            if (localCache != null) {
+                session = replayDegradedChanges(prefetch.id, session);
+            }
+            return session;
+        } catch (RuntimeException e) {
+            failure = e;
+            metrics.recordError(e);
+            throw e;
+        } finally {
+            release(failure);
+            metrics.recordLoad(prefetch.start, session != null);
+        }
+    }
+
+    private <T> T await(Observable<T> operation, long timeoutMillis) {
+        try {
+            return withTimeout(operation, timeoutMillis).toBlocking().singleOrDefault(null);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new CouchbaseSessionUnavailableException(
+                        "Couchbase did not answer within " + timeoutMillis + "ms", e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    private static <T> Observable<T> withTimeout(Observable<T> operation, long timeoutMillis) {
+        return timeoutMillis > 0 ? operation.timeout(timeoutMillis, TimeUnit.MILLISECONDS) : operation;
+    }
+
+    /**
+     * @return true if the operation may call Couchbase, in which case {@link #release(Throwable)} must follow.
+     */
+    private boolean acquire() {
+        if (bulkhead != null && !bulkhead.tryAcquire()) {
+            return false;
+        }
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            if (bulkhead != null) {
+                bulkhead.release();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void release(Throwable failure) {
+        if (circuitBreaker != null) {
+            // a missing document or a CAS conflict is an answer, not an outage
+            if (failure == null || failure instanceof DocumentDoesNotExistException
+                    || failure instanceof CASMismatchException) {
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onFailure();
+            }
+        }
+        if (bulkhead != null) {
+            bulkhead.release();
+        }
+    }
+
+    private CouchbaseSessionUnavailableException unavailable() {
+        return new CouchbaseSessionUnavailableException(circuitBreaker != null
+                && circuitBreaker.getState() != CouchbaseSessionCircuitBreaker.State.CLOSED
+                ? "Circuit breaker open, Couchbase is failing" : "Too many session operations in flight");
+    }
+
+    /**
+     * Saves the changes made to a session while Couchbase was unavailable into the version just loaded, so that they
+     * are not lost when the cache is refreshed with it. The loaded session is returned as is and cached when the
+     * session is not dirty. A dirty session created while degraded is written, one that was deleted or expired since
+     * is not resurrected.
+     *
+     * @param loaded the session loaded from Couchbase, null if not found.
+     * @return the session to use.
+     */
+    private CouchbaseSession replayDegradedChanges(String id, CouchbaseSession loaded) {
+        Set<String> dirty = localCache.getDirtyAttributeNames(id);
+        JsonDocument cached = dirty == null ? null : localCache.get(id);
+        if (cached == null) {
+            if (loaded != null) {
+                localCache.put(loaded);
+            }
+            return loaded;
+        }
+        if (loaded == null && cached.cas() != 0) {
+            localCache.remove(id);
+            return null;
+        }
+        CouchbaseSession degraded = new CouchbaseSession(cached);
+        degraded.setSerializer(serializer);
+        degraded.setOffloadStore(offloadStore);
+        degraded.addChangedAttributeNames(dirty);
+        offload(degraded);
+        JsonDocument saved;
+        if (loaded == null) {
+            saved = await(upsert(JsonDocument.create(id, degraded.getMaxInactiveIntervalInSeconds(),
+                    encode(degraded.getSessionAttrs())), createDurability), saveTimeoutMillis);
+        } else {
+            degraded.setCas(loaded.getCas());
+            degraded.mergeChangesInto(loaded.getSessionAttrs());
+            saved = replace(degraded, saveDurability);
+            if (saved == null) {
+                localCache.remove(id);
+                return null;
+            }
+        }
+        degraded.setCas(saved.cas());
+        degraded.markSaved();
+        degraded.setLastAccessedTime(System.currentTimeMillis());
+        localCache.put(degraded);
+        if (expirationTracker != null) {
+            expirationTracker.track(degraded, saved.cas());
+        }
+        return degraded;
+    }
+
+    private CouchbaseSession degradedGet(String id) {
+        metrics.recordDegraded();
+        switch (degradedPolicy) {
+            case LOCAL_CACHE:
+                JsonDocument cached = localCache.get(id);
+                if (cached == null) {
+                    return null;
+                }
+                CouchbaseSession session = new CouchbaseSession(cached);
+                if (session.isExpired()) {
+                    localCache.remove(id);
+                    return null;
+                }
+                session.setSerializer(serializer);
+                session.setOffloadStore(offloadStore);
+                // saved with a CAS replace once Couchbase is back, like a session read from a replica
+                session.setFromReplica(true);
+                session.setLastAccessedTime(System.currentTimeMillis());
+                return session;
+            case ANONYMOUS:
+                CouchbaseSession placeholder = createSession();
+                placeholder.setId(id);
+                placeholder.setPlaceholder(true);
+                return placeholder;
+            default:
+                throw unavailable();
+        }
+    }
+
+    private void degradedSave(CouchbaseSession session) {
+        metrics.recordDegraded();
+        switch (degradedPolicy) {
+            case LOCAL_CACHE:
+                session.setFromReplica(true);
+                localCache.putDirty(session);
+                break;
+            case ANONYMOUS:
+                break;
+            default:
+                throw unavailable();
+        }
+    }
+
+    private void degradedDelete(String id) {
+        metrics.recordDegraded();
+        if (degradedPolicy == DegradedPolicy.FAIL_FAST) {
+            throw unavailable();
+        }
+        logger.warn("Couchbase unavailable, session " + id + " will only be removed when it expires");
+    }
+
 	public CouchbaseSession createSession() {
 		CouchbaseSession result = new CouchbaseSession();
+		result.setSerializer(serializer);
+		result.setOffloadStore(offloadStore);
 		if(defaultMaxInactiveInterval != null) {
 			result.setMaxInactiveIntervalInSeconds(defaultMaxInactiveInterval);
 		}
 		return result;
 	}
+
+    /**
+     * The durability requirement of a kind of write.
+     */
+    private static final class Durability {
+
+        private static final Durability NONE = new Durability(PersistTo.NONE, ReplicateTo.NONE);
+
+        private final PersistTo persistTo;
+
+        private final ReplicateTo replicateTo;
+
+        private Durability(PersistTo persistTo, ReplicateTo replicateTo) {
+            Assert.notNull(persistTo, "persistTo cannot be null");
+            Assert.notNull(replicateTo, "replicateTo cannot be null");
+            this.persistTo = persistTo;
+            this.replicateTo = replicateTo;
+        }
+
+        private boolean isNone() {
+            return persistTo == PersistTo.NONE && replicateTo == ReplicateTo.NONE;
+        }
+    }
+
+    private static final class Prefetch {
+
+        private final String id;
+
+        private final Observable<CouchbaseSession> result;
+
+        private final Subscription subscription;
+
+        private final long start;
+
+        private Prefetch(String id, Observable<CouchbaseSession> result, Subscription subscription, long start) {
+            this.id = id;
+            this.result = result;
+            this.subscription = subscription;
+            this.start = start;
+        }
+    }
 }
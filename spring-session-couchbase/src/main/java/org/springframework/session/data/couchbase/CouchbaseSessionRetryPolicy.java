@@ -0,0 +1,171 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.core.BackpressureException;
+import com.couchbase.client.core.RequestCancelledException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import org.springframework.util.Assert;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries the idempotent session operations that failed because Couchbase or the client was temporarily overloaded:
+ * temporary failures, cancelled requests and backpressure.
+ *
+ * <p>
+ * An operation is attempted at most {@link #setMaxAttempts(int)} times. The delay before a retry is drawn at random
+ * between 0 and an exponential bound, starting at {@link #setInitialBackoffMillis(long)} and capped at
+ * {@link #setMaxBackoffMillis(long)}, so that the nodes retrying after the same overload spread out. No retry is
+ * scheduled past {@link #setDeadlineMillis(long)} after the first attempt. The delays are timers of the Observable,
+ * no thread sleeps.
+ * </p>
+ *
+ * <p>
+ * The operations of the client are started when they are created, so an operation is given as a factory called once
+ * per attempt. CAS replaces and inserts are never retried, since a retry after a lost response would fail.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionRetryPolicy {
+
+    /**
+     * Default {@link #setMaxAttempts(int)}.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * Default {@link #setInitialBackoffMillis(long)}.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10;
+
+    /**
+     * Default {@link #setMaxBackoffMillis(long)}.
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 200;
+
+    /**
+     * Default {@link #setDeadlineMillis(long)}.
+     */
+    public static final long DEFAULT_DEADLINE_MILLIS = 1000;
+
+    private final Random random = new Random();
+
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    private volatile long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    private volatile long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+
+    /**
+     * @param maxAttempts the number of attempts of an operation, including the first one.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        Assert.isTrue(maxAttempts > 0, "maxAttempts must be positive");
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param initialBackoffMillis the bound of the delay before the first retry, doubled for every following retry.
+     */
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        Assert.isTrue(initialBackoffMillis >= 0, "initialBackoffMillis cannot be negative");
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    /**
+     * @param maxBackoffMillis the highest bound of the delay before a retry.
+     */
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        Assert.isTrue(maxBackoffMillis >= 0, "maxBackoffMillis cannot be negative");
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * @param deadlineMillis the time after the first attempt past which an operation is not retried anymore.
+     */
+    public void setDeadlineMillis(long deadlineMillis) {
+        Assert.isTrue(deadlineMillis >= 0, "deadlineMillis cannot be negative");
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @return true if the error is a temporary overload worth a retry.
+     */
+    public boolean isRetryable(Throwable error) {
+        return error instanceof TemporaryFailureException
+                || error instanceof RequestCancelledException
+                || error instanceof BackpressureException;
+    }
+
+    /**
+     * @param operation creates a new attempt of the operation on every call.
+     * @param metrics where to record the retries and give-ups, may be null.
+     * @return the operation, retried under this policy on every subscription.
+     */
+    <T> Observable<T> retry(Func0<Observable<T>> operation, final CouchbaseSessionMetrics metrics) {
+        return Observable.defer(operation).retryWhen(new Func1<Observable<? extends Throwable>, Observable<?>>() {
+            @Override
+            public Observable<?> call(Observable<? extends Throwable> errors) {
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+                return errors.flatMap(new Func1<Throwable, Observable<Long>>() {
+
+                    private int attempts = 1;
+
+                    @Override
+                    public Observable<Long> call(Throwable error) {
+                        if (!isRetryable(error)) {
+                            return Observable.error(error);
+                        }
+                        long delayMillis = backoffMillis(attempts);
+                        if (attempts >= maxAttempts
+                                || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) > deadline) {
+                            if (metrics != null) {
+                                metrics.recordRetryGiveUp();
+                            }
+                            return Observable.error(error);
+                        }
+                        attempts++;
+                        if (metrics != null) {
+                            metrics.recordRetry();
+                        }
+                        return Observable.timer(delayMillis, TimeUnit.MILLISECONDS);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return a delay drawn between 0 and the exponential bound of the retry following the given attempt.
+     */
+    long backoffMillis(int attempt) {
+        long bound = initialBackoffMillis << Math.min(attempt - 1, 30);
+        bound = Math.min(bound < 0 ? Long.MAX_VALUE : bound, maxBackoffMillis);
+        if (bound <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * (bound + 1));
+    }
+}
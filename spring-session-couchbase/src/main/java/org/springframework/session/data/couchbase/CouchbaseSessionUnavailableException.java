@@ -0,0 +1,36 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+/**
+ * Thrown by {@link CouchbaseSessionRepository} when a session operation cannot reach Couchbase in time: the operation
+ * timed out, too many operations are already in flight, or the circuit breaker is open.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = -3421795628470129753L;
+
+    public CouchbaseSessionUnavailableException(String message) {
+        super(message);
+    }
+
+    public CouchbaseSessionUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.session.SessionRepository;
+import org.springframework.util.Assert;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms up the session layer when the application context starts, so that the first requests after a deploy do not
+ * pay for opening the connections to Couchbase and for the cold serialization paths.
+ *
+ * <p>
+ * The warm-up reads {@link #setPingKeys(int) a few hundred} missing keys from every bucket, which spreads the reads over
+ * the partitions and so opens the connection to every node, then runs {@link #setRoundTrips(int) round trips} through
+ * the repository with a scratch session: set the {@link #setSampleAttributes(Map) sample attributes}, save, load and
+ * read them back. This resolves the classes and serialization descriptors of the sample attributes and gives the JIT
+ * something to compile. The scratch session is deleted at the end. The round trips are recorded into
+ * {@link #getMetrics() metrics of their own}, so that the warm-up traffic does not skew those of the repository.
+ * </p>
+ *
+ * <p>
+ * The default sample attributes have names too short for the {@link AttributeNameDictionary} to encode, so that they
+ * are not added to it. Custom sample attributes should be named like those of the application.
+ * </p>
+ *
+ * <p>
+ * The warm-up runs synchronously in {@link #start()}, so the application context, and the web application, only
+ * finish starting once it is done. {@link #isReady()} tells the same to a readiness probe. A failure of the warm-up is
+ * logged and does not prevent the start.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+@ManagedResource(objectName = "org.springframework.session:type=CouchbaseSessionWarmup",
+        description = "Spring Session Couchbase warm-up")
+public class CouchbaseSessionWarmup implements SmartLifecycle {
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionWarmup.class);
+
+    /**
+     * Default {@link #setRoundTrips(int)}.
+     */
+    public static final int DEFAULT_ROUND_TRIPS = 200;
+
+    /**
+     * Default {@link #setPingKeys(int)}.
+     */
+    public static final int DEFAULT_PING_KEYS = 256;
+
+    private static final String PING_KEY_PREFIX = "spring:session:warmup:";
+
+    private static final int PING_CONCURRENCY = 64;
+
+    private static final int SCRATCH_MAX_INACTIVE_SECONDS = 60;
+
+    private final SessionRepository<CouchbaseSession> repository;
+
+    private final List<AsyncBucket> buckets;
+
+    private boolean enabled = true;
+
+    private int roundTrips = DEFAULT_ROUND_TRIPS;
+
+    private int pingKeys = DEFAULT_PING_KEYS;
+
+    private Map<String, Object> sampleAttributes = defaultSampleAttributes();
+
+    private volatile CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+
+    private volatile boolean running;
+
+    private volatile boolean ready;
+
+    private volatile int completedRoundTrips;
+
+    private volatile long durationMillis;
+
+    /**
+     * @param repository the repository to warm up. Cannot be null.
+     * @param buckets the buckets the repository stores the sessions in.
+     */
+    public CouchbaseSessionWarmup(SessionRepository<CouchbaseSession> repository, List<AsyncBucket> buckets) {
+        Assert.notNull(repository, "repository cannot be null");
+        Assert.notNull(buckets, "buckets cannot be null");
+        this.repository = repository;
+        this.buckets = buckets;
+    }
+
+    /**
+     * @param enabled false to skip the warm-up, in which case {@link #isReady()} is true right away.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param roundTrips the number of save and load round trips run with the scratch session.
+     */
+    public void setRoundTrips(int roundTrips) {
+        Assert.isTrue(roundTrips >= 0, "roundTrips cannot be negative");
+        this.roundTrips = roundTrips;
+    }
+
+    /**
+     * @param pingKeys the number of keys read from every bucket to open the connections to its nodes.
+     */
+    public void setPingKeys(int pingKeys) {
+        Assert.isTrue(pingKeys >= 0, "pingKeys cannot be negative");
+        this.pingKeys = pingKeys;
+    }
+
+    /**
+     * @param sampleAttributes the attributes set on the scratch session, ideally of the types the application stores
+     * in its sessions. Cannot be null.
+     */
+    public void setSampleAttributes(Map<String, ?> sampleAttributes) {
+        Assert.notNull(sampleAttributes, "sampleAttributes cannot be null");
+        this.sampleAttributes = new LinkedHashMap<String, Object>(sampleAttributes);
+    }
+
+    /**
+     * @return the metrics recorded by the last warm-up, apart from those of the repository.
+     */
+    public CouchbaseSessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    @ManagedAttribute(description = "True once the warm-up is done, or if it is disabled")
+    public boolean isReady() {
+        return ready || !enabled;
+    }
+
+    @ManagedAttribute(description = "Round trips run by the last warm-up")
+    public int getCompletedRoundTrips() {
+        return completedRoundTrips;
+    }
+
+    @ManagedAttribute(description = "Duration of the last warm-up in milliseconds")
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Runs the warm-up, unless it is disabled.
+     */
+    public void start() {
+        running = true;
+        if (!enabled || ready) {
+            return;
+        }
+        long start = System.nanoTime();
+        // nothing else uses the repositories until the context is started
+        Map<CouchbaseSessionRepository, CouchbaseSessionMetrics> repositoryMetrics = repositoryMetrics();
+        metrics = new CouchbaseSessionMetrics();
+        for (CouchbaseSessionRepository couchbaseRepository : repositoryMetrics.keySet()) {
+            couchbaseRepository.setMetrics(metrics);
+        }
+        try {
+            ping();
+            roundTrips();
+        } catch (RuntimeException e) {
+            logger.warn("Session warm-up failed after " + completedRoundTrips + " round trips", e);
+        } finally {
+            durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (Map.Entry<CouchbaseSessionRepository, CouchbaseSessionMetrics> entry : repositoryMetrics.entrySet()) {
+                entry.getKey().setMetrics(entry.getValue());
+            }
+            ready = true;
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Session warm-up done in " + durationMillis + "ms, " + completedRoundTrips + " round trips");
+        }
+    }
+
+    /**
+     * @return the Couchbase repositories behind the repository, with their metrics.
+     */
+    private Map<CouchbaseSessionRepository, CouchbaseSessionMetrics> repositoryMetrics() {
+        Map<CouchbaseSessionRepository, CouchbaseSessionMetrics> repositoryMetrics =
+                new LinkedHashMap<CouchbaseSessionRepository, CouchbaseSessionMetrics>();
+        if (repository instanceof CouchbaseSessionRepository) {
+            CouchbaseSessionRepository couchbaseRepository = (CouchbaseSessionRepository) repository;
+            repositoryMetrics.put(couchbaseRepository, couchbaseRepository.getMetrics());
+        } else if (repository instanceof ShardedCouchbaseSessionRepository) {
+            Map<String, CouchbaseSessionRepository> shards = ((ShardedCouchbaseSessionRepository) repository).getShards();
+            for (CouchbaseSessionRepository shard : shards.values()) {
+                repositoryMetrics.put(shard, shard.getMetrics());
+            }
+        }
+        return repositoryMetrics;
+    }
+
+    private void ping() {
+        List<Integer> indexes = new ArrayList<Integer>(pingKeys);
+        for (int i = 0; i < pingKeys; i++) {
+            indexes.add(i);
+        }
+        for (final AsyncBucket bucket : buckets) {
+            Observable.merge(Observable.from(indexes).map(new Func1<Integer, Observable<JsonDocument>>() {
+                @Override
+                public Observable<JsonDocument> call(Integer index) {
+                    return bucket.get(PING_KEY_PREFIX + index)
+                            .onErrorResumeNext(Observable.<JsonDocument>empty());
+                }
+            }), PING_CONCURRENCY).toList().toBlocking().single();
+        }
+    }
+
+    private void roundTrips() {
+        completedRoundTrips = 0;
+        if (roundTrips == 0) {
+            return;
+        }
+        CouchbaseSession session = repository.createSession();
+        session.setMaxInactiveIntervalInSeconds(SCRATCH_MAX_INACTIVE_SECONDS);
+        try {
+            for (int i = 0; i < roundTrips; i++) {
+                for (Map.Entry<String, Object> attribute : sampleAttributes.entrySet()) {
+                    session.setAttribute(attribute.getKey(), attribute.getValue());
+                }
+                repository.save(session);
+                CouchbaseSession loaded = repository.getSession(session.getId());
+                if (loaded != null) {
+                    for (String name : loaded.getAttributeNames()) {
+                        loaded.getAttribute(name);
+                    }
+                    session = loaded;
+                }
+                completedRoundTrips = i + 1;
+            }
+        } finally {
+            if (session.isPersisted()) {
+                repository.delete(session.getId());
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public void stop(Runnable callback) {
+        stop();
+        callback.run();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    /**
+     * Starts before the other lifecycle beans, such as message listeners, which may already use sessions.
+     */
+    public int getPhase() {
+        return Integer.MIN_VALUE;
+    }
+
+    private static Map<String, Object> defaultSampleAttributes() {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        map.put("date", new Date(0));
+        map.put("list", new ArrayList<String>(Arrays.asList("a", "b")));
+        // too short to be added to the attribute name dictionary
+        attributes.put("wm", map);
+        attributes.put("wl", 1L);
+        attributes.put("wt", "warm-up");
+        return attributes;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Saves the sessions in the background, for the workloads that accept to see a session write a few milliseconds late
+ * on the other nodes.
+ *
+ * <p>
+ * Dirty sessions are queued by id, so a write supersedes the pending write of the same session. A single flusher
+ * thread upserts the pending sessions in batches of {@link #setBatchSize(int)}, as soon as a batch is full or every
+ * {@link #setFlushIntervalMillis(long)}. At most {@link #setMaxPending(int)} sessions are queued: above, and once the
+ * queue is shut down, {@link #offer(JsonDocument)} refuses the session and the caller saves it synchronously. A failed
+ * upsert is queued again unless a newer write of the same session is already pending.
+ * </p>
+ *
+ * <p>
+ * {@link #shutdown()} flushes what is still pending, it is called when the owning {@link CouchbaseSessionRepository}
+ * is destroyed.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class CouchbaseSessionWriteBehindQueue {
+
+    private static final Log logger = LogFactory.getLog(CouchbaseSessionWriteBehindQueue.class);
+
+    /**
+     * Default {@link #setBatchSize(int)}.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 128;
+
+    /**
+     * Default {@link #setFlushIntervalMillis(long)}.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+
+    /**
+     * Default {@link #setMaxPending(int)}.
+     */
+    public static final int DEFAULT_MAX_PENDING = 10000;
+
+    private final AsyncBucket asyncBucket;
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+    private final Object flushLock = new Object();
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ScheduledExecutorService flusher;
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            flushRequested.set(false);
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                logger.error("Could not flush the pending sessions", e);
+            }
+        }
+    };
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private volatile int maxPending = DEFAULT_MAX_PENDING;
+
+    private volatile boolean stopped;
+
+    private CouchbaseSessionMetrics metrics;
+
+    private Action1<JsonDocument> savedCallback;
+
+    public CouchbaseSessionWriteBehindQueue(AsyncBucket asyncBucket) {
+        this(asyncBucket, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param asyncBucket the bucket the sessions are saved to. Cannot be null.
+     * @param flushIntervalMillis the longest time a session stays queued when the batches do not fill up.
+     */
+    public CouchbaseSessionWriteBehindQueue(AsyncBucket asyncBucket, long flushIntervalMillis) {
+        Assert.notNull(asyncBucket, "asyncBucket cannot be null");
+        Assert.isTrue(flushIntervalMillis > 0, "flushIntervalMillis must be positive");
+        this.asyncBucket = asyncBucket;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "spring-session-couchbase-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.flusher.scheduleWithFixedDelay(flushTask, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param batchSize the number of sessions upserted together, and the queue size that triggers a flush.
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param maxPending the number of sessions the queue holds at most, which bounds its memory.
+     */
+    public void setMaxPending(int maxPending) {
+        Assert.isTrue(maxPending > 0, "maxPending must be positive");
+        this.maxPending = maxPending;
+    }
+
+    void setMetrics(CouchbaseSessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param savedCallback called with every document once it is saved.
+     */
+    void setSavedCallback(Action1<JsonDocument> savedCallback) {
+        this.savedCallback = savedCallback;
+    }
+
+    /**
+     * Queues a session document, superseding the pending write of the same session if any.
+     *
+     * @param document the document, not modified afterwards.
+     * @return false if the queue is full or shut down, the document must then be saved by the caller.
+     */
+    boolean offer(JsonDocument document) {
+        if (stopped) {
+            return false;
+        }
+        Pending previous = pending.get(document.id());
+        if (previous == null && pending.size() >= maxPending) {
+            return false;
+        }
+        pending.put(document.id(), new Pending(document, previous == null ? System.nanoTime() : previous.dirtySince));
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(flushTask);
+        }
+        return true;
+    }
+
+    /**
+     * @param id the session id.
+     * @return the document waiting to be saved for this session, null if none.
+     */
+    JsonDocument get(String id) {
+        Pending write = pending.get(id);
+        return write == null ? null : write.document;
+    }
+
+    /**
+     * Drops the pending write of a session, waiting for the batch being written if any so that a deleted session is
+     * not written again afterwards.
+     *
+     * @param id the session id.
+     * @return true if a write was pending.
+     */
+    boolean cancel(String id) {
+        synchronized (flushLock) {
+            return pending.remove(id) != null;
+        }
+    }
+
+    /**
+     * @return the number of sessions waiting to be saved.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return how long the oldest pending session has been waiting, in milliseconds.
+     */
+    public long getLagMillis() {
+        long oldest = 0;
+        long now = System.nanoTime();
+        for (Pending write : pending.values()) {
+            oldest = Math.max(oldest, now - write.dirtySince);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+
+    /**
+     * Saves the sessions pending when it is called, blocking until they are written.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            int remaining = pending.size();
+            while (remaining > 0) {
+                List<Pending> batch = new ArrayList<Pending>(Math.min(remaining, batchSize));
+                Iterator<Map.Entry<String, Pending>> entries = pending.entrySet().iterator();
+                while (entries.hasNext() && batch.size() < batchSize) {
+                    Map.Entry<String, Pending> entry = entries.next();
+                    if (pending.remove(entry.getKey(), entry.getValue())) {
+                        batch.add(entry.getValue());
+                    }
+                }
+                if (batch.isEmpty()) {
+                    return;
+                }
+                write(batch);
+                remaining -= batch.size();
+            }
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        Observable.from(batch)
+                .flatMap(new Func1<Pending, Observable<JsonDocument>>() {
+                    public Observable<JsonDocument> call(final Pending write) {
+                        return asyncBucket.upsert(write.document)
+                                .doOnNext(new Action1<JsonDocument>() {
+                                    public void call(JsonDocument saved) {
+                                        if (metrics != null) {
+                                            metrics.recordWriteBehindLag(write.dirtySince);
+                                        }
+                                        if (savedCallback != null) {
+                                            savedCallback.call(saved);
+                                        }
+                                    }
+                                })
+                                .onErrorResumeNext(new Func1<Throwable, Observable<JsonDocument>>() {
+                                    public Observable<JsonDocument> call(Throwable error) {
+                                        if (metrics != null) {
+                                            metrics.recordError(error);
+                                        }
+                                        if (!stopped) {
+                                            pending.putIfAbsent(write.document.id(), write);
+                                        }
+                                        logger.warn("Could not save session " + write.document.id(), error);
+                                        return Observable.empty();
+                                    }
+                                });
+                    }
+                })
+                .toList()
+                .toBlocking()
+                .single();
+    }
+
+    /**
+     * Stops queueing and saves the pending sessions.
+     */
+    public void shutdown() {
+        stopped = true;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private static final class Pending {
+
+        final JsonDocument document;
+
+        /**
+         * When the session was first queued since its last write, in {@link System#nanoTime()}.
+         */
+        final long dirtySince;
+
+        Pending(JsonDocument document, long dirtySince) {
+            this.document = document;
+            this.dirtySince = dirtySince;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, approximately least recently used, node wide cache of deserialized attribute values, keyed by their
+ * serialized form. An attribute stored unchanged in many requests, or in many sessions, is deserialized once and the
+ * same instance is handed out afterwards.
+ *
+ * <p>
+ * The values are spread over independently locked segments, each evicting its own least recently used values, so
+ * concurrent requests rarely contend on the same lock.
+ * </p>
+ *
+ * <p>
+ * Sharing an instance is only safe if nobody modifies it, so only the values of the types declared immutable are
+ * cached. Declaring a type that the application does modify in place leaks the changes to the other sessions.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ * @see SessionAttributeSerializer#setDeserializedCache(DeserializedAttributeCache)
+ */
+public class DeserializedAttributeCache {
+
+    /**
+     * Default {@link #DeserializedAttributeCache(int, Class[])} maximum size.
+     */
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Maximum number of segments, a cache smaller than this gets one segment per value.
+     */
+    static final int MAX_SEGMENTS = 16;
+
+    private final List<Class<?>> immutableTypes;
+
+    private final Map<Key, Object>[] segments;
+
+    /**
+     * @param immutableTypes the types whose instances are never modified once deserialized.
+     */
+    public DeserializedAttributeCache(Class<?>... immutableTypes) {
+        this(DEFAULT_MAX_SIZE, immutableTypes);
+    }
+
+    /**
+     * @param maxSize the number of values kept, the least recently used ones of a segment are evicted first.
+     * @param immutableTypes the types whose instances are never modified once deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    public DeserializedAttributeCache(int maxSize, Class<?>... immutableTypes) {
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        this.immutableTypes = Arrays.asList(immutableTypes);
+        int count = Math.min(MAX_SEGMENTS, maxSize);
+        this.segments = new Map[count];
+        for (int i = 0; i < count; i++) {
+            final int segmentSize = maxSize / count + (i < maxSize % count ? 1 : 0);
+            segments[i] = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                    return size() > segmentSize;
+                }
+            };
+        }
+    }
+
+    /**
+     * @param serialized the Base64 serialized form of a value.
+     * @return the key of the value in this cache.
+     */
+    Key key(String serialized) {
+        return new Key(serialized);
+    }
+
+    Object get(Key key) {
+        Map<Key, Object> segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    /**
+     * Caches the value if it is of an immutable type.
+     */
+    void put(Key key, Object value) {
+        if (!isImmutable(value)) {
+            return;
+        }
+        Map<Key, Object> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    boolean isImmutable(Object value) {
+        for (Class<?> type : immutableTypes) {
+            if (type.isInstance(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of values cached.
+     */
+    public int size() {
+        int size = 0;
+        for (Map<Key, Object> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public void clear() {
+        for (Map<Key, Object> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private Map<Key, Object> segment(Key key) {
+        int hash = key.hash ^ (key.hash >>> 16);
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * Holds the serialized form itself, two values are only shared if their serialized forms are equal.
+     */
+    static final class Key {
+
+        private final String serialized;
+
+        private final int hash;
+
+        private Key(String serialized) {
+            this.serialized = serialized;
+            this.hash = serialized.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && serialized.equals(key.serialized);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
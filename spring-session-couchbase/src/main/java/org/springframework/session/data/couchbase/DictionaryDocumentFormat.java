@@ -0,0 +1,77 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.util.Assert;
+
+/**
+ * The layout of version {@value SessionDocumentFormats#LEGACY_VERSION} with the attribute names replaced by the codes
+ * of an {@link AttributeNameDictionary}. Its version tells the nodes that do not use the dictionary not to read these
+ * documents, instead of taking the codes for attribute names.
+ *
+ * <p>
+ * The dictionary is per bucket: the repositories of different buckets need formats, and so
+ * {@link SessionDocumentFormats}, of their own.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class DictionaryDocumentFormat implements SessionDocumentFormat {
+
+    /**
+     * Version of the documents written by this format.
+     */
+    public static final int VERSION = 3;
+
+    /**
+     * Version of the documents written by this format when they may also hold codec values, see
+     * {@link CodecDocumentFormat}.
+     */
+    public static final int CODEC_VERSION = 4;
+
+    private final AttributeNameDictionary dictionary;
+
+    private final boolean codecValues;
+
+    /**
+     * @param dictionary the dictionary of the bucket. Cannot be null.
+     * @param codecValues true for the format of version {@value #CODEC_VERSION}, whose attributes may hold values
+     * written by a {@link SessionAttributeCodec}.
+     */
+    public DictionaryDocumentFormat(AttributeNameDictionary dictionary, boolean codecValues) {
+        Assert.notNull(dictionary, "dictionary cannot be null");
+        this.dictionary = dictionary;
+        this.codecValues = codecValues;
+    }
+
+    public int getVersion() {
+        return codecValues ? CODEC_VERSION : VERSION;
+    }
+
+    public JsonObject read(JsonObject stored) {
+        return dictionary.decode(stored);
+    }
+
+    public JsonObject write(JsonObject attributes) {
+        return dictionary.encode(attributes);
+    }
+
+    public boolean storesCodecValues() {
+        return codecValues;
+    }
+}
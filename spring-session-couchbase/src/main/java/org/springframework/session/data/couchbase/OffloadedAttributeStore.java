@@ -0,0 +1,328 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores the large attributes of the sessions in documents of their own, so that the session document read and
+ * written on every request stays small.
+ *
+ * <p>
+ * An attribute whose stored value is longer than the threshold is written to
+ * {@code spring:session:attributes:<session uuid>:<name>} as {@code {"v": <stored value>}}, and the session document
+ * only keeps a reference, {@code {"_ref": <id>, "_exp": <expiry>}}. The attribute document is written when the
+ * attribute is set, read the first time {@link CouchbaseSession#getAttribute(String)} asks for it, and left alone on
+ * the other requests. It lives twice as long as the session and its expiry is pushed back once half of that margin is
+ * used, so it never expires before the session but does not have to be touched on every save. The sessions kept alive
+ * by {@link CouchbaseSessionRepository#touchSessions(java.util.Collection)} have their attribute documents touched
+ * along. When the session is deleted with {@link CouchbaseSessionRepository#delete(String)} or
+ * {@link CouchbaseSessionRepository#deleteSessions(java.util.Collection)} the attribute documents are removed with it;
+ * when it expires they expire on their own at most one session timeout later.
+ * </p>
+ *
+ * <p>
+ * The store does not block on its own: the writes, touches and removals are returned as operations that start on
+ * subscription and are retried under the retry policy of the repository, which runs them under its timeouts, limit
+ * and circuit breaker along with the session document, and reads the attribute documents the same way.
+ * </p>
+ *
+ * <p>
+ * The attribute documents do not start with the session key prefix, so they are never mistaken for sessions.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+class OffloadedAttributeStore {
+
+    private static final Log logger = LogFactory.getLog(OffloadedAttributeStore.class);
+
+    static final String KEY_PREFIX = "spring:session:attributes:";
+
+    static final String REF = "_ref";
+
+    private static final String EXPIRES = "_exp";
+
+    private static final String VALUE = "v";
+
+    /**
+     * Set in the attribute documents whose value is a codec value or an escaped JSON object, the others are escaped
+     * when read.
+     */
+    private static final String CODEC_VALUE = "c";
+
+    private final CouchbaseSessionRepository repository;
+
+    private final AsyncBucket asyncBucket;
+
+    private final int threshold;
+
+    /**
+     * @param repository the repository the sessions are stored with.
+     * @param asyncBucket the bucket of the repository.
+     * @param threshold the length above which a stored attribute value is offloaded.
+     */
+    OffloadedAttributeStore(CouchbaseSessionRepository repository, AsyncBucket asyncBucket, int threshold) {
+        this.repository = repository;
+        this.asyncBucket = asyncBucket;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return true if the stored value of an attribute is a reference to its own document.
+     */
+    static boolean isReference(Object stored) {
+        return stored instanceof JsonObject && ((JsonObject) stored).containsKey(REF);
+    }
+
+    /**
+     * Prepares the writes of the large attributes changed since the session was loaded to their own document, the
+     * touches of the unchanged attribute documents whose expiry needs to be pushed back, and the removals of the
+     * documents of the attributes that were removed or are small again. Once the operation completes, the offloaded
+     * attributes are replaced by a reference in the session; if it fails, the session is left as is.
+     *
+     * @param session the session about to be saved.
+     * @return the operation to complete before the session document is written, null if there is nothing to do.
+     */
+    Observable<?> offload(final CouchbaseSession session) {
+        JsonObject attrs = session.getSessionAttrs();
+        Set<String> changedNames = session.isPersisted() ? session.getChangedAttributeNames() : attrs.getNames();
+        long now = System.currentTimeMillis();
+        final long expiresAt = expiresAt(session, now);
+        final Map<String, JsonObject> refreshed = new HashMap<String, JsonObject>();
+        final Map<String, Object> offloaded = new HashMap<String, Object>();
+        List<Observable<?>> writes = new ArrayList<Observable<?>>();
+        for (String name : attrs.getNames()) {
+            Object stored = attrs.get(name);
+            if (isReference(stored)) {
+                JsonObject ref = (JsonObject) stored;
+                long expires = ref.getLong(EXPIRES);
+                if (expires > 0 && expires - now < maxInactiveMillis(session)) {
+                    refreshed.put(name, ref);
+                    writes.add(touch(ref.getString(REF), expiry(session, now)));
+                }
+            } else if (changedNames != null && changedNames.contains(name) && length(stored) > threshold) {
+                offloaded.put(name, stored);
+                JsonObject content = JsonObject.create().put(VALUE, stored);
+                if (SessionAttributeSerializer.escape(stored) != stored) {
+                    content.put(CODEC_VALUE, true);
+                }
+                writes.add(upsert(JsonDocument.create(idOf(session.getId(), name), expiry(session, now), content)));
+            }
+        }
+        final Set<String> dropped = session.pollDroppedReferences();
+        for (String id : dropped) {
+            if (!isStillReferenced(attrs, id)) {
+                writes.add(remove(id));
+            }
+        }
+        if (writes.isEmpty()) {
+            return null;
+        }
+        return Observable.merge(writes).toList().doOnNext(new Action1<List<Object>>() {
+            @Override
+            public void call(List<Object> done) {
+                for (JsonObject ref : refreshed.values()) {
+                    ref.put(EXPIRES, expiresAt);
+                }
+                for (Map.Entry<String, Object> attribute : offloaded.entrySet()) {
+                    session.setOffloadedAttribute(attribute.getKey(), JsonObject.create()
+                            .put(REF, idOf(session.getId(), attribute.getKey())).put(EXPIRES, expiresAt),
+                            attribute.getValue());
+                }
+            }
+        }).doOnError(new Action1<Throwable>() {
+            @Override
+            public void call(Throwable error) {
+                // removed again on the next save
+                session.restoreDroppedReferences(dropped);
+            }
+        });
+    }
+
+    /**
+     * Reads the value an attribute reference points to, through the repository.
+     *
+     * @return the stored value of the attribute, null if its document does not exist anymore.
+     */
+    Object load(JsonObject ref) {
+        JsonDocument document = repository.getAttributeDocument(get(ref.getString(REF)));
+        if (document == null) {
+            return null;
+        }
+        Object stored = document.content().get(VALUE);
+        return document.content().containsKey(CODEC_VALUE) ? stored : SessionAttributeSerializer.escape(stored);
+    }
+
+    /**
+     * Prepares the removal of the attribute documents referenced by the content of a session document.
+     *
+     * @return the operation, emits the number of documents removed.
+     */
+    Observable<Integer> removeAll(JsonObject content) {
+        List<Observable<?>> removals = new ArrayList<Observable<?>>();
+        for (String name : content.getNames()) {
+            if (isReference(content.get(name))) {
+                removals.add(remove(content.getObject(name).getString(REF)));
+            }
+        }
+        return Observable.merge(removals).count();
+    }
+
+    /**
+     * Prepares the touch of the attribute documents referenced by the content of a session document, for a session
+     * whose own document is touched without being saved. The expiry recorded in the references cannot be updated, so
+     * the documents are touched every time.
+     *
+     * @param content the content of the session document.
+     * @param maxInactiveInterval the maximum inactive interval of the session.
+     * @return the operation, emits the number of documents touched.
+     */
+    Observable<Integer> touchAll(JsonObject content, int maxInactiveInterval) {
+        int expiry = expiry(maxInactiveInterval, System.currentTimeMillis());
+        List<Observable<?>> touches = new ArrayList<Observable<?>>();
+        for (String name : content.getNames()) {
+            if (isReference(content.get(name))) {
+                touches.add(touch(content.getObject(name).getString(REF), expiry));
+            }
+        }
+        return Observable.merge(touches).count();
+    }
+
+    private Observable<JsonDocument> get(final String id) {
+        return repository.retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                return asyncBucket.get(id);
+            }
+        });
+    }
+
+    private Observable<JsonDocument> upsert(final JsonDocument document) {
+        return repository.retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                return asyncBucket.upsert(document);
+            }
+        });
+    }
+
+    private Observable<?> touch(final String id, final int expiry) {
+        return ignoreMissing(repository.retrying(new Func0<Observable<Boolean>>() {
+            @Override
+            public Observable<Boolean> call() {
+                return asyncBucket.touch(id, expiry);
+            }
+        }), id, "extend the expiry of");
+    }
+
+    private Observable<?> remove(final String id) {
+        return ignoreMissing(repository.retrying(new Func0<Observable<JsonDocument>>() {
+            @Override
+            public Observable<JsonDocument> call() {
+                return asyncBucket.remove(id);
+            }
+        }), id, "remove");
+    }
+
+    /**
+     * The session document stays the reference: a missing attribute document reads as a removed attribute, and a
+     * failed removal only leaves a document that expires on its own.
+     */
+    private static <T> Observable<T> ignoreMissing(Observable<T> operation, final String id, final String action) {
+        return operation.onErrorResumeNext(new Func1<Throwable, Observable<T>>() {
+            @Override
+            public Observable<T> call(Throwable error) {
+                if (!(error instanceof DocumentDoesNotExistException)) {
+                    logger.warn("Could not " + action + " offloaded attribute " + id, error);
+                }
+                return Observable.empty();
+            }
+        });
+    }
+
+    static String idOf(String sessionId, String name) {
+        String uuid = sessionId.startsWith(CouchbaseSession.SESSION_KEY_PREFIX)
+                ? sessionId.substring(CouchbaseSession.SESSION_KEY_PREFIX.length()) : sessionId;
+        return KEY_PREFIX + uuid + ":" + name;
+    }
+
+    private static boolean isStillReferenced(JsonObject attrs, String id) {
+        for (String name : attrs.getNames()) {
+            Object stored = attrs.get(name);
+            if (isReference(stored) && id.equals(((JsonObject) stored).getString(REF))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int length(Object stored) {
+        if (stored instanceof String) {
+            return ((String) stored).length();
+        }
+        if (stored instanceof JsonObject || stored instanceof JsonArray) {
+            return stored.toString().length();
+        }
+        return 0;
+    }
+
+    private static int expiry(CouchbaseSession session, long now) {
+        return expiry(session.getMaxInactiveIntervalInSeconds(), now);
+    }
+
+    private static long maxInactiveMillis(CouchbaseSession session) {
+        return TimeUnit.SECONDS.toMillis(session.getMaxInactiveIntervalInSeconds());
+    }
+
+    /**
+     * @return when the attribute documents written now expire, 0 if never or if the session has a fixed expiry date.
+     */
+    private static long expiresAt(CouchbaseSession session, long now) {
+        int maxInactive = session.getMaxInactiveIntervalInSeconds();
+        if (maxInactive <= 0 || maxInactive > CouchbaseSession.THIRTY_DAYS_TIMESTAMP) {
+            return 0;
+        }
+        return now + 2 * maxInactiveMillis(session);
+    }
+
+    private static int expiry(int maxInactive, long now) {
+        if (maxInactive <= 0 || maxInactive > CouchbaseSession.THIRTY_DAYS_TIMESTAMP) {
+            // never expires, or already a date
+            return Math.max(0, maxInactive);
+        }
+        int ttl = 2 * maxInactive;
+        return ttl > CouchbaseSession.THIRTY_DAYS_TIMESTAMP ? (int) (now / 1000L + ttl) : ttl;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonArray;
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Stores the {@code SPRING_SECURITY_CONTEXT} attribute of a form or basic login as a small JSON object:
+ *
+ * <pre>
+ * {"principal": "user", "authorities": ["ROLE_USER"], "details": "rO0ABX..."}
+ * </pre>
+ *
+ * <p>
+ * Only a {@link SecurityContextImpl} holding a {@link UsernamePasswordAuthenticationToken} whose credentials were
+ * erased, whose principal is a {@link String} or a {@link User} and whose authorities are
+ * {@link SimpleGrantedAuthority}s is handled, anything else keeps the Java serialization. The details, usually a few
+ * bytes of {@code WebAuthenticationDetails}, are still Java serialized. The authorities are shared between the decoded
+ * contexts.
+ * </p>
+ *
+ * <p>
+ * Registered by {@link CouchbaseSessionRepository#addSecurityContextCodec()}.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+class SecurityContextCodec implements SessionAttributeCodec {
+
+    static final String NAME = "securityContext";
+
+    private static final String PRINCIPAL = "principal";
+
+    private static final String USERNAME = "username";
+
+    private static final String ENABLED = "enabled";
+
+    private static final String ACCOUNT_NON_EXPIRED = "accountNonExpired";
+
+    private static final String CREDENTIALS_NON_EXPIRED = "credentialsNonExpired";
+
+    private static final String ACCOUNT_NON_LOCKED = "accountNonLocked";
+
+    private static final String AUTHORITIES = "authorities";
+
+    private static final String AUTHENTICATED = "authenticated";
+
+    private static final String DETAILS = "details";
+
+    private final SessionAttributeSerializer serializer;
+
+    private final ConcurrentMap<String, SimpleGrantedAuthority> authorities =
+            new ConcurrentHashMap<String, SimpleGrantedAuthority>();
+
+    SecurityContextCodec(SessionAttributeSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public boolean canEncode(Object value) {
+        if (value.getClass() != SecurityContextImpl.class) {
+            return false;
+        }
+        Object authentication = ((SecurityContextImpl) value).getAuthentication();
+        if (authentication == null || authentication.getClass() != UsernamePasswordAuthenticationToken.class) {
+            return false;
+        }
+        UsernamePasswordAuthenticationToken token = (UsernamePasswordAuthenticationToken) authentication;
+        Object principal = token.getPrincipal();
+        if (token.getCredentials() != null || !simpleAuthorities(token.getAuthorities())) {
+            return false;
+        }
+        if (principal instanceof String) {
+            return true;
+        }
+        return principal != null && principal.getClass() == User.class
+                && ((User) principal).getPassword() == null && simpleAuthorities(((User) principal).getAuthorities());
+    }
+
+    public JsonObject encode(Object value) {
+        UsernamePasswordAuthenticationToken token =
+                (UsernamePasswordAuthenticationToken) ((SecurityContextImpl) value).getAuthentication();
+        JsonObject encoded = JsonObject.create();
+        if (token.getPrincipal() instanceof User) {
+            User user = (User) token.getPrincipal();
+            JsonObject principal = JsonObject.create().put(USERNAME, user.getUsername());
+            putIfFalse(principal, ENABLED, user.isEnabled());
+            putIfFalse(principal, ACCOUNT_NON_EXPIRED, user.isAccountNonExpired());
+            putIfFalse(principal, CREDENTIALS_NON_EXPIRED, user.isCredentialsNonExpired());
+            putIfFalse(principal, ACCOUNT_NON_LOCKED, user.isAccountNonLocked());
+            if (!sameAuthorities(user.getAuthorities(), token.getAuthorities())) {
+                principal.put(AUTHORITIES, encodeAuthorities(user.getAuthorities()));
+            }
+            encoded.put(PRINCIPAL, principal);
+        } else {
+            encoded.put(PRINCIPAL, (String) token.getPrincipal());
+        }
+        encoded.put(AUTHORITIES, encodeAuthorities(token.getAuthorities()));
+        putIfFalse(encoded, AUTHENTICATED, token.isAuthenticated());
+        if (token.getDetails() instanceof Serializable) {
+            encoded.put(DETAILS, serializer.objectToString((Serializable) token.getDetails()));
+        }
+        return encoded;
+    }
+
+    public Object decode(JsonObject encoded) {
+        List<GrantedAuthority> tokenAuthorities = decodeAuthorities(encoded.getArray(AUTHORITIES));
+        Object principal = encoded.get(PRINCIPAL);
+        if (principal instanceof JsonObject) {
+            JsonObject user = (JsonObject) principal;
+            JsonArray userAuthorities = user.getArray(AUTHORITIES);
+            User decoded = new User(user.getString(USERNAME), "", isTrue(user, ENABLED),
+                    isTrue(user, ACCOUNT_NON_EXPIRED), isTrue(user, CREDENTIALS_NON_EXPIRED),
+                    isTrue(user, ACCOUNT_NON_LOCKED),
+                    userAuthorities == null ? tokenAuthorities : decodeAuthorities(userAuthorities));
+            decoded.eraseCredentials();
+            principal = decoded;
+        }
+        UsernamePasswordAuthenticationToken token = isTrue(encoded, AUTHENTICATED)
+                ? new UsernamePasswordAuthenticationToken(principal, null, tokenAuthorities)
+                : new UsernamePasswordAuthenticationToken(principal, null);
+        String details = encoded.getString(DETAILS);
+        if (details != null) {
+            try {
+                token.setDetails(serializer.stringToObject(details));
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not deserialize the authentication details", e);
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Could not deserialize the authentication details", e);
+            }
+        }
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(token);
+        return context;
+    }
+
+    private JsonArray encodeAuthorities(Collection<? extends GrantedAuthority> authorities) {
+        JsonArray encoded = JsonArray.create();
+        for (GrantedAuthority authority : authorities) {
+            encoded.add(authority.getAuthority());
+        }
+        return encoded;
+    }
+
+    private List<GrantedAuthority> decodeAuthorities(JsonArray encoded) {
+        List<GrantedAuthority> decoded = new ArrayList<GrantedAuthority>(encoded.size());
+        for (int i = 0; i < encoded.size(); i++) {
+            String name = encoded.getString(i);
+            SimpleGrantedAuthority authority = authorities.get(name);
+            if (authority == null) {
+                authority = new SimpleGrantedAuthority(name);
+                SimpleGrantedAuthority existing = authorities.putIfAbsent(name, authority);
+                if (existing != null) {
+                    authority = existing;
+                }
+            }
+            decoded.add(authority);
+        }
+        return decoded;
+    }
+
+    private static boolean simpleAuthorities(Collection<? extends GrantedAuthority> authorities) {
+        for (GrantedAuthority authority : authorities) {
+            if (authority.getClass() != SimpleGrantedAuthority.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameAuthorities(Collection<? extends GrantedAuthority> first,
+            Collection<? extends GrantedAuthority> second) {
+        return first.size() == second.size() && new ArrayList<GrantedAuthority>(first).containsAll(second);
+    }
+
+    private static void putIfFalse(JsonObject json, String name, boolean value) {
+        if (!value) {
+            json.put(name, false);
+        }
+    }
+
+    private static boolean isTrue(JsonObject json, String name) {
+        return !Boolean.FALSE.equals(json.getBoolean(name));
+    }
+}
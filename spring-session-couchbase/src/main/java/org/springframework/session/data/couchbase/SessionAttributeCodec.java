@@ -0,0 +1,45 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * Stores a session attribute type as structured JSON instead of Base64 encoded Java serialization, which is both
+ * larger and slower for the few attribute types found in most sessions.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ * @see SessionAttributeSerializer#addCodec(SessionAttributeCodec)
+ */
+public interface SessionAttributeCodec {
+
+    /**
+     * @return the name stored along the encoded attributes, to find the codec back. Must not change once attributes
+     * were stored.
+     */
+    String getName();
+
+    /**
+     * @param value an attribute value that is not a JSON type.
+     * @return true if this codec can encode the value without losing anything the application relies on.
+     */
+    boolean canEncode(Object value);
+
+    JsonObject encode(Object value);
+
+    Object decode(JsonObject encoded);
+}
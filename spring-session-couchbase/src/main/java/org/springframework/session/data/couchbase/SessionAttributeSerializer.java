@@ -0,0 +1,261 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+import org.springframework.util.ClassUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Turns the session attributes that cannot be stored as JSON into Base64 encoded Java serialization, and back. The
+ * types handled by a {@link SessionAttributeCodec} are stored as JSON objects instead, tagged with the name of their
+ * codec in {@value #CODEC_KEY}, but only in the documents of a {@link SessionDocumentFormat} that
+ * {@link SessionDocumentFormat#storesCodecValues() stores codec values}: the nodes that do not know the codecs must
+ * not read them as plain JSON.
+ *
+ * <p>
+ * Within a session, a JSON object holding {@value #CODEC_KEY} is always a codec value. The JSON objects of the
+ * application that happen to hold that key are escaped, wrapped in a JSON object of their own, and unwrapped when they
+ * are read or written to a document that cannot hold codec values.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class SessionAttributeSerializer {
+
+    private static final Log log = LogFactory.getLog(SessionAttributeSerializer.class);
+
+    /**
+     * The serializer used by sessions that were not created by a {@link CouchbaseSessionRepository}.
+     */
+    static final SessionAttributeSerializer DEFAULT = new SessionAttributeSerializer();
+
+    /**
+     * Key holding the codec name in the attributes stored by a {@link SessionAttributeCodec}.
+     */
+    static final String CODEC_KEY = "_codec";
+
+    /**
+     * Codec name of the escaped JSON objects of the application.
+     */
+    private static final String ESCAPED = "json";
+
+    private static final String ESCAPED_VALUE = "value";
+
+    private final List<SessionAttributeCodec> codecs = new CopyOnWriteArrayList<SessionAttributeCodec>();
+
+    private CouchbaseSessionMetrics metrics;
+
+    private DeserializedAttributeCache deserializedCache;
+
+    private ClassLoader classLoader = ClassUtils.getDefaultClassLoader();
+
+    private List<String> allowedClasses = Collections.emptyList();
+
+    private volatile AttributeClassResolver classResolver = new AttributeClassResolver(classLoader, allowedClasses);
+
+    private SessionDocumentFormats documentFormats;
+
+    /**
+     * @param documentFormats the formats the sessions are written with, the codecs are used only when the write
+     * format stores codec values. Null to never use them.
+     */
+    public void setDocumentFormats(SessionDocumentFormats documentFormats) {
+        this.documentFormats = documentFormats;
+    }
+
+    /**
+     * @param deserializedCache where to share the deserialized values of the immutable types, may be null.
+     */
+    public void setDeserializedCache(DeserializedAttributeCache deserializedCache) {
+        this.deserializedCache = deserializedCache;
+    }
+
+    /**
+     * @param classLoader the class loader the classes of the Java serialized attributes are resolved with, typically
+     * the class loader of the web application. Null to resolve them like a plain {@link ObjectInputStream}.
+     */
+    public void setClassLoader(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+        this.classResolver = new AttributeClassResolver(classLoader, allowedClasses);
+    }
+
+    /**
+     * Restricts the classes the Java serialized attributes may be made of, see {@link AttributeClassResolver} for the
+     * patterns. The classes inside the attributes, such as the elements of a collection, must be allowed as well.
+     * @param allowedClasses class names or package patterns, none to allow all the classes.
+     */
+    public void setAllowedClasses(String... allowedClasses) {
+        this.allowedClasses = Arrays.asList(allowedClasses);
+        this.classResolver = new AttributeClassResolver(classLoader, this.allowedClasses);
+    }
+
+    /**
+     * @param codec a codec to try before the Java serialization. Codecs are tried in registration order. Register a
+     * format that {@link SessionDocumentFormat#storesCodecValues() stores codec values}, such as
+     * {@link CodecDocumentFormat}, on every node before writing it.
+     */
+    public void addCodec(SessionAttributeCodec codec) {
+        Assert.isTrue(!ESCAPED.equals(codec.getName()), "codec name " + ESCAPED + " is reserved");
+        codecs.add(codec);
+    }
+
+    /**
+     * @param metrics where to record the serialization times, may be null.
+     */
+    public void setMetrics(CouchbaseSessionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param value an attribute value that is not a JSON type.
+     * @return the value encoded by the first codec able to, or Java serialized.
+     */
+    public Object encode(Object value) {
+        if (documentFormats == null || !documentFormats.writesCodecValues()) {
+            return objectToString((Serializable) value);
+        }
+        for (SessionAttributeCodec codec : codecs) {
+            if (codec.canEncode(value)) {
+                long start = System.nanoTime();
+                JsonObject encoded = codec.encode(value).put(CODEC_KEY, codec.getName());
+                if (metrics != null) {
+                    metrics.recordSerialization(start);
+                }
+                return encoded;
+            }
+        }
+        return objectToString((Serializable) value);
+    }
+
+    /**
+     * @param value a JSON object of the application.
+     * @return the value as is, or escaped if it holds {@value #CODEC_KEY}.
+     */
+    static Object escape(Object value) {
+        if (value instanceof JsonObject && ((JsonObject) value).containsKey(CODEC_KEY)) {
+            return JsonObject.create().put(CODEC_KEY, ESCAPED).put(ESCAPED_VALUE, value);
+        }
+        return value;
+    }
+
+    /**
+     * @param stored a stored attribute value.
+     * @return the value to store in a document that cannot hold codec values: the decoded value Java serialized, the
+     * escaped JSON object unwrapped, any other value as is.
+     */
+    Object withoutCodec(Object stored) {
+        if (!isEncoded(stored)) {
+            return stored;
+        }
+        JsonObject encoded = (JsonObject) stored;
+        if (ESCAPED.equals(encoded.getString(CODEC_KEY))) {
+            return encoded.getObject(ESCAPED_VALUE);
+        }
+        return objectToString((Serializable) decode(encoded));
+    }
+
+    /**
+     * @return true if the stored value was written by a {@link SessionAttributeCodec} or is an escaped JSON object.
+     */
+    public boolean isEncoded(Object stored) {
+        return stored instanceof JsonObject && ((JsonObject) stored).containsKey(CODEC_KEY);
+    }
+
+    /**
+     * @param stored a value for which {@link #isEncoded(Object)} is true.
+     * @return the decoded attribute value.
+     * @throws IllegalStateException if the codec of the value is not registered.
+     */
+    public Object decode(JsonObject stored) {
+        String name = stored.getString(CODEC_KEY);
+        if (ESCAPED.equals(name)) {
+            return stored.getObject(ESCAPED_VALUE);
+        }
+        for (SessionAttributeCodec codec : codecs) {
+            if (codec.getName().equals(name)) {
+                long start = System.nanoTime();
+                Object decoded = codec.decode(stored);
+                if (metrics != null) {
+                    metrics.recordDeserialization(start);
+                }
+                return decoded;
+            }
+        }
+        throw new IllegalStateException("No codec " + name + " registered");
+    }
+
+    public String objectToString(Serializable object) {
+        long start = System.nanoTime();
+        String encoded = null;
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream);
+            objectOutputStream.writeObject(object);
+            objectOutputStream.close();
+            encoded = new String(Base64.getEncoder().encode(byteArrayOutputStream.toByteArray()));
+        } catch (IOException e) {
+            log.error("Could not serialize " + object, e);
+        }
+        if (metrics != null) {
+            metrics.recordSerialization(start);
+        }
+        return encoded;
+    }
+
+    public Object stringToObject(String string) throws IOException, ClassNotFoundException {
+        if (string == null) {
+            return null;
+        }
+        DeserializedAttributeCache.Key key = null;
+        if (deserializedCache != null) {
+            key = deserializedCache.key(string);
+            Object cached = deserializedCache.get(key);
+            if (cached != null) {
+                if (metrics != null) {
+                    metrics.recordDeserializationCacheHit();
+                }
+                return cached;
+            }
+        }
+        long start = System.nanoTime();
+        byte[] bytes = Base64.getDecoder().decode(string.getBytes());
+        ObjectInputStream objectInputStream = classResolver.newObjectInputStream(new ByteArrayInputStream(bytes));
+        Object object = objectInputStream.readObject();
+        if (metrics != null) {
+            metrics.recordDeserialization(start);
+        }
+        if (key != null) {
+            deserializedCache.put(key, object);
+        }
+        return object;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+
+/**
+ * One version of the layout of the session documents.
+ *
+ * <p>
+ * The sessions work on their attributes in the layout of version {@value SessionDocumentFormats#LEGACY_VERSION}: one
+ * JSON field per attribute, the values that are not JSON types being Base64 encoded Java serialization or codec
+ * objects. A format translates between that layout and the stored one.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ * @see SessionDocumentFormats
+ */
+public interface SessionDocumentFormat {
+
+    /**
+     * @return the version stored in the documents written by this format, greater than
+     * {@value SessionDocumentFormats#LEGACY_VERSION}.
+     */
+    int getVersion();
+
+    /**
+     * @param stored the content of a document written by this format, without the version field.
+     * @return the session attributes.
+     */
+    JsonObject read(JsonObject stored);
+
+    /**
+     * @param attributes the session attributes, must not be modified.
+     * @return the content to store, the version field is added by {@link SessionDocumentFormats}.
+     */
+    JsonObject write(JsonObject attributes);
+
+    /**
+     * @return true if the attributes of the documents of this version may hold values written by a
+     * {@link SessionAttributeCodec}, which the nodes reading them must have registered.
+     */
+    boolean storesCodecValues();
+}
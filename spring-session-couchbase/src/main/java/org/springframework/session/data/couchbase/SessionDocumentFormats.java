@@ -0,0 +1,159 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The registry of the {@link SessionDocumentFormat}s a node can read, and the version it writes.
+ *
+ * <p>
+ * The documents of version {@value #LEGACY_VERSION}, the layout that predates the versioning, have no version field.
+ * The others store their version in {@value #VERSION_KEY}, a name the sessions refuse as an attribute name so that
+ * no legacy document can be mistaken for a versioned one. A session is read with the format of its document and
+ * written with the format of {@link #setWriteVersion(int)}, so the documents are upgraded lazily, on their next save.
+ * </p>
+ *
+ * <p>
+ * The versions {@value CodecDocumentFormat#VERSION} to {@value DictionaryDocumentFormat#CODEC_VERSION} are those of
+ * the formats shipped with this module, {@link CodecDocumentFormat} and {@link DictionaryDocumentFormat}.
+ * </p>
+ *
+ * <p>
+ * During a rolling deploy, nodes must be able to read a version before any node writes it: roll out the new format
+ * registered but not written, then switch the write version in a second deploy. A node reading a version it does not
+ * know fails the request rather than losing the session.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class SessionDocumentFormats {
+
+    /**
+     * Version of the documents without a version field.
+     */
+    public static final int LEGACY_VERSION = 1;
+
+    /**
+     * Field holding the version of the documents written by a {@link SessionDocumentFormat}, reserved: it cannot be
+     * used as an attribute name.
+     */
+    public static final String VERSION_KEY = "$v";
+
+    private final Map<Integer, SessionDocumentFormat> formats = new ConcurrentHashMap<Integer, SessionDocumentFormat>();
+
+    private volatile int writeVersion = LEGACY_VERSION;
+
+    public SessionDocumentFormats() {
+    }
+
+    /**
+     * @param formats the formats to start from, typically to add the formats of one bucket to those shared by all
+     * of them.
+     */
+    public SessionDocumentFormats(SessionDocumentFormats formats) {
+        this.formats.putAll(formats.formats);
+        this.writeVersion = formats.writeVersion;
+    }
+
+    /**
+     * @param format a format this node can read.
+     */
+    public void register(SessionDocumentFormat format) {
+        Assert.isTrue(format.getVersion() > LEGACY_VERSION, "version must be greater than " + LEGACY_VERSION);
+        formats.put(format.getVersion(), format);
+    }
+
+    /**
+     * @param writeVersion the version of the documents written by this node, {@value #LEGACY_VERSION} or a registered
+     * version.
+     */
+    public void setWriteVersion(int writeVersion) {
+        Assert.isTrue(writeVersion == LEGACY_VERSION || formats.containsKey(writeVersion),
+                "version " + writeVersion + " is not registered");
+        this.writeVersion = writeVersion;
+    }
+
+    public int getWriteVersion() {
+        return writeVersion;
+    }
+
+    /**
+     * @return true if the documents written by this node may hold values written by a {@link SessionAttributeCodec}.
+     */
+    public boolean writesCodecValues() {
+        return storesCodecValues(writeVersion);
+    }
+
+    /**
+     * @param version a document version.
+     * @return true if the documents of that version may hold values written by a {@link SessionAttributeCodec}.
+     */
+    public boolean storesCodecValues(int version) {
+        SessionDocumentFormat format = formats.get(version);
+        return format != null && format.storesCodecValues();
+    }
+
+    /**
+     * @param stored the content of a session document.
+     * @return the version the document was written with.
+     */
+    public int versionOf(JsonObject stored) {
+        Object version = stored.get(VERSION_KEY);
+        return version instanceof Number ? ((Number) version).intValue() : LEGACY_VERSION;
+    }
+
+    /**
+     * @param stored the content of a session document.
+     * @return the session attributes.
+     * @throws IllegalStateException if the version of the document is not registered.
+     */
+    public JsonObject read(JsonObject stored) {
+        int version = versionOf(stored);
+        if (version == LEGACY_VERSION) {
+            return stored;
+        }
+        SessionDocumentFormat format = formats.get(version);
+        if (format == null) {
+            throw new IllegalStateException("Unknown session document version " + version
+                    + ", register its format before any node writes it");
+        }
+        JsonObject content = JsonObject.create();
+        for (String name : stored.getNames()) {
+            if (!VERSION_KEY.equals(name)) {
+                content.put(name, stored.get(name));
+            }
+        }
+        return format.read(content);
+    }
+
+    /**
+     * @param attributes the session attributes.
+     * @return the content to store, in the write version.
+     */
+    public JsonObject write(JsonObject attributes) {
+        int version = writeVersion;
+        if (version == LEGACY_VERSION) {
+            return attributes;
+        }
+        return formats.get(version).write(attributes).put(VERSION_KEY, version);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel keeping track of session expiration deadlines.
+ *
+ * <p>
+ * The wheel is made of {@link #LEVELS} levels of {@link #WHEEL_SIZE} slots. A slot of level {@code n} spans
+ * {@code WHEEL_SIZE^n} ticks, so four levels of 64 slots cover more than 190 days with a one second tick. Each slot is
+ * a doubly linked list, which makes both {@link #schedule(String, long, long)} and {@link #cancel(String)} O(1).
+ * Entries of the higher levels are cascaded down when the lower level wraps around, as in the Linux kernel timers.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+class SessionExpirationTimingWheel {
+
+    static final int WHEEL_BITS = 6;
+
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    static final int LEVELS = 4;
+
+    /**
+     * Farthest tick an entry can be placed at; entries beyond are re-placed once they reach the first level.
+     */
+    static final long MAX_DELTA = (1L << (WHEEL_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+
+    private final Entry[][] slots = new Entry[LEVELS][WHEEL_SIZE];
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    private long currentTick;
+
+    /**
+     * @param tickMillis the duration of a tick in milliseconds.
+     * @param startMillis the time the wheel starts at.
+     */
+    SessionExpirationTimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int index = 0; index < WHEEL_SIZE; index++) {
+                Entry head = new Entry(null, 0, 0, 0, 0);
+                head.prev = head;
+                head.next = head;
+                slots[level][index] = head;
+            }
+        }
+    }
+
+    /**
+     * Schedules the given session, replacing any previous deadline.
+     *
+     * @param id the session id.
+     * @param deadline the moment the session expires in milliseconds since the epoch.
+     * @param cas the CAS of the document at the time it was scheduled.
+     */
+    synchronized void schedule(String id, long deadline, long cas) {
+        cancel(id);
+        add(new Entry(id, deadline, toTick(deadline), cas, 0));
+    }
+
+    /**
+     * Schedules again an entry returned by {@link #advance(long)}, unless the session has been scheduled again in the
+     * meantime.
+     *
+     * @param expired the entry to retry.
+     * @param deadline the new deadline.
+     * @return true if the entry was scheduled.
+     */
+    synchronized boolean retry(Entry expired, long deadline) {
+        return retry(expired, deadline, expired.cas);
+    }
+
+    /**
+     * Schedules again an entry returned by {@link #advance(long)} with the CAS observed since, unless the session has
+     * been scheduled again in the meantime.
+     *
+     * @param expired the entry to retry.
+     * @param deadline the new deadline.
+     * @param cas the CAS of the session document.
+     * @return true if the entry was scheduled.
+     */
+    synchronized boolean retry(Entry expired, long deadline, long cas) {
+        if (entries.containsKey(expired.id)) {
+            return false;
+        }
+        add(new Entry(expired.id, deadline, toTick(deadline), cas, expired.attempts + 1));
+        return true;
+    }
+
+    /**
+     * @param id the session id.
+     * @return true if the session was scheduled.
+     */
+    synchronized boolean cancel(String id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward up to the given time.
+     *
+     * @param now the current time in milliseconds since the epoch.
+     * @return the entries whose deadline has passed, in no particular order.
+     */
+    synchronized List<Entry> advance(long now) {
+        List<Entry> expired = new ArrayList<Entry>();
+        long targetTick = now / tickMillis;
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = 1; level < LEVELS; level++) {
+                int shift = WHEEL_BITS * level;
+                if ((currentTick & ((1L << shift) - 1)) != 0) {
+                    break;
+                }
+                cascade(slots[level][(int) ((currentTick >>> shift) & WHEEL_MASK)]);
+            }
+            Entry head = slots[0][(int) (currentTick & WHEEL_MASK)];
+            Entry entry = head.next;
+            while (entry != head) {
+                Entry next = entry.next;
+                unlink(entry);
+                if (entry.tick <= currentTick) {
+                    entries.remove(entry.id);
+                    expired.add(entry);
+                } else {
+                    place(entry, currentTick);
+                }
+                entry = next;
+            }
+        }
+        return expired;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.id, entry);
+        place(entry, currentTick + 1);
+    }
+
+    private void cascade(Entry head) {
+        Entry entry = head.next;
+        while (entry != head) {
+            Entry next = entry.next;
+            unlink(entry);
+            place(entry, currentTick);
+            entry = next;
+        }
+    }
+
+    private void place(Entry entry, long minTick) {
+        long tick = Math.max(entry.tick, minTick);
+        long delta = tick - currentTick;
+        if (delta > MAX_DELTA) {
+            delta = MAX_DELTA;
+            tick = currentTick + MAX_DELTA;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+        Entry head = slots[level][(int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+        entry.prev = head.prev;
+        entry.next = head;
+        head.prev.next = entry;
+        head.prev = entry;
+    }
+
+    private void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private long toTick(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    /**
+     * A scheduled session expiration.
+     */
+    static final class Entry {
+
+        final String id;
+
+        final long deadline;
+
+        final long tick;
+
+        final long cas;
+
+        final int attempts;
+
+        Entry prev;
+
+        Entry next;
+
+        Entry(String id, long deadline, long tick, long cas, int attempts) {
+            this.id = id;
+            this.deadline = deadline;
+            this.tick = tick;
+            this.cas = cas;
+            this.attempts = attempts;
+        }
+    }
+}
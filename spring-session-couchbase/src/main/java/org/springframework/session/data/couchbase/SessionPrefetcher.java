@@ -0,0 +1,44 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+/**
+ * A {@link org.springframework.session.SessionRepository} able to start loading a session before it is asked for, so
+ * that the round trip overlaps with the rest of the request processing.
+ *
+ * <p>
+ * The prefetch belongs to the calling thread: the next {@link org.springframework.session.SessionRepository#getSession}
+ * of the same id on that thread joins it, any other call ignores it.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ * @see CouchbaseSessionPrefetchFilter
+ */
+public interface SessionPrefetcher {
+
+    /**
+     * Starts loading a session without waiting for it.
+     *
+     * @param id the session id.
+     */
+    void prefetch(String id);
+
+    /**
+     * Drops the prefetch of the calling thread, if any, its result is ignored.
+     */
+    void cancelPrefetch();
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link org.springframework.session.SessionRepository} able to extend the lifetime of many sessions at once without
+ * saving them.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ * @see CouchbaseSessionKeepAliveRegistry
+ */
+public interface SessionToucher {
+
+    /**
+     * Resets the expiration of the given sessions to their own timeout, without reading them.
+     *
+     * @param maxInactiveIntervals the maximum inactive interval in seconds of each session, by session id, as stored
+     * in the session.
+     * @return the ids of the sessions actually touched, the others did not exist or could not be touched.
+     */
+    Set<String> touchSessions(Map<String, Integer> maxInactiveIntervals);
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.session.SessionRepository;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@link org.springframework.session.SessionRepository} spreading the sessions over several buckets, each one
+ * handled by its own {@link CouchbaseSessionRepository}.
+ *
+ * <p>
+ * The shard of a session is encoded in its id, {@code spring:session:sessions:<shard>:<uuid>}, so routing a request
+ * needs neither a lookup nor a hash. New sessions are placed with a {@link ConsistentHashRing} of the shards. Ids
+ * without a shard, created before the sessions were sharded, are routed with the ring as well.
+ * </p>
+ *
+ * <p>
+ * {@link #addShard(String, CouchbaseSessionRepository)} makes the new shard take its part of the new sessions right
+ * away, while the existing sessions stay where their id says. The ids without a shard that the new ring assigns
+ * elsewhere are migrated on read: they are looked up on their previous owner, copied to the new one and removed from
+ * the old one. {@link #finishMigration()} stops looking up the previous owners, typically once the longest session
+ * timeout has passed. Shards cannot be removed.
+ * </p>
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+public class ShardedCouchbaseSessionRepository implements SessionRepository<CouchbaseSession>, SessionPrefetcher,
+        SessionToucher, DisposableBean {
+
+    private static final Log logger = LogFactory.getLog(ShardedCouchbaseSessionRepository.class);
+
+    static final char SHARD_SEPARATOR = ':';
+
+    private volatile Map<String, CouchbaseSessionRepository> shards;
+
+    private volatile ConsistentHashRing ring;
+
+    private volatile ConsistentHashRing previousRing;
+
+    /**
+     * @param shards the repositories of every bucket, keyed by shard name. The names must not contain
+     * {@value #SHARD_SEPARATOR} and must not change once sessions were created.
+     */
+    public ShardedCouchbaseSessionRepository(Map<String, CouchbaseSessionRepository> shards) {
+        Assert.notEmpty(shards, "shards cannot be empty");
+        for (String shard : shards.keySet()) {
+            Assert.isTrue(shard.indexOf(SHARD_SEPARATOR) < 0, "shard names cannot contain " + SHARD_SEPARATOR);
+        }
+        this.shards = new LinkedHashMap<String, CouchbaseSessionRepository>(shards);
+        this.ring = new ConsistentHashRing(shards.keySet());
+    }
+
+    /**
+     * Adds a shard and starts migrating the ids without a shard that now belong to it.
+     *
+     * @param shard the name of the new shard.
+     * @param repository the repository of its bucket.
+     */
+    public synchronized void addShard(String shard, CouchbaseSessionRepository repository) {
+        Assert.isTrue(shard.indexOf(SHARD_SEPARATOR) < 0, "shard names cannot contain " + SHARD_SEPARATOR);
+        Assert.isTrue(!shards.containsKey(shard), "shard " + shard + " already exists");
+        Map<String, CouchbaseSessionRepository> extended = new LinkedHashMap<String, CouchbaseSessionRepository>(shards);
+        extended.put(shard, repository);
+        previousRing = ring;
+        shards = extended;
+        ring = ring.with(shard);
+    }
+
+    /**
+     * Stops looking up the ids without a shard on their owner before the last {@link #addShard}.
+     */
+    public void finishMigration() {
+        previousRing = null;
+    }
+
+    /**
+     * @return the repository of every shard, keyed by shard name.
+     */
+    public Map<String, CouchbaseSessionRepository> getShards() {
+        return shards;
+    }
+
+    /**
+     * @param id the session id.
+     * @return the name of the shard the session is stored in.
+     */
+    public String getShard(String id) {
+        String shard = encodedShard(id);
+        return shard != null ? shard : ring.owner(id);
+    }
+
+    public CouchbaseSession createSession() {
+        String uuid = UUID.randomUUID().toString();
+        String shard = ring.owner(uuid);
+        CouchbaseSession session = shards.get(shard).createSession();
+        session.setId(CouchbaseSession.SESSION_KEY_PREFIX + shard + SHARD_SEPARATOR + uuid);
+        return session;
+    }
+
+    public void save(CouchbaseSession session) {
+        shards.get(getShard(session.getId())).save(session);
+    }
+
+    public CouchbaseSession getSession(String id) {
+        String shard = getShard(id);
+        CouchbaseSession session = shards.get(shard).getSession(id);
+        String previousShard = previousOwner(id);
+        if (session != null || previousShard == null || previousShard.equals(shard)) {
+            return session;
+        }
+        CouchbaseSessionRepository previous = shards.get(previousShard);
+        session = previous.getSession(id);
+        if (session != null) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Migrating session " + id + " from shard " + previousShard + " to " + shard);
+            }
+            shards.get(shard).save(session);
+            deleteQuietly(previous, id);
+        }
+        return session;
+    }
+
+    public void delete(String id) {
+        String shard = getShard(id);
+        String previousShard = previousOwner(id);
+        if (previousShard == null || previousShard.equals(shard)) {
+            shards.get(shard).delete(id);
+            return;
+        }
+        try {
+            shards.get(shard).delete(id);
+        } catch (DocumentDoesNotExistException e) {
+            // not migrated yet
+            shards.get(previousShard).delete(id);
+        }
+    }
+
+    /**
+     * Prefetches the session from its shard. During a migration, a session that has not moved yet is still loaded
+     * synchronously from its previous owner.
+     */
+    public void prefetch(String id) {
+        shards.get(getShard(id)).prefetch(id);
+    }
+
+    public void cancelPrefetch() {
+        for (CouchbaseSessionRepository shard : shards.values()) {
+            shard.cancelPrefetch();
+        }
+    }
+
+    /**
+     * Loads many sessions, with one bulk operation per shard.
+     *
+     * @see CouchbaseSessionRepository#getSessions(Collection)
+     */
+    public Map<String, CouchbaseSession> getSessions(Collection<String> ids) {
+        Map<String, CouchbaseSession> sessions = new HashMap<String, CouchbaseSession>();
+        for (Map.Entry<String, List<String>> shard : groupByShard(ids).entrySet()) {
+            sessions.putAll(shards.get(shard.getKey()).getSessions(shard.getValue()));
+        }
+        return sessions;
+    }
+
+    /**
+     * Deletes many sessions, with one bulk operation per shard. Sessions not migrated yet are left to expire.
+     *
+     * @see CouchbaseSessionRepository#deleteSessions(Collection)
+     */
+    public Set<String> deleteSessions(Collection<String> ids) {
+        Set<String> deleted = new HashSet<String>();
+        for (Map.Entry<String, List<String>> shard : groupByShard(ids).entrySet()) {
+            deleted.addAll(shards.get(shard.getKey()).deleteSessions(shard.getValue()));
+        }
+        return deleted;
+    }
+
+    /**
+     * Touches many sessions, with one bulk operation per shard. Sessions not migrated yet are left to expire.
+     *
+     * @see CouchbaseSessionRepository#touchSessions(Map)
+     */
+    public Set<String> touchSessions(Map<String, Integer> maxInactiveIntervals) {
+        Set<String> touched = new HashSet<String>();
+        for (Map.Entry<String, List<String>> shard : groupByShard(maxInactiveIntervals.keySet()).entrySet()) {
+            Map<String, Integer> intervals = new HashMap<String, Integer>();
+            for (String id : shard.getValue()) {
+                intervals.put(id, maxInactiveIntervals.get(id));
+            }
+            touched.addAll(shards.get(shard.getKey()).touchSessions(intervals));
+        }
+        return touched;
+    }
+
+    /**
+     * Flushes the shards.
+     */
+    public void destroy() {
+        for (CouchbaseSessionRepository shard : shards.values()) {
+            shard.destroy();
+        }
+    }
+
+    private Map<String, List<String>> groupByShard(Collection<String> ids) {
+        Map<String, List<String>> groups = new HashMap<String, List<String>>();
+        for (String id : ids) {
+            String shard = getShard(id);
+            List<String> group = groups.get(shard);
+            if (group == null) {
+                group = new ArrayList<String>();
+                groups.put(shard, group);
+            }
+            group.add(id);
+        }
+        return groups;
+    }
+
+    /**
+     * @return the shard encoded in the id, null if the id has none or an unknown one.
+     */
+    private String encodedShard(String id) {
+        if (!id.startsWith(CouchbaseSession.SESSION_KEY_PREFIX)) {
+            return null;
+        }
+        int separator = id.indexOf(SHARD_SEPARATOR, CouchbaseSession.SESSION_KEY_PREFIX.length());
+        if (separator < 0) {
+            return null;
+        }
+        String shard = id.substring(CouchbaseSession.SESSION_KEY_PREFIX.length(), separator);
+        return shards.containsKey(shard) ? shard : null;
+    }
+
+    /**
+     * @return the owner of an id without a shard before the last {@link #addShard}, null if not migrating.
+     */
+    private String previousOwner(String id) {
+        ConsistentHashRing previous = previousRing;
+        if (previous == null || encodedShard(id) != null) {
+            return null;
+        }
+        return previous.owner(id);
+    }
+
+    private static void deleteQuietly(CouchbaseSessionRepository repository, String id) {
+        try {
+            repository.delete(id);
+        } catch (DocumentDoesNotExistException e) {
+            // migrated concurrently
+        }
+    }
+}
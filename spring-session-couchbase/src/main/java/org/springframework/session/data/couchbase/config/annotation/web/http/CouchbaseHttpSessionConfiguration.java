@@ -16,7 +16,10 @@
 package org.springframework.session.data.couchbase.config.annotation.web.http;
 
 import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.PersistTo;
+import com.couchbase.client.java.ReplicateTo;
 import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.beans.factory.BeanFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Bean;
@@ -26,20 +29,47 @@ import org.springframework.core.annotation.AnnotationAttributes;
 import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.core.type.AnnotationMetadata;
 import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.SessionRepository;
+import org.springframework.session.data.couchbase.AttributeNameDictionary;
+import org.springframework.session.data.couchbase.CodecDocumentFormat;
+import org.springframework.session.data.couchbase.CouchbaseSession;
+import org.springframework.session.data.couchbase.CouchbaseSessionBypassFilter;
+import org.springframework.session.data.couchbase.CouchbaseSessionCircuitBreaker;
+import org.springframework.session.data.couchbase.CouchbaseSessionExpirationTracker;
+import org.springframework.session.data.couchbase.CouchbaseSessionLocalCache;
+import org.springframework.session.data.couchbase.CouchbaseSessionMetrics;
+import org.springframework.session.data.couchbase.CouchbaseSessionPrefetchFilter;
 import org.springframework.session.data.couchbase.CouchbaseSessionRepository;
+import org.springframework.session.data.couchbase.CouchbaseSessionRepository.DegradedPolicy;
+import org.springframework.session.data.couchbase.CouchbaseSessionRetryPolicy;
+import org.springframework.session.data.couchbase.CouchbaseSessionWarmup;
+import org.springframework.session.data.couchbase.CouchbaseSessionWriteBehindQueue;
+import org.springframework.session.data.couchbase.DeserializedAttributeCache;
+import org.springframework.session.data.couchbase.DictionaryDocumentFormat;
+import org.springframework.session.data.couchbase.SessionDocumentFormats;
+import org.springframework.session.data.couchbase.SessionPrefetcher;
+import org.springframework.session.data.couchbase.ShardedCouchbaseSessionRepository;
+import org.springframework.session.web.http.CookieHttpSessionStrategy;
 import org.springframework.session.web.http.HttpSessionStrategy;
 import org.springframework.session.web.http.SessionRepositoryFilter;
 import org.springframework.util.ClassUtils;
 
+import javax.servlet.Filter;
 import javax.servlet.ServletContext;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Exposes the {@link org.springframework.session.web.http.SessionRepositoryFilter} as a bean named
  * "springSessionRepositoryFilter". In order to use this a single
- * {@link com.couchbase.client.java.AsyncBucket} must be exposed as a Bean.
+ * {@link com.couchbase.client.java.AsyncBucket} must be exposed as a Bean, or one Bean per shard when
+ * {@link #setShards(String...)} is used.
  *
  * @author Laurent Doguin
  * @since 1.0
@@ -48,31 +78,228 @@ import java.util.Map;
  */
 @Configuration
 @EnableScheduling
-public class CouchbaseHttpSessionConfiguration implements ImportAware, BeanClassLoaderAware {
+public class CouchbaseHttpSessionConfiguration implements ImportAware, BeanClassLoaderAware, SchedulingConfigurer {
 
 	private ClassLoader beanClassLoader;
 
 	private Integer maxInactiveIntervalInSeconds = 1800;
 
+	private boolean localExpirationTracking;
+
+	private boolean deferEmptySessions;
+
+	private boolean hedgedReads;
+
+	private long operationTimeoutMillis;
+
+	private int maxConcurrentOperations;
+
+	private boolean circuitBreaker;
+
+	private DegradedPolicy degradedPolicy = DegradedPolicy.FAIL_FAST;
+
+	private String localCacheSnapshotDirectory = "";
+
+	private PersistTo savePersistTo = PersistTo.NONE;
+
+	private ReplicateTo saveReplicateTo = ReplicateTo.NONE;
+
+	private PersistTo createPersistTo = PersistTo.NONE;
+
+	private ReplicateTo createReplicateTo = ReplicateTo.NONE;
+
+	private PersistTo deletePersistTo = PersistTo.NONE;
+
+	private ReplicateTo deleteReplicateTo = ReplicateTo.NONE;
+
+	private boolean asyncReplicationCheck;
+
+	private int retryMaxAttempts = 1;
+
+	private long retryDeadlineMillis = CouchbaseSessionRetryPolicy.DEFAULT_DEADLINE_MILLIS;
+
+	private boolean writeBehind;
+
+	private boolean prefetch;
+
+	private boolean attributeNameDictionary;
+
+	private int documentFormatVersion = SessionDocumentFormats.LEGACY_VERSION;
+
+	private boolean securityContextCodec;
+
+	private SessionDocumentFormats documentFormats;
+
+	private int attributeOffloadThreshold;
+
+	private Class<?>[] immutableAttributeTypes = new Class<?>[0];
+
+	private String[] allowedAttributeClasses = new String[0];
+
+	private DeserializedAttributeCache deserializedAttributeCache;
+
+	private int webSocketKeepAliveIntervalSeconds;
+
+	private boolean warmup;
+
+	private int warmupRoundTrips = CouchbaseSessionWarmup.DEFAULT_ROUND_TRIPS;
+
+	private String[] shards = new String[0];
+
+	private String[] skippedPaths = new String[0];
+
+	private String[] skippedMethods = new String[0];
+
+	private String[] readOnlyPaths = new String[0];
+
+	private String[] readOnlyMethods = new String[0];
+
+	private final List<CouchbaseSessionExpirationTracker> expirationTrackers = new ArrayList<CouchbaseSessionExpirationTracker>();
+
 	private HttpSessionStrategy httpSessionStrategy;
 
 	@Autowired
 	private ApplicationEventPublisher eventPublisher;
 
+	@Autowired
+	private BeanFactory beanFactory;
+
 	@Bean
-	public CouchbaseSessionRepository sessionRepository(AsyncBucket asyncBucket) {
+	public SessionRepository<CouchbaseSession> sessionRepository() {
+		if(shards.length == 0) {
+			return createSessionRepository(beanFactory.getBean(AsyncBucket.class));
+		}
+		Map<String, CouchbaseSessionRepository> repositories = new LinkedHashMap<String, CouchbaseSessionRepository>();
+		for(String shard : shards) {
+			repositories.put(shard, createSessionRepository(beanFactory.getBean(shard, AsyncBucket.class)));
+		}
+		return new ShardedCouchbaseSessionRepository(repositories);
+	}
+
+	private CouchbaseSessionRepository createSessionRepository(AsyncBucket asyncBucket) {
 		CouchbaseSessionRepository sessionRepository = new CouchbaseSessionRepository(asyncBucket);
 		sessionRepository.setDefaultMaxInactiveInterval(maxInactiveIntervalInSeconds);
+		sessionRepository.setMetrics(couchbaseSessionMetrics());
+		sessionRepository.setDeferEmptySessions(deferEmptySessions);
+		if(documentFormats == null) {
+			documentFormats = new SessionDocumentFormats();
+		}
+		if(securityContextCodec) {
+			documentFormats.register(new CodecDocumentFormat());
+			sessionRepository.addSecurityContextCodec();
+		}
+		SessionDocumentFormats formats = documentFormats;
+		if(attributeNameDictionary) {
+			// the dictionary is per bucket
+			formats = new SessionDocumentFormats(documentFormats);
+			AttributeNameDictionary dictionary = new AttributeNameDictionary(asyncBucket);
+			if(operationTimeoutMillis > 0) {
+				dictionary.setTimeoutMillis(operationTimeoutMillis);
+			}
+			formats.register(new DictionaryDocumentFormat(dictionary, false));
+			if(securityContextCodec) {
+				formats.register(new DictionaryDocumentFormat(dictionary, true));
+			}
+		}
+		formats.setWriteVersion(documentFormatVersion);
+		sessionRepository.setDocumentFormats(formats);
+		sessionRepository.setAttributeOffloadThreshold(attributeOffloadThreshold);
+		if(beanClassLoader != null) {
+			sessionRepository.setAttributeClassLoader(beanClassLoader);
+		}
+		sessionRepository.setAllowedAttributeClasses(allowedAttributeClasses);
+		if(immutableAttributeTypes.length > 0) {
+			if(deserializedAttributeCache == null) {
+				deserializedAttributeCache = new DeserializedAttributeCache(immutableAttributeTypes);
+			}
+			sessionRepository.setDeserializedAttributeCache(deserializedAttributeCache);
+		}
+		sessionRepository.setSaveDurability(savePersistTo, saveReplicateTo);
+		sessionRepository.setCreateDurability(createPersistTo, createReplicateTo);
+		sessionRepository.setDeleteDurability(deletePersistTo, deleteReplicateTo);
+		sessionRepository.setAsyncReplicationCheck(asyncReplicationCheck);
+		if(retryMaxAttempts > 1) {
+			CouchbaseSessionRetryPolicy retryPolicy = new CouchbaseSessionRetryPolicy();
+			retryPolicy.setMaxAttempts(retryMaxAttempts);
+			retryPolicy.setDeadlineMillis(retryDeadlineMillis);
+			sessionRepository.setRetryPolicy(retryPolicy);
+		}
+		sessionRepository.setHedgedReads(hedgedReads);
+		sessionRepository.setOperationTimeoutMillis(operationTimeoutMillis);
+		sessionRepository.setMaxConcurrentOperations(maxConcurrentOperations);
+		if(circuitBreaker) {
+			sessionRepository.setCircuitBreaker(new CouchbaseSessionCircuitBreaker());
+		}
+		sessionRepository.setDegradedPolicy(degradedPolicy);
+		if(degradedPolicy == DegradedPolicy.LOCAL_CACHE && localCacheSnapshotDirectory.length() > 0) {
+			CouchbaseSessionLocalCache localCache = new CouchbaseSessionLocalCache();
+			localCache.setSnapshotFile(new File(localCacheSnapshotDirectory,
+					"spring-session-" + asyncBucket.name() + ".snapshot"));
+			sessionRepository.setLocalCache(localCache);
+		}
+		if(writeBehind) {
+			sessionRepository.setWriteBehindQueue(new CouchbaseSessionWriteBehindQueue(asyncBucket));
+		}
+		if(localExpirationTracking) {
+			CouchbaseSessionExpirationTracker expirationTracker = new CouchbaseSessionExpirationTracker(asyncBucket, eventPublisher);
+			sessionRepository.setExpirationTracker(expirationTracker);
+			expirationTrackers.add(expirationTracker);
+		}
 		return sessionRepository;
 	}
 
 	@Bean
-	public <S extends ExpiringSession> SessionRepositoryFilter<? extends ExpiringSession> springSessionRepositoryFilter(SessionRepository<S> sessionRepository, ServletContext servletContext) {
+	public CouchbaseSessionWarmup couchbaseSessionWarmup() {
+		List<AsyncBucket> buckets = new ArrayList<AsyncBucket>();
+		if(shards.length == 0) {
+			buckets.add(beanFactory.getBean(AsyncBucket.class));
+		}
+		for(String shard : shards) {
+			buckets.add(beanFactory.getBean(shard, AsyncBucket.class));
+		}
+		CouchbaseSessionWarmup sessionWarmup = new CouchbaseSessionWarmup(sessionRepository(), buckets);
+		sessionWarmup.setEnabled(warmup);
+		sessionWarmup.setRoundTrips(warmupRoundTrips);
+		return sessionWarmup;
+	}
+
+	@Bean
+	public CouchbaseSessionMetrics couchbaseSessionMetrics() {
+		return new CouchbaseSessionMetrics();
+	}
+
+	public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+		for(final CouchbaseSessionExpirationTracker expirationTracker : expirationTrackers) {
+			taskRegistrar.addFixedDelayTask(new Runnable() {
+				public void run() {
+					expirationTracker.processExpirations();
+				}
+			}, CouchbaseSessionExpirationTracker.DEFAULT_TICK_MILLIS);
+		}
+	}
+
+	@Bean
+	public <S extends ExpiringSession> Filter springSessionRepositoryFilter(SessionRepository<S> sessionRepository, ServletContext servletContext) {
+		Filter sessionRepositoryFilter = createSessionRepositoryFilter(sessionRepository, servletContext);
+		CouchbaseSessionBypassFilter bypassFilter = new CouchbaseSessionBypassFilter(sessionRepositoryFilter,
+				createSessionRepositoryFilter(CouchbaseSessionBypassFilter.readOnly(sessionRepository), servletContext));
+		bypassFilter.setSkippedPaths(skippedPaths);
+		bypassFilter.setSkippedMethods(skippedMethods);
+		bypassFilter.setReadOnlyPaths(readOnlyPaths);
+		bypassFilter.setReadOnlyMethods(readOnlyMethods);
+		return bypassFilter.hasRules() ? bypassFilter : sessionRepositoryFilter;
+	}
+
+	private <S extends ExpiringSession> Filter createSessionRepositoryFilter(SessionRepository<S> sessionRepository, ServletContext servletContext) {
 		SessionRepositoryFilter<S> sessionRepositoryFilter = new SessionRepositoryFilter<S>(sessionRepository);
 		sessionRepositoryFilter.setServletContext(servletContext);
 		if(httpSessionStrategy != null) {
 			sessionRepositoryFilter.setHttpSessionStrategy(httpSessionStrategy);
 		}
+		if(prefetch && sessionRepository instanceof SessionPrefetcher) {
+			return new CouchbaseSessionPrefetchFilter(sessionRepositoryFilter, (SessionPrefetcher) sessionRepository,
+					httpSessionStrategy != null ? httpSessionStrategy : new CookieHttpSessionStrategy());
+		}
 		return sessionRepositoryFilter;
 	}
 
@@ -80,6 +307,145 @@ public class CouchbaseHttpSessionConfiguration implements ImportAware, BeanClass
 		this.maxInactiveIntervalInSeconds = maxInactiveIntervalInSeconds;
 	}
 
+	public void setLocalExpirationTracking(boolean localExpirationTracking) {
+		this.localExpirationTracking = localExpirationTracking;
+	}
+
+	public void setDeferEmptySessions(boolean deferEmptySessions) {
+		this.deferEmptySessions = deferEmptySessions;
+	}
+
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	public void setOperationTimeoutMillis(long operationTimeoutMillis) {
+		this.operationTimeoutMillis = operationTimeoutMillis;
+	}
+
+	public void setMaxConcurrentOperations(int maxConcurrentOperations) {
+		this.maxConcurrentOperations = maxConcurrentOperations;
+	}
+
+	public void setCircuitBreaker(boolean circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public void setDegradedPolicy(DegradedPolicy degradedPolicy) {
+		this.degradedPolicy = degradedPolicy;
+	}
+
+	public void setLocalCacheSnapshotDirectory(String localCacheSnapshotDirectory) {
+		this.localCacheSnapshotDirectory = localCacheSnapshotDirectory;
+	}
+
+	public void setSaveDurability(PersistTo savePersistTo, ReplicateTo saveReplicateTo) {
+		this.savePersistTo = savePersistTo;
+		this.saveReplicateTo = saveReplicateTo;
+	}
+
+	public void setCreateDurability(PersistTo createPersistTo, ReplicateTo createReplicateTo) {
+		this.createPersistTo = createPersistTo;
+		this.createReplicateTo = createReplicateTo;
+	}
+
+	public void setDeleteDurability(PersistTo deletePersistTo, ReplicateTo deleteReplicateTo) {
+		this.deletePersistTo = deletePersistTo;
+		this.deleteReplicateTo = deleteReplicateTo;
+	}
+
+	public void setAsyncReplicationCheck(boolean asyncReplicationCheck) {
+		this.asyncReplicationCheck = asyncReplicationCheck;
+	}
+
+	public void setRetryMaxAttempts(int retryMaxAttempts) {
+		this.retryMaxAttempts = retryMaxAttempts;
+	}
+
+	public void setRetryDeadlineMillis(long retryDeadlineMillis) {
+		this.retryDeadlineMillis = retryDeadlineMillis;
+	}
+
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public void setWebSocketKeepAliveIntervalSeconds(int webSocketKeepAliveIntervalSeconds) {
+		this.webSocketKeepAliveIntervalSeconds = webSocketKeepAliveIntervalSeconds;
+	}
+
+	/**
+	 * @return the maximum inactive interval of the sessions.
+	 */
+	int getMaxInactiveIntervalInSeconds() {
+		return maxInactiveIntervalInSeconds;
+	}
+
+	/**
+	 * @return how often {@link CouchbaseWebSocketSessionConfiguration} touches the sessions of the open WebSocket
+	 * connections, half of the session timeout unless set.
+	 */
+	int getWebSocketKeepAliveIntervalSeconds() {
+		return webSocketKeepAliveIntervalSeconds > 0
+				? webSocketKeepAliveIntervalSeconds : Math.max(1, maxInactiveIntervalInSeconds / 2);
+	}
+
+	public void setWarmup(boolean warmup) {
+		this.warmup = warmup;
+	}
+
+	public void setWarmupRoundTrips(int warmupRoundTrips) {
+		this.warmupRoundTrips = warmupRoundTrips;
+	}
+
+	public void setAttributeNameDictionary(boolean attributeNameDictionary) {
+		this.attributeNameDictionary = attributeNameDictionary;
+	}
+
+	public void setDocumentFormatVersion(int documentFormatVersion) {
+		this.documentFormatVersion = documentFormatVersion;
+	}
+
+	public void setSecurityContextCodec(boolean securityContextCodec) {
+		this.securityContextCodec = securityContextCodec;
+	}
+
+	public void setAttributeOffloadThreshold(int attributeOffloadThreshold) {
+		this.attributeOffloadThreshold = attributeOffloadThreshold;
+	}
+
+	public void setImmutableAttributeTypes(Class<?>... immutableAttributeTypes) {
+		this.immutableAttributeTypes = immutableAttributeTypes;
+	}
+
+	public void setAllowedAttributeClasses(String... allowedAttributeClasses) {
+		this.allowedAttributeClasses = allowedAttributeClasses;
+	}
+
+	public void setShards(String... shards) {
+		this.shards = shards;
+	}
+
+	public void setSkippedPaths(String... skippedPaths) {
+		this.skippedPaths = skippedPaths;
+	}
+
+	public void setSkippedMethods(String... skippedMethods) {
+		this.skippedMethods = skippedMethods;
+	}
+
+	public void setReadOnlyPaths(String... readOnlyPaths) {
+		this.readOnlyPaths = readOnlyPaths;
+	}
+
+	public void setReadOnlyMethods(String... readOnlyMethods) {
+		this.readOnlyMethods = readOnlyMethods;
+	}
+
 	public void setImportMetadata(AnnotationMetadata importMetadata) {
 
 		Map<String, Object> enableAttrMap = importMetadata.getAnnotationAttributes(EnableCouchbaseHttpSession.class.getName());
@@ -98,6 +464,48 @@ public class CouchbaseHttpSessionConfiguration implements ImportAware, BeanClass
 			}
 		}
 		maxInactiveIntervalInSeconds = enableAttrs.getNumber("maxInactiveIntervalInSeconds");
+		localExpirationTracking = enableAttrs.getBoolean("localExpirationTracking");
+		deferEmptySessions = enableAttrs.getBoolean("deferEmptySessions");
+		hedgedReads = enableAttrs.getBoolean("hedgedReads");
+		operationTimeoutMillis = enableAttrs.getNumber("operationTimeoutMillis");
+		maxConcurrentOperations = enableAttrs.getNumber("maxConcurrentOperations");
+		circuitBreaker = enableAttrs.getBoolean("circuitBreaker");
+		degradedPolicy = enableAttrs.getEnum("degradedPolicy");
+		localCacheSnapshotDirectory = enableAttrs.getString("localCacheSnapshotDirectory");
+		savePersistTo = enableAttrs.getEnum("savePersistTo");
+		saveReplicateTo = enableAttrs.getEnum("saveReplicateTo");
+		createPersistTo = enableAttrs.getEnum("createPersistTo");
+		createReplicateTo = enableAttrs.getEnum("createReplicateTo");
+		deletePersistTo = enableAttrs.getEnum("deletePersistTo");
+		deleteReplicateTo = enableAttrs.getEnum("deleteReplicateTo");
+		asyncReplicationCheck = enableAttrs.getBoolean("asyncReplicationCheck");
+		retryMaxAttempts = enableAttrs.getNumber("retryMaxAttempts");
+		retryDeadlineMillis = enableAttrs.getNumber("retryDeadlineMillis");
+		writeBehind = enableAttrs.getBoolean("writeBehind");
+		prefetch = enableAttrs.getBoolean("prefetch");
+		webSocketKeepAliveIntervalSeconds = enableAttrs.getNumber("webSocketKeepAliveIntervalSeconds");
+		warmup = enableAttrs.getBoolean("warmup");
+		warmupRoundTrips = enableAttrs.getNumber("warmupRoundTrips");
+		attributeNameDictionary = enableAttrs.getBoolean("attributeNameDictionary");
+		documentFormatVersion = enableAttrs.getNumber("documentFormatVersion");
+		securityContextCodec = enableAttrs.getBoolean("securityContextCodec");
+		attributeOffloadThreshold = enableAttrs.getNumber("attributeOffloadThreshold");
+		immutableAttributeTypes = enableAttrs.getClassArray("immutableAttributeTypes");
+		allowedAttributeClasses = enableAttrs.getStringArray("allowedAttributeClasses");
+		shards = enableAttrs.getStringArray("shards");
+		skippedPaths = enableAttrs.getStringArray("skippedPaths");
+		skippedMethods = enableAttrs.getStringArray("skippedMethods");
+		readOnlyPaths = enableAttrs.getStringArray("readOnlyPaths");
+		readOnlyMethods = enableAttrs.getStringArray("readOnlyMethods");
+	}
+
+	/**
+	 * @param documentFormats the formats of the session documents, to register formats newer than
+	 * {@link SessionDocumentFormats#LEGACY_VERSION}.
+	 */
+	@Autowired(required = false)
+	public void setDocumentFormats(SessionDocumentFormats documentFormats) {
+		this.documentFormats = documentFormats;
 	}
 
 	@Autowired(required = false)
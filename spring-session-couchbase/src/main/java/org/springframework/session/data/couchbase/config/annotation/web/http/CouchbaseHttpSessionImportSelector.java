@@ -0,0 +1,49 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase.config.annotation.web.http;
+
+import org.springframework.beans.factory.BeanClassLoaderAware;
+import org.springframework.context.annotation.ImportSelector;
+import org.springframework.core.type.AnnotationMetadata;
+import org.springframework.util.ClassUtils;
+
+/**
+ * Imports {@link CouchbaseHttpSessionConfiguration}, and {@link CouchbaseWebSocketSessionConfiguration} when
+ * spring-websocket is on the classpath.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ *
+ * @see EnableCouchbaseHttpSession
+ */
+class CouchbaseHttpSessionImportSelector implements ImportSelector, BeanClassLoaderAware {
+
+	private static final String WEB_SOCKET_HANDLER = "org.springframework.web.socket.WebSocketHandler";
+
+	private ClassLoader beanClassLoader;
+
+	public String[] selectImports(AnnotationMetadata importingClassMetadata) {
+		if(ClassUtils.isPresent(WEB_SOCKET_HANDLER, beanClassLoader)) {
+			return new String[] { CouchbaseHttpSessionConfiguration.class.getName(),
+					CouchbaseWebSocketSessionConfiguration.class.getName() };
+		}
+		return new String[] { CouchbaseHttpSessionConfiguration.class.getName() };
+	}
+
+	public void setBeanClassLoader(ClassLoader classLoader) {
+		this.beanClassLoader = classLoader;
+	}
+}
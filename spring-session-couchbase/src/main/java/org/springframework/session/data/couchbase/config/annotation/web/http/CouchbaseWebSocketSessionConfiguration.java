@@ -0,0 +1,59 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase.config.annotation.web.http;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.session.data.couchbase.CouchbaseSessionKeepAliveRegistry;
+import org.springframework.session.data.couchbase.SessionToucher;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the {@link CouchbaseSessionKeepAliveRegistry} as a bean named "couchbaseSessionKeepAliveRegistry" and
+ * touches its sessions periodically. Kept apart from {@link CouchbaseHttpSessionConfiguration} as it needs
+ * spring-websocket, which is optional: {@link EnableCouchbaseHttpSession} only imports it when spring-websocket is on
+ * the classpath. Configurations extending {@link CouchbaseHttpSessionConfiguration} import it themselves if needed.
+ *
+ * @author Laurent Doguin
+ * @since 1.0
+ */
+@Configuration
+public class CouchbaseWebSocketSessionConfiguration implements SchedulingConfigurer {
+
+	@Autowired
+	private CouchbaseHttpSessionConfiguration sessionConfiguration;
+
+	@Bean
+	public CouchbaseSessionKeepAliveRegistry couchbaseSessionKeepAliveRegistry() {
+		CouchbaseSessionKeepAliveRegistry keepAliveRegistry =
+				new CouchbaseSessionKeepAliveRegistry((SessionToucher) sessionConfiguration.sessionRepository());
+		keepAliveRegistry.setDefaultMaxInactiveInterval(sessionConfiguration.getMaxInactiveIntervalInSeconds());
+		return keepAliveRegistry;
+	}
+
+	public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+		final CouchbaseSessionKeepAliveRegistry keepAliveRegistry = couchbaseSessionKeepAliveRegistry();
+		taskRegistrar.addFixedDelayTask(new Runnable() {
+			public void run() {
+				keepAliveRegistry.touchAll();
+			}
+		}, TimeUnit.SECONDS.toMillis(sessionConfiguration.getWebSocketKeepAliveIntervalSeconds()));
+	}
+}
@@ -15,8 +15,13 @@
  */
 package org.springframework.session.data.couchbase.config.annotation.web.http;
 
+import com.couchbase.client.java.PersistTo;
+import com.couchbase.client.java.ReplicateTo;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.session.data.couchbase.CouchbaseSessionRepository.DegradedPolicy;
+import org.springframework.session.data.couchbase.CouchbaseSessionRetryPolicy;
+import org.springframework.session.data.couchbase.CouchbaseSessionWarmup;
 
 import java.lang.annotation.Documented;
 import java.lang.annotation.Retention;
@@ -50,8 +55,224 @@ import java.lang.annotation.Target;
 @Retention(value=java.lang.annotation.RetentionPolicy.RUNTIME)
 @Target(value={java.lang.annotation.ElementType.TYPE})
 @Documented
-@Import(CouchbaseHttpSessionConfiguration.class)
+@Import(CouchbaseHttpSessionImportSelector.class)
 @Configuration
 public @interface EnableCouchbaseHttpSession {
 	int maxInactiveIntervalInSeconds() default 1800;
-}
\ No newline at end of file
+
+	/**
+	 * Tracks the expiration of the sessions saved by this node and fires
+	 * {@link org.springframework.session.events.SessionDestroyedEvent}s without a DCP stream.
+	 * @return true to enable the local expiration tracking.
+	 */
+	boolean localExpirationTracking() default false;
+
+	/**
+	 * Writes a new session to Couchbase only once it holds an application attribute, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionRepository#setDeferEmptySessions(boolean)}.
+	 * @return true to defer the first write of the new sessions.
+	 */
+	boolean deferEmptySessions() default false;
+
+	/**
+	 * Also reads the sessions from the replicas when the active node is slower than usual, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionRepository#setHedgedReads(boolean)}.
+	 * @return true to enable the hedged reads.
+	 */
+	boolean hedgedReads() default false;
+
+	/**
+	 * @return the time a session operation waits for Couchbase in milliseconds, 0 to rely on the client timeouts only.
+	 */
+	long operationTimeoutMillis() default 0;
+
+	/**
+	 * @return the maximum number of session operations waiting for Couchbase at the same time, 0 for no limit.
+	 */
+	int maxConcurrentOperations() default 0;
+
+	/**
+	 * Stops calling Couchbase after repeated failures, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionCircuitBreaker}.
+	 * @return true to enable the circuit breaker.
+	 */
+	boolean circuitBreaker() default false;
+
+	/**
+	 * @return what to do with the session operations rejected by {@link #maxConcurrentOperations()} or the
+	 * {@link #circuitBreaker()}.
+	 */
+	DegradedPolicy degradedPolicy() default DegradedPolicy.FAIL_FAST;
+
+	/**
+	 * Saves the local cache of {@link DegradedPolicy#LOCAL_CACHE} to a memory-mapped file in this directory on
+	 * shutdown and restores it on startup, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionLocalCache#setSnapshotFile(java.io.File)}.
+	 * @return the snapshot directory, empty to start with an empty cache.
+	 */
+	String localCacheSnapshotDirectory() default "";
+
+	/**
+	 * @return the number of nodes the saves of existing sessions wait for the document to be persisted to.
+	 */
+	PersistTo savePersistTo() default PersistTo.NONE;
+
+	/**
+	 * @return the number of replicas the saves of existing sessions wait for the document to be replicated to.
+	 */
+	ReplicateTo saveReplicateTo() default ReplicateTo.NONE;
+
+	/**
+	 * @return the number of nodes the first save of a session, typically on login, waits for the document to be
+	 * persisted to.
+	 */
+	PersistTo createPersistTo() default PersistTo.NONE;
+
+	/**
+	 * @return the number of replicas the first save of a session, typically on login, waits for the document to be
+	 * replicated to.
+	 */
+	ReplicateTo createReplicateTo() default ReplicateTo.NONE;
+
+	/**
+	 * @return the number of nodes the deletes wait for the removal to be persisted to.
+	 */
+	PersistTo deletePersistTo() default PersistTo.NONE;
+
+	/**
+	 * @return the number of replicas the deletes wait for the removal to be replicated to.
+	 */
+	ReplicateTo deleteReplicateTo() default ReplicateTo.NONE;
+
+	/**
+	 * Acknowledges the writes once the active node applied them and checks their replication in the background, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionRepository#setAsyncReplicationCheck(boolean)}.
+	 * @return true to check the replication asynchronously rather than wait for the durability of the writes.
+	 */
+	boolean asyncReplicationCheck() default false;
+
+	/**
+	 * Retries the idempotent operations failing on a temporary overload, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionRetryPolicy}.
+	 * @return the number of attempts of an operation, 1 to never retry.
+	 */
+	int retryMaxAttempts() default 1;
+
+	/**
+	 * @return the time after the first attempt of an operation past which it is not retried anymore.
+	 */
+	long retryDeadlineMillis() default CouchbaseSessionRetryPolicy.DEFAULT_DEADLINE_MILLIS;
+
+	/**
+	 * Saves the sessions in the background, in batches, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionWriteBehindQueue}. The other nodes see the
+	 * changes a few milliseconds late.
+	 * @return true to enable the write-behind mode.
+	 */
+	boolean writeBehind() default false;
+
+	/**
+	 * Starts loading the requested session when the request enters the filter and joins it on first access, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionPrefetchFilter}.
+	 * @return true to prefetch the sessions.
+	 */
+	boolean prefetch() default false;
+
+	/**
+	 * @return how often the sessions of the open WebSocket connections are touched, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionKeepAliveRegistry}, registered when
+	 * spring-websocket is on the classpath. 0 for half of {@link #maxInactiveIntervalInSeconds()}.
+	 */
+	int webSocketKeepAliveIntervalSeconds() default 0;
+
+	/**
+	 * Opens the connections to Couchbase and exercises the session serialization before the application context
+	 * finishes starting, see {@link org.springframework.session.data.couchbase.CouchbaseSessionWarmup}.
+	 * @return true to warm up the session layer on startup.
+	 */
+	boolean warmup() default false;
+
+	/**
+	 * @return the number of save and load round trips of the warm-up.
+	 */
+	int warmupRoundTrips() default CouchbaseSessionWarmup.DEFAULT_ROUND_TRIPS;
+
+	/**
+	 * Stores the attribute names as short codes, see
+	 * {@link org.springframework.session.data.couchbase.AttributeNameDictionary}. Registers
+	 * {@link org.springframework.session.data.couchbase.DictionaryDocumentFormat}: roll it out on every node first,
+	 * then set {@link #documentFormatVersion()} to its version, or to its codec version along
+	 * {@link #securityContextCodec()}, in a second deploy.
+	 * @return true to register the attribute name dictionary.
+	 */
+	boolean attributeNameDictionary() default false;
+
+	/**
+	 * Stores the Spring Security context of form and basic logins as a small JSON object instead of Java
+	 * serialization, see {@link org.springframework.session.data.couchbase.CouchbaseSessionRepository#addSecurityContextCodec()}.
+	 * Registers {@link org.springframework.session.data.couchbase.CodecDocumentFormat}: roll it out on every node
+	 * first, then set {@link #documentFormatVersion()} to its version in a second deploy.
+	 * @return true to register the Spring Security context codec.
+	 */
+	boolean securityContextCodec() default false;
+
+	/**
+	 * @return the version of the session documents written, see
+	 * {@link org.springframework.session.data.couchbase.SessionDocumentFormats}. Versions other than 1 must be
+	 * registered, by {@link #securityContextCodec()}, {@link #attributeNameDictionary()} or on a
+	 * {@link org.springframework.session.data.couchbase.SessionDocumentFormats} Bean.
+	 */
+	int documentFormatVersion() default 1;
+
+	/**
+	 * Stores the attributes whose serialized value is longer than this threshold in documents of their own, loaded
+	 * only when the attribute is read, see
+	 * {@link org.springframework.session.data.couchbase.CouchbaseSessionRepository#setAttributeOffloadThreshold(int)}.
+	 * @return the threshold in characters, 0 to keep all the attributes in the session document.
+	 */
+	int attributeOffloadThreshold() default 0;
+
+	/**
+	 * Deserializes the attributes of these types once per node and shares the instances between the requests and the
+	 * sessions, see {@link org.springframework.session.data.couchbase.DeserializedAttributeCache}. The instances must
+	 * never be modified.
+	 * @return the immutable attribute types.
+	 */
+	Class<?>[] immutableAttributeTypes() default {};
+
+	/**
+	 * Rejects the Java serialized attributes made of other classes, see
+	 * {@link org.springframework.session.data.couchbase.SessionAttributeSerializer#setAllowedClasses(String...)}.
+	 * @return class names, or package names followed by {@code .*} or {@code .**}. Empty to allow all the classes.
+	 */
+	String[] allowedAttributeClasses() default {};
+
+	/**
+	 * Spreads the sessions over several buckets, see
+	 * {@link org.springframework.session.data.couchbase.ShardedCouchbaseSessionRepository}.
+	 * @return the names of the {@link com.couchbase.client.java.AsyncBucket} Beans to use as shards, empty to use the
+	 * single {@link com.couchbase.client.java.AsyncBucket} Bean.
+	 */
+	String[] shards() default {};
+
+	/**
+	 * @return the Ant-style paths of the requests that never load nor save the session, such as static assets and
+	 * health probes, see {@link org.springframework.session.data.couchbase.CouchbaseSessionBypassFilter}.
+	 */
+	String[] skippedPaths() default {};
+
+	/**
+	 * @return the HTTP methods of the requests that never load nor save the session.
+	 */
+	String[] skippedMethods() default {};
+
+	/**
+	 * @return the Ant-style paths of the requests that load the session without saving it back.
+	 */
+	String[] readOnlyPaths() default {};
+
+	/**
+	 * @return the HTTP methods of the requests that load the session without saving it back.
+	 */
+	String[] readOnlyMethods() default {};
+}
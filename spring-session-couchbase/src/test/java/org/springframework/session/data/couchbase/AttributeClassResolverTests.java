@@ -0,0 +1,94 @@
+package org.springframework.session.data.couchbase;
+
+import org.junit.Test;
+
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AttributeClassResolverTests {
+
+    @Test
+    public void classesAreResolvedOnceWithTheGivenClassLoader() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        ClassLoader classLoader = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                loads.incrementAndGet();
+                return super.loadClass(name, resolve);
+            }
+        };
+        SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+        serializer.setClassLoader(classLoader);
+
+        String serialized = serializer.objectToString(new Date(0));
+        assertThat(serializer.stringToObject(serialized)).isEqualTo(new Date(0));
+        int firstLoads = loads.get();
+        assertThat(firstLoads).isGreaterThan(0);
+        assertThat(serializer.stringToObject(serialized)).isEqualTo(new Date(0));
+        assertThat(loads.get()).isEqualTo(firstLoads);
+    }
+
+    @Test
+    public void proxiesAreResolvedWithTheGivenClassLoader() throws Exception {
+        SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+        serializer.setClassLoader(getClass().getClassLoader());
+        Serializable proxy = (Serializable) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Comparable.class, Serializable.class }, new ConstantHandler());
+
+        Object read = serializer.stringToObject(serializer.objectToString(proxy));
+        assertThat(Proxy.isProxyClass(read.getClass())).isTrue();
+        assertThat(((Comparable<?>) read).compareTo(null)).isEqualTo(42);
+    }
+
+    @Test
+    public void onlyAllowedClassesAreDeserialized() throws Exception {
+        SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+        serializer.setAllowedClasses("java.util.*", "java.lang.Number", "java.math.**");
+        ArrayList<BigDecimal> list = new ArrayList<BigDecimal>(Arrays.asList(new BigDecimal("1.5")));
+        assertThat(serializer.stringToObject(serializer.objectToString(list))).isEqualTo(list);
+
+        String serialized = serializer.objectToString(new StringBuilder("x"));
+        try {
+            serializer.stringToObject(serialized);
+            throw new AssertionError("StringBuilder is not allowed");
+        } catch (InvalidClassException e) {
+            assertThat(e.getMessage()).contains("java.lang.StringBuilder");
+        }
+    }
+
+    @Test
+    public void patternsMatchPackagesAndArrays() {
+        AttributeClassResolver resolver = new AttributeClassResolver(null,
+                Arrays.asList("com.example.*", "org.example.**", "java.lang.String"));
+        assertThat(resolver.isAllowed("com.example.User")).isTrue();
+        assertThat(resolver.isAllowed("com.example.sub.User")).isFalse();
+        assertThat(resolver.isAllowed("com.examples.User")).isFalse();
+        assertThat(resolver.isAllowed("org.example.sub.User")).isTrue();
+        assertThat(resolver.isAllowed("[Ljava.lang.String;")).isTrue();
+        assertThat(resolver.isAllowed("[[I")).isTrue();
+        assertThat(resolver.isAllowed("int")).isTrue();
+        assertThat(resolver.isAllowed("[Ljava.lang.Object;")).isFalse();
+        assertThat(new AttributeClassResolver(null, Collections.<String>emptyList()).isAllowed("any.Thing")).isTrue();
+    }
+
+    private static class ConstantHandler implements InvocationHandler, Serializable {
+
+        private static final long serialVersionUID = -5270398346617532181L;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            return 42;
+        }
+    }
+}
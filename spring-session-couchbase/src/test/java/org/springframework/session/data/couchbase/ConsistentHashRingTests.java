@@ -0,0 +1,46 @@
+package org.springframework.session.data.couchbase;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ConsistentHashRingTests {
+
+    private static final int KEYS = 100000;
+
+    @Test
+    public void keysAreBalanced() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"));
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            String owner = ring.owner("key" + i);
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        assertThat(counts).hasSize(4);
+        for (int count : counts.values()) {
+            assertThat(count).isGreaterThan(KEYS / 4 * 8 / 10).isLessThan(KEYS / 4 * 12 / 10);
+        }
+    }
+
+    @Test
+    public void addingANodeOnlyMovesItsShare() {
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"));
+        ConsistentHashRing extended = ring.with("e");
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String before = ring.owner("key" + i);
+            String after = extended.owner("key" + i);
+            if (!before.equals(after)) {
+                assertThat(after).isEqualTo("e");
+                moved++;
+            }
+        }
+        assertThat(moved).isGreaterThan(KEYS / 5 * 8 / 10).isLessThan(KEYS / 5 * 12 / 10);
+        assertThat(extended.getNodes()).containsExactly("a", "b", "c", "d", "e");
+    }
+}
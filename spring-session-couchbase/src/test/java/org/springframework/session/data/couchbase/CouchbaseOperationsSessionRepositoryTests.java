@@ -16,17 +16,39 @@
 package org.springframework.session.data.couchbase;
 
 import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.PersistTo;
+import com.couchbase.client.java.ReplicateTo;
+import com.couchbase.client.java.document.JsonDocument;
+import com.couchbase.client.java.document.json.JsonObject;
 import com.couchbase.client.java.error.DocumentDoesNotExistException;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
 import org.springframework.session.ExpiringSession;
 import org.springframework.session.MapSession;
+import org.springframework.session.events.SessionDestroyedEvent;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.web.WebAppConfiguration;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import static org.fest.assertions.Assertions.assertThat;
 
 @RunWith(SpringJUnit4ClassRunner.class)
@@ -141,6 +163,707 @@ public class CouchbaseOperationsSessionRepositoryTests {
 		assertThat(session.getLastAccessedTime()).isGreaterThanOrEqualTo(now);
 	}
 
+	@Test
+	public void metricsRecorded() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.getMetrics().setSizeSamplingInterval(1);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("attrName", new MapSession());
+        couchbaseRepository.save(session);
+        session = couchbaseRepository.getSession(session.getId());
+        session.getAttribute("attrName");
+        couchbaseRepository.save(session);
+        couchbaseRepository.getSession("abc");
+        try {
+            couchbaseRepository.delete("abc");
+        } catch (DocumentDoesNotExistException e) {
+        }
+        CouchbaseSessionMetrics metrics = couchbaseRepository.getMetrics();
+        assertThat(metrics.getSaveCount()).isEqualTo(2);
+        assertThat(metrics.getUnchangedSaveCount()).isEqualTo(1);
+        assertThat(metrics.getLoadCount()).isEqualTo(2);
+        assertThat(metrics.getNotFoundCount()).isEqualTo(1);
+        assertThat(metrics.getDeleteCount()).isEqualTo(1);
+        assertThat(metrics.getDocumentSizes().getCount()).isEqualTo(3);
+        assertThat(metrics.getSerializationTime().getCount()).isEqualTo(1);
+        assertThat(metrics.getDeserializationTime().getCount()).isEqualTo(1);
+        assertThat(metrics.getErrorCounts().get("DocumentDoesNotExistException")).isEqualTo(1L);
+	}
+
+	@Test
+	public void documentSizesAreMeasuredInEncodedBytes() throws Exception {
+        String json = "{\"name\":\"d\u00e9j\u00e0 \u20ac \ud83d\ude00\"}";
+        assertThat(CouchbaseSessionMetrics.utf8Length(json)).isEqualTo(json.getBytes("UTF-8").length);
+	}
+
+	@Test
+	public void hedgedGetSessionFound() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setHedgedReads(true);
+        CouchbaseSession expected = couchbaseRepository.createSession();
+        expected.setAttribute("attrName", "attrValue");
+        couchbaseRepository.save(expected);
+        CouchbaseSession session = couchbaseRepository.getSession(expected.getId());
+        assertThat(session.getAttribute("attrName")).isEqualTo("attrValue");
+        assertThat(couchbaseRepository.getSession("abc")).isNull();
+	}
+
+	@Test
+	public void saveReplicaSessionMergesChanges() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        couchbaseRepository.save(session);
+        CouchbaseSession stale = couchbaseRepository.getSession(session.getId());
+        stale.setFromReplica(true);
+        CouchbaseSession current = couchbaseRepository.getSession(session.getId());
+        current.setAttribute("current", 1);
+        couchbaseRepository.save(current);
+        stale.setAttribute("stale", 2);
+        couchbaseRepository.save(stale);
+        CouchbaseSession merged = couchbaseRepository.getSession(session.getId());
+        assertThat(merged.getAttribute("current")).isEqualTo(1);
+        assertThat(merged.getAttribute("stale")).isEqualTo(2);
+	}
+
+	@Test
+	public void saveReplicaSessionDoesNotResurrect() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        couchbaseRepository.save(session);
+        CouchbaseSession stale = couchbaseRepository.getSession(session.getId());
+        stale.setFromReplica(true);
+        couchbaseRepository.delete(session.getId());
+        couchbaseRepository.save(stale);
+        assertThat(couchbaseRepository.getSession(session.getId())).isNull();
+	}
+
+	@Test(expected = CouchbaseSessionUnavailableException.class)
+	public void circuitBreakerOpenFailFast() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setCircuitBreaker(openCircuitBreaker());
+        couchbaseRepository.getSession("abc");
+	}
+
+	@Test
+	public void circuitBreakerOpenLocalCache() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setDegradedPolicy(CouchbaseSessionRepository.DegradedPolicy.LOCAL_CACHE);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("attrName", 1);
+        couchbaseRepository.save(session);
+        couchbaseRepository.setCircuitBreaker(openCircuitBreaker());
+        CouchbaseSession cached = couchbaseRepository.getSession(session.getId());
+        assertThat(cached.getAttribute("attrName")).isEqualTo(1);
+        cached.setAttribute("degraded", 2);
+        couchbaseRepository.save(cached);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("degraded")).isEqualTo(2);
+        couchbaseRepository.setCircuitBreaker(null);
+        couchbaseRepository.save(couchbaseRepository.getSession(session.getId()));
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("attrName")).isEqualTo(1);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("degraded")).isEqualTo(2);
+        assertThat(couchbaseRepository.getMetrics().getDegradedCount()).isEqualTo(3);
+	}
+
+	@Test
+	public void degradedChangesAreMergedOnTheFirstLoad() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setDegradedPolicy(CouchbaseSessionRepository.DegradedPolicy.LOCAL_CACHE);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("attrName", 1);
+        couchbaseRepository.save(session);
+        CouchbaseSession otherNode = new CouchbaseSessionRepository(asyncBucket).getSession(session.getId());
+        couchbaseRepository.setCircuitBreaker(openCircuitBreaker());
+        CouchbaseSession cached = couchbaseRepository.getSession(session.getId());
+        cached.setAttribute("degraded", 2);
+        couchbaseRepository.save(cached);
+        CouchbaseSession created = couchbaseRepository.createSession();
+        created.setAttribute("created", 3);
+        couchbaseRepository.save(created);
+        otherNode.setAttribute("other", 4);
+        new CouchbaseSessionRepository(asyncBucket).save(otherNode);
+        couchbaseRepository.setCircuitBreaker(null);
+        CouchbaseSession recovered = couchbaseRepository.getSession(session.getId());
+        assertThat(recovered.getAttribute("attrName")).isEqualTo(1);
+        assertThat(recovered.getAttribute("degraded")).isEqualTo(2);
+        assertThat(recovered.getAttribute("other")).isEqualTo(4);
+        assertThat(couchbaseRepository.getSession(created.getId()).getAttribute("created")).isEqualTo(3);
+        CouchbaseSession reloaded = new CouchbaseSessionRepository(asyncBucket).getSession(session.getId());
+        assertThat(reloaded.getAttribute("degraded")).isEqualTo(2);
+        assertThat(reloaded.getAttribute("other")).isEqualTo(4);
+	}
+
+	@Test
+	public void circuitBreakerOpenAnonymous() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setDegradedPolicy(CouchbaseSessionRepository.DegradedPolicy.ANONYMOUS);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("attrName", 1);
+        couchbaseRepository.save(session);
+        couchbaseRepository.setCircuitBreaker(openCircuitBreaker());
+        CouchbaseSession anonymous = couchbaseRepository.getSession(session.getId());
+        assertThat(anonymous.getId()).isEqualTo(session.getId());
+        assertThat(anonymous.getAttribute("attrName")).isNull();
+        couchbaseRepository.setCircuitBreaker(null);
+        couchbaseRepository.save(anonymous);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("attrName")).isEqualTo(1);
+	}
+
+	@Test
+	public void circuitBreakerHalfOpen() {
+        CouchbaseSessionCircuitBreaker circuitBreaker = new CouchbaseSessionCircuitBreaker();
+        circuitBreaker.setFailureThreshold(2);
+        circuitBreaker.setOpenMillis(0);
+        circuitBreaker.onFailure();
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseSessionCircuitBreaker.State.CLOSED);
+        circuitBreaker.onFailure();
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseSessionCircuitBreaker.State.OPEN);
+        assertThat(circuitBreaker.allowRequest()).isTrue();
+        assertThat(circuitBreaker.allowRequest()).isFalse();
+        circuitBreaker.onSuccess();
+        assertThat(circuitBreaker.getState()).isEqualTo(CouchbaseSessionCircuitBreaker.State.CLOSED);
+	}
+
+    private static CouchbaseSessionCircuitBreaker openCircuitBreaker() {
+        CouchbaseSessionCircuitBreaker circuitBreaker = new CouchbaseSessionCircuitBreaker();
+        circuitBreaker.setFailureThreshold(1);
+        circuitBreaker.setOpenMillis(Long.MAX_VALUE);
+        circuitBreaker.onFailure();
+        return circuitBreaker;
+    }
+
+	@Test
+	public void writeBehindSave() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionWriteBehindQueue queue = new CouchbaseSessionWriteBehindQueue(asyncBucket, 60000);
+        couchbaseRepository.setWriteBehindQueue(queue);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("attrName", 1);
+        couchbaseRepository.save(session);
+        session.setAttribute("attrName", 2);
+        couchbaseRepository.save(session);
+        assertThat(queue.getPendingCount()).isEqualTo(1);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("attrName")).isEqualTo(2);
+        couchbaseRepository.destroy();
+        assertThat(queue.getPendingCount()).isEqualTo(0);
+        assertThat(asyncBucket.get(session.getId()).toBlocking().single().content().getInt("attrName")).isEqualTo(2);
+        assertThat(couchbaseRepository.getMetrics().getWriteBehindLag().getCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void writeBehindDeletePending() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setWriteBehindQueue(new CouchbaseSessionWriteBehindQueue(asyncBucket, 60000));
+        CouchbaseSession session = couchbaseRepository.createSession();
+        couchbaseRepository.save(session);
+        couchbaseRepository.delete(session.getId());
+        couchbaseRepository.destroy();
+        assertThat(couchbaseRepository.getSession(session.getId())).isNull();
+	}
+
+	@Test
+	public void bulkGetAndDelete() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setBulkConcurrency(4);
+        couchbaseRepository.setDeleteDurability(PersistTo.MASTER, ReplicateTo.NONE);
+        long lastAccessedTime = System.currentTimeMillis() - 60000;
+        List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            CouchbaseSession session = couchbaseRepository.createSession();
+            session.setAttribute("index", i);
+            session.setLastAccessedTime(lastAccessedTime);
+            couchbaseRepository.save(session);
+            ids.add(session.getId());
+        }
+        ids.add("abc");
+        Map<String, CouchbaseSession> sessions = couchbaseRepository.getSessions(ids);
+        assertThat(sessions).hasSize(20);
+        assertThat(sessions.get(ids.get(7)).getAttribute("index")).isEqualTo(7);
+        assertThat(sessions.get(ids.get(7)).getLastAccessedTime()).isEqualTo(lastAccessedTime);
+        Set<String> deleted = couchbaseRepository.deleteSessions(ids);
+        assertThat(deleted).hasSize(20).excludes("abc");
+        assertThat(couchbaseRepository.getSessions(ids)).isEmpty();
+	}
+
+	@Test
+	public void shardedSessionIdsNameTheirShard() {
+        Map<String, CouchbaseSessionRepository> shards = new LinkedHashMap<String, CouchbaseSessionRepository>();
+        shards.put("a", new CouchbaseSessionRepository(asyncBucket));
+        shards.put("b", new CouchbaseSessionRepository(asyncBucket));
+        ShardedCouchbaseSessionRepository couchbaseRepository = new ShardedCouchbaseSessionRepository(shards);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+        String shard = couchbaseRepository.getShard(session.getId());
+        assertThat(session.getId()).startsWith(CouchbaseSession.SESSION_KEY_PREFIX + shard + ":");
+        couchbaseRepository.addShard("c", new CouchbaseSessionRepository(asyncBucket));
+        assertThat(couchbaseRepository.getShard(session.getId())).isEqualTo(shard);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("index")).isEqualTo(1);
+        couchbaseRepository.delete(session.getId());
+        assertThat(couchbaseRepository.getSession(session.getId())).isNull();
+	}
+
+	@Test
+	public void deferEmptySessions() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setDeferEmptySessions(true);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        couchbaseRepository.save(session);
+        assertThat(couchbaseRepository.getSession(session.getId())).isNull();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+        CouchbaseSession saved = couchbaseRepository.getSession(session.getId());
+        assertThat(saved.getAttribute("index")).isEqualTo(1);
+        saved.removeAttribute("index");
+        couchbaseRepository.save(saved);
+        assertThat(couchbaseRepository.getSession(session.getId())).isNotNull();
+	}
+
+	@Test
+	public void prefetchedSessionIsJoined() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        couchbaseRepository.setMetrics(metrics);
+        couchbaseRepository.setMaxConcurrentOperations(1);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+        couchbaseRepository.prefetch(session.getId());
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("index")).isEqualTo(1);
+        assertThat(metrics.getLoadCount()).isEqualTo(1);
+        couchbaseRepository.prefetch("abc");
+        couchbaseRepository.cancelPrefetch();
+        // the permits of the joined and cancelled prefetches were released
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("index")).isEqualTo(1);
+        assertThat(metrics.getLoadCount()).isEqualTo(2);
+        assertThat(metrics.getDegradedCount()).isEqualTo(0);
+	}
+
+	@Test
+	public void keepAliveTouchesRegisteredSessions() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionKeepAliveRegistry registry = new CouchbaseSessionKeepAliveRegistry(couchbaseRepository);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        couchbaseRepository.save(session);
+        registry.register(session.getId(), 60);
+        registry.register(session.getId());
+        registry.register("abc");
+        assertThat(registry.getSessionCount()).isEqualTo(2);
+        assertThat(registry.touchAll()).isEqualTo(1);
+        registry.unregister(session.getId());
+        registry.unregister("abc");
+        assertThat(registry.getSessionCount()).isEqualTo(1);
+        registry.unregister(session.getId());
+        assertThat(registry.getSessionCount()).isEqualTo(0);
+        assertThat(registry.touchAll()).isEqualTo(0);
+	}
+
+	@Test
+	public void touchKeepsTheIntervalOfEachSession() throws InterruptedException {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setDefaultMaxInactiveInterval(1800);
+        CouchbaseSession shortSession = couchbaseRepository.createSession();
+        shortSession.setMaxInactiveIntervalInSeconds(1);
+        couchbaseRepository.save(shortSession);
+        CouchbaseSession longSession = couchbaseRepository.createSession();
+        couchbaseRepository.save(longSession);
+        Map<String, Integer> intervals = new HashMap<String, Integer>();
+        intervals.put(shortSession.getId(), 1);
+        intervals.put(longSession.getId(), 1800);
+        assertThat(couchbaseRepository.touchSessions(intervals)).hasSize(2);
+        Thread.sleep(1001);
+        assertThat(couchbaseRepository.getSession(shortSession.getId())).isNull();
+        assertThat(couchbaseRepository.getSession(longSession.getId())).isNotNull();
+	}
+
+	@Test
+	public void touchCountsAsAnAccessForTheTrackerAndTheCache() throws InterruptedException {
+        final List<ApplicationEvent> events = new CopyOnWriteArrayList<ApplicationEvent>();
+        CouchbaseSessionExpirationTracker tracker = new CouchbaseSessionExpirationTracker(asyncBucket,
+                new ApplicationEventPublisher() {
+                    public void publishEvent(ApplicationEvent event) {
+                        events.add(event);
+                    }
+                }, 100);
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionLocalCache localCache = new CouchbaseSessionLocalCache();
+        couchbaseRepository.setExpirationTracker(tracker);
+        couchbaseRepository.setLocalCache(localCache);
+        couchbaseRepository.setDegradedPolicy(CouchbaseSessionRepository.DegradedPolicy.LOCAL_CACHE);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setMaxInactiveIntervalInSeconds(1);
+        session.setLastAccessedTime(System.currentTimeMillis() - 60000);
+        couchbaseRepository.save(session);
+
+        long before = System.currentTimeMillis();
+        assertThat(couchbaseRepository.touchSessions(Collections.singletonMap(session.getId(), 1)))
+                .containsOnly(session.getId());
+        CouchbaseSession cached = new CouchbaseSession(localCache.get(session.getId()));
+        assertThat(cached.getLastAccessedTime()).isGreaterThanOrEqualTo(before);
+        assertThat(cached.isExpired()).isFalse();
+
+        // the touch changed the CAS, the session is still tracked and its destruction published
+        Thread.sleep(3000);
+        for (int i = 0; i < 20 && events.isEmpty(); i++) {
+            tracker.processExpirations();
+            Thread.sleep(150);
+        }
+        assertThat(events).hasSize(1);
+        assertThat(((SessionDestroyedEvent) events.get(0)).getSessionId()).isEqualTo(session.getId());
+	}
+
+	@Test
+	public void attributeNamesAreEncoded() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        SessionDocumentFormats formats = new SessionDocumentFormats();
+        formats.register(new DictionaryDocumentFormat(new AttributeNameDictionary(asyncBucket), false));
+        formats.setWriteVersion(DictionaryDocumentFormat.VERSION);
+        couchbaseRepository.setDocumentFormats(formats);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        session.setAttribute("~tilde", 2);
+        couchbaseRepository.save(session);
+
+        JsonObject stored = asyncBucket.get(session.getId()).toBlocking().single().content();
+        assertThat(stored.containsKey("index")).isFalse();
+        assertThat(stored.containsKey("lastAccessedTime")).isFalse();
+        assertThat(stored.containsKey("~tilde")).isFalse();
+        assertThat(stored.getInt(SessionDocumentFormats.VERSION_KEY)).isEqualTo(DictionaryDocumentFormat.VERSION);
+
+        CouchbaseSessionRepository otherNode = new CouchbaseSessionRepository(asyncBucket);
+        AttributeNameDictionary dictionary = new AttributeNameDictionary(asyncBucket);
+        SessionDocumentFormats otherFormats = new SessionDocumentFormats();
+        otherFormats.register(new DictionaryDocumentFormat(dictionary, false));
+        otherNode.setDocumentFormats(otherFormats);
+        CouchbaseSession loaded = otherNode.getSession(session.getId());
+        assertThat(loaded.getAttribute("index")).isEqualTo(1);
+        assertThat(loaded.getAttribute("~tilde")).isEqualTo(2);
+        assertThat(dictionary.getNames()).contains("index", "creationTime");
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void encodedNamesAreNotReadWithoutTheDictionary() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        SessionDocumentFormats formats = new SessionDocumentFormats();
+        formats.register(new DictionaryDocumentFormat(new AttributeNameDictionary(asyncBucket), false));
+        formats.setWriteVersion(DictionaryDocumentFormat.VERSION);
+        couchbaseRepository.setDocumentFormats(formats);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+
+        new CouchbaseSessionRepository(asyncBucket).getSession(session.getId());
+	}
+
+	@Test
+	public void documentsAreMigratedOnSave() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        couchbaseRepository.setMetrics(metrics);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+
+        SessionDocumentFormats formats = new SessionDocumentFormats();
+        formats.register(new SessionDocumentFormat() {
+            public int getVersion() {
+                return 2;
+            }
+
+            public JsonObject read(JsonObject stored) {
+                return stored.getObject("attributes");
+            }
+
+            public JsonObject write(JsonObject attributes) {
+                return JsonObject.create().put("attributes", attributes);
+            }
+
+            public boolean storesCodecValues() {
+                return false;
+            }
+        });
+        formats.setWriteVersion(2);
+        couchbaseRepository.setDocumentFormats(formats);
+
+        CouchbaseSession loaded = couchbaseRepository.getSession(session.getId());
+        assertThat(loaded.getAttribute("index")).isEqualTo(1);
+        couchbaseRepository.save(loaded);
+        JsonObject stored = asyncBucket.get(session.getId()).toBlocking().single().content();
+        assertThat(stored.getInt(SessionDocumentFormats.VERSION_KEY)).isEqualTo(2);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("index")).isEqualTo(1);
+        assertThat(metrics.getFormatReadCounts().get(1)).isEqualTo(1L);
+        assertThat(metrics.getFormatReadCounts().get(2)).isEqualTo(1L);
+        assertThat(metrics.getFormatMigrationCount()).isEqualTo(1);
+	}
+
+	@Test
+	public void codecValuesAreStoredOnlyInTheCodecFormat() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        SessionDocumentFormats formats = new SessionDocumentFormats();
+        formats.register(new CodecDocumentFormat());
+        couchbaseRepository.setDocumentFormats(formats);
+        couchbaseRepository.addSecurityContextCodec();
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(new UsernamePasswordAuthenticationToken("user", null,
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+        JsonObject json = JsonObject.create().put(SessionAttributeSerializer.CODEC_KEY, SecurityContextCodec.NAME);
+
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("context", context);
+        session.setAttribute("json", json);
+        couchbaseRepository.save(session);
+        JsonObject stored = asyncBucket.get(session.getId()).toBlocking().single().content();
+        assertThat(stored.get("context")).isInstanceOf(String.class);
+        assertThat(stored.get("json")).isEqualTo(json);
+        CouchbaseSession loaded = couchbaseRepository.getSession(session.getId());
+        assertThat(loaded.getAttribute("context")).isEqualTo(context);
+        assertThat(loaded.getAttribute("json")).isEqualTo(json);
+
+        formats.setWriteVersion(CodecDocumentFormat.VERSION);
+        loaded.setAttribute("context", context);
+        couchbaseRepository.save(loaded);
+        stored = asyncBucket.get(session.getId()).toBlocking().single().content();
+        assertThat(stored.getObject("context").getString(SessionAttributeSerializer.CODEC_KEY))
+                .isEqualTo(SecurityContextCodec.NAME);
+        assertThat(stored.getObject("json")).isNotEqualTo(json);
+        loaded = couchbaseRepository.getSession(session.getId());
+        assertThat(loaded.getAttribute("context")).isEqualTo(context);
+        assertThat(loaded.getAttribute("json")).isEqualTo(json);
+
+        formats.setWriteVersion(SessionDocumentFormats.LEGACY_VERSION);
+        couchbaseRepository.save(loaded);
+        stored = asyncBucket.get(session.getId()).toBlocking().single().content();
+        assertThat(stored.get("context")).isInstanceOf(String.class);
+        assertThat(stored.get("json")).isEqualTo(json);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("context")).isEqualTo(context);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void versionKeyIsReserved() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("_v", 3);
+        couchbaseRepository.save(session);
+
+        CouchbaseSession loaded = couchbaseRepository.getSession(session.getId());
+        assertThat(loaded.getAttribute("_v")).isEqualTo(3);
+        assertThat(loaded.getFormatVersion()).isEqualTo(SessionDocumentFormats.LEGACY_VERSION);
+        loaded.setAttribute(SessionDocumentFormats.VERSION_KEY, 3);
+	}
+
+	@Test
+	public void largeAttributesAreOffloaded() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setAttributeOffloadThreshold(256);
+        ArrayList<Integer> large = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            large.add(i);
+        }
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("large", large);
+        session.setAttribute("small", 1);
+        couchbaseRepository.save(session);
+
+        String attributeId = OffloadedAttributeStore.idOf(session.getId(), "large");
+        JsonObject stored = asyncBucket.get(session.getId()).toBlocking().single().content();
+        assertThat(stored.getObject("large").getString("_ref")).isEqualTo(attributeId);
+        assertThat(stored.getInt("small")).isEqualTo(1);
+        assertThat(session.getAttribute("large")).isEqualTo(large);
+
+        CouchbaseSession loaded = couchbaseRepository.getSession(session.getId());
+        assertThat(loaded.getAttribute("large")).isEqualTo(large);
+        long cas = asyncBucket.get(attributeId).toBlocking().single().cas();
+        couchbaseRepository.save(loaded);
+        assertThat(asyncBucket.get(attributeId).toBlocking().single().cas()).isEqualTo(cas);
+
+        loaded = couchbaseRepository.getSession(session.getId());
+        loaded.setAttribute("large", 2);
+        couchbaseRepository.save(loaded);
+        assertThat(asyncBucket.get(attributeId).toBlocking().singleOrDefault(null)).isNull();
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("large")).isEqualTo(2);
+
+        loaded = couchbaseRepository.getSession(session.getId());
+        loaded.setAttribute("large", large);
+        couchbaseRepository.save(loaded);
+        assertThat(asyncBucket.get(attributeId).toBlocking().singleOrDefault(null)).isNotNull();
+        couchbaseRepository.delete(session.getId());
+        assertThat(asyncBucket.get(attributeId).toBlocking().singleOrDefault(null)).isNull();
+	}
+
+	@Test
+	public void offloadedAttributesFollowBulkTouchAndDelete() throws InterruptedException {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setAttributeOffloadThreshold(256);
+        ArrayList<Integer> large = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            large.add(i);
+        }
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setMaxInactiveIntervalInSeconds(2);
+        session.setAttribute("large", large);
+        couchbaseRepository.save(session);
+        String attributeId = OffloadedAttributeStore.idOf(session.getId(), "large");
+
+        // the attribute document written with the session expires after 4s, the mock counts whole seconds
+        for (int i = 0; i < 9; i++) {
+            Thread.sleep(700);
+            assertThat(couchbaseRepository.touchSessions(Collections.singletonMap(session.getId(), 2)))
+                    .containsOnly(session.getId());
+        }
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("large")).isEqualTo(large);
+
+        assertThat(couchbaseRepository.deleteSessions(Collections.singleton(session.getId())))
+                .containsOnly(session.getId());
+        assertThat(asyncBucket.get(attributeId).toBlocking().singleOrDefault(null)).isNull();
+	}
+
+	@Test
+	public void warmupRunsRoundTripsAndClearsMetrics() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        couchbaseRepository.setMetrics(metrics);
+        AttributeNameDictionary dictionary = new AttributeNameDictionary(asyncBucket, "warmup:dictionary");
+        SessionDocumentFormats formats = new SessionDocumentFormats();
+        formats.register(new DictionaryDocumentFormat(dictionary, false));
+        formats.setWriteVersion(DictionaryDocumentFormat.VERSION);
+        couchbaseRepository.setDocumentFormats(formats);
+        couchbaseRepository.save(couchbaseRepository.createSession());
+        CouchbaseSessionWarmup warmup = new CouchbaseSessionWarmup(couchbaseRepository,
+                Collections.singletonList(asyncBucket));
+        warmup.setRoundTrips(5);
+        assertThat(warmup.isReady()).isFalse();
+
+        warmup.start();
+        assertThat(warmup.isReady()).isTrue();
+        assertThat(warmup.getCompletedRoundTrips()).isEqualTo(5);
+        assertThat(warmup.getMetrics().getSaveCount()).isEqualTo(5);
+        assertThat(metrics.getSaveCount()).isEqualTo(1);
+        assertThat(metrics.getLoadCount()).isEqualTo(0);
+        assertThat(couchbaseRepository.getMetrics()).isSameAs(metrics);
+        dictionary.refresh();
+        assertThat(dictionary.getNames()).containsOnly("creationTime", "maxInactiveInterval", "lastAccessedTime");
+	}
+
+	@Test
+	public void localCacheSnapshotIsRestored() throws IOException {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+        CouchbaseSession other = couchbaseRepository.createSession();
+        couchbaseRepository.save(other);
+
+        File file = File.createTempFile("sessions", ".snapshot");
+        file.delete();
+        try {
+            CouchbaseSessionLocalCache cache = new CouchbaseSessionLocalCache();
+            cache.setSnapshotFile(file);
+            cache.put(session);
+            cache.put(other);
+            cache.writeSnapshot();
+
+            CouchbaseSessionLocalCache restored = new CouchbaseSessionLocalCache();
+            restored.setSnapshotFile(file);
+            assertThat(restored.size()).isEqualTo(0);
+            assertThat(restored.getSnapshotSize()).isEqualTo(2);
+            JsonDocument cached = restored.get(session.getId());
+            assertThat(cached.cas()).isEqualTo(session.getCas());
+            assertThat(cached.content().getInt("index")).isEqualTo(1);
+            assertThat(restored.getSnapshotSize()).isEqualTo(1);
+
+            restored.remove(other.getId());
+            assertThat(restored.get(other.getId())).isNull();
+            assertThat(restored.getSnapshotSize()).isEqualTo(0);
+        } finally {
+            file.delete();
+        }
+	}
+
+	@Test
+	public void snapshotEntriesAreServedWhileTheirCasMatches() throws IOException {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSession unchanged = couchbaseRepository.createSession();
+        unchanged.setAttribute("index", 1);
+        couchbaseRepository.save(unchanged);
+        CouchbaseSession savedAgain = couchbaseRepository.createSession();
+        savedAgain.setAttribute("index", 1);
+        couchbaseRepository.save(savedAgain);
+        CouchbaseSession deleted = couchbaseRepository.createSession();
+        couchbaseRepository.save(deleted);
+        CouchbaseSession dirty = couchbaseRepository.createSession();
+        dirty.setAttribute("index", 1);
+        couchbaseRepository.save(dirty);
+
+        File file = File.createTempFile("sessions", ".snapshot");
+        file.delete();
+        try {
+            CouchbaseSessionLocalCache cache = new CouchbaseSessionLocalCache();
+            cache.setSnapshotFile(file);
+            // not saved, tells the snapshot from Couchbase
+            unchanged.setAttribute("index", 3);
+            cache.put(unchanged);
+            cache.put(savedAgain);
+            cache.put(deleted);
+            dirty.setAttribute("index", 2);
+            cache.putDirty(dirty);
+            cache.writeSnapshot();
+
+            savedAgain = couchbaseRepository.getSession(savedAgain.getId());
+            savedAgain.setAttribute("index", 2);
+            couchbaseRepository.save(savedAgain);
+            couchbaseRepository.delete(deleted.getId());
+
+            CouchbaseSessionLocalCache restored = new CouchbaseSessionLocalCache();
+            restored.setSnapshotFile(file);
+            couchbaseRepository.setLocalCache(restored);
+            assertThat(restored.getSnapshotSize()).isEqualTo(4);
+            couchbaseRepository.prefetch(unchanged.getId());
+            assertThat(couchbaseRepository.getSession(unchanged.getId()).getAttribute("index")).isEqualTo(3);
+            assertThat(couchbaseRepository.getSession(savedAgain.getId()).getAttribute("index")).isEqualTo(2);
+            assertThat(couchbaseRepository.getSession(deleted.getId())).isNull();
+            assertThat(restored.getSnapshotSize()).isEqualTo(1);
+
+            // the changes made while degraded survive the restart
+            couchbaseRepository.prefetch(dirty.getId());
+            assertThat(couchbaseRepository.getSession(dirty.getId()).getAttribute("index")).isEqualTo(2);
+            assertThat(restored.getDirtyAttributeNames(dirty.getId())).isNull();
+            assertThat(asyncBucket.get(dirty.getId()).toBlocking().single().content().getInt("index")).isEqualTo(2);
+        } finally {
+            file.delete();
+        }
+	}
+
+	@Test
+	public void durableWritesWaitForTheActiveNode() {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        couchbaseRepository.setCreateDurability(PersistTo.MASTER, ReplicateTo.NONE);
+        couchbaseRepository.setDeleteDurability(PersistTo.MASTER, ReplicateTo.NONE);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        session.setAttribute("index", 1);
+        couchbaseRepository.save(session);
+        assertThat(couchbaseRepository.getSession(session.getId()).getAttribute("index")).isEqualTo(1);
+        couchbaseRepository.delete(session.getId());
+        assertThat(couchbaseRepository.getSession(session.getId())).isNull();
+	}
+
+	@Test
+	public void missingReplicasAreRecordedByTheAsyncCheck() throws InterruptedException {
+        CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        couchbaseRepository.setMetrics(metrics);
+        couchbaseRepository.setSaveDurability(PersistTo.NONE, ReplicateTo.TWO);
+        couchbaseRepository.setCreateDurability(PersistTo.NONE, ReplicateTo.TWO);
+        couchbaseRepository.setAsyncReplicationCheck(true);
+        couchbaseRepository.setReplicationCheckDelayMillis(10);
+        CouchbaseSession session = couchbaseRepository.createSession();
+        couchbaseRepository.save(session);
+        for (int i = 0; i < 100 && metrics.getReplicationCheckCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(metrics.getReplicationCheckCount()).isEqualTo(1);
+        // the test bucket has a single replica at most
+        assertThat(metrics.getReplicationFailureCount()).isEqualTo(1);
+	}
+
 	@Test
 	public void getSessionExpired() throws InterruptedException {
         CouchbaseSessionRepository couchbaseRepository = new CouchbaseSessionRepository(asyncBucket);
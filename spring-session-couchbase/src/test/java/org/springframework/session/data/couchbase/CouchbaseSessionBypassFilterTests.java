@@ -0,0 +1,71 @@
+package org.springframework.session.data.couchbase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class CouchbaseSessionBypassFilterTests {
+
+    private Filter sessionRepositoryFilter;
+
+    private Filter readOnlySessionRepositoryFilter;
+
+    private CouchbaseSessionBypassFilter filter;
+
+    @Before
+    public void setUp() {
+        sessionRepositoryFilter = mock(Filter.class);
+        readOnlySessionRepositoryFilter = mock(Filter.class);
+        filter = new CouchbaseSessionBypassFilter(sessionRepositoryFilter, readOnlySessionRepositoryFilter);
+        filter.setSkippedPaths("/resources/**", "/health");
+        filter.setReadOnlyMethods("get", "HEAD");
+    }
+
+    @Test
+    public void skippedPath() throws Exception {
+        MockFilterChain chain = doFilter("GET", "/resources/css/app.css");
+        verifyNotCalled(sessionRepositoryFilter);
+        verifyNotCalled(readOnlySessionRepositoryFilter);
+        assertThat(chain.getRequest()).isNotNull();
+    }
+
+    @Test
+    public void readOnlyMethod() throws Exception {
+        doFilter("GET", "/");
+        verify(readOnlySessionRepositoryFilter).doFilter(any(ServletRequest.class), any(ServletResponse.class),
+                any(FilterChain.class));
+        verifyNotCalled(sessionRepositoryFilter);
+    }
+
+    @Test
+    public void otherRequests() throws Exception {
+        doFilter("POST", "/");
+        verify(sessionRepositoryFilter).doFilter(any(ServletRequest.class), any(ServletResponse.class),
+                any(FilterChain.class));
+        verifyNotCalled(readOnlySessionRepositoryFilter);
+    }
+
+    private MockFilterChain doFilter(String method, String path) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        MockFilterChain chain = new MockFilterChain();
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+        return chain;
+    }
+
+    private static void verifyNotCalled(Filter filter) throws Exception {
+        verify(filter, never()).doFilter(any(ServletRequest.class), any(ServletResponse.class), any(FilterChain.class));
+    }
+}
@@ -0,0 +1,104 @@
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+import com.couchbase.client.java.error.TemporaryFailureException;
+import org.junit.Test;
+import rx.Observable;
+import rx.functions.Func0;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CouchbaseSessionRetryPolicyTests {
+
+    @Test
+    public void temporaryFailuresAreRetried() {
+        CouchbaseSessionRetryPolicy policy = new CouchbaseSessionRetryPolicy();
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = policy.retry(failing(attempts, 2, new TemporaryFailureException()), metrics)
+                .toBlocking().single();
+        assertThat(result).isEqualTo("ok");
+        assertThat(attempts.get()).isEqualTo(3);
+        assertThat(metrics.getRetryCount()).isEqualTo(2);
+        assertThat(metrics.getRetryGiveUpCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void retriesStopAfterMaxAttempts() {
+        CouchbaseSessionRetryPolicy policy = new CouchbaseSessionRetryPolicy();
+        policy.setMaxAttempts(2);
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            policy.retry(failing(attempts, 5, new TemporaryFailureException()), metrics).toBlocking().single();
+            throw new AssertionError("the operation should fail");
+        } catch (TemporaryFailureException e) {
+            assertThat(attempts.get()).isEqualTo(2);
+            assertThat(metrics.getRetryCount()).isEqualTo(1);
+            assertThat(metrics.getRetryGiveUpCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void retriesStopAtTheDeadline() {
+        CouchbaseSessionRetryPolicy policy = new CouchbaseSessionRetryPolicy();
+        policy.setMaxAttempts(100);
+        policy.setInitialBackoffMillis(20);
+        policy.setMaxBackoffMillis(20);
+        policy.setDeadlineMillis(100);
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        AtomicInteger attempts = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        try {
+            policy.retry(failing(attempts, 1000, new TemporaryFailureException()), metrics).toBlocking().single();
+            throw new AssertionError("the operation should fail");
+        } catch (TemporaryFailureException e) {
+            assertThat(System.currentTimeMillis() - start).isLessThan(1000);
+            assertThat(attempts.get()).isLessThan(100);
+            assertThat(metrics.getRetryGiveUpCount()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() {
+        CouchbaseSessionRetryPolicy policy = new CouchbaseSessionRetryPolicy();
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            policy.retry(failing(attempts, 1, new DocumentDoesNotExistException()), metrics).toBlocking().single();
+            throw new AssertionError("the operation should fail");
+        } catch (DocumentDoesNotExistException e) {
+            assertThat(attempts.get()).isEqualTo(1);
+            assertThat(metrics.getRetryCount()).isEqualTo(0);
+            assertThat(metrics.getRetryGiveUpCount()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void backoffIsBoundedAndGrows() {
+        CouchbaseSessionRetryPolicy policy = new CouchbaseSessionRetryPolicy();
+        policy.setInitialBackoffMillis(10);
+        policy.setMaxBackoffMillis(50);
+        long maxFirst = 0;
+        long maxLater = 0;
+        for (int i = 0; i < 1000; i++) {
+            maxFirst = Math.max(maxFirst, policy.backoffMillis(1));
+            maxLater = Math.max(maxLater, policy.backoffMillis(40));
+        }
+        assertThat(maxFirst).isLessThanOrEqualTo(10);
+        assertThat(maxLater).isGreaterThan(10).isLessThanOrEqualTo(50);
+    }
+
+    private static Func0<Observable<String>> failing(final AtomicInteger attempts, final int failures,
+            final RuntimeException error) {
+        return new Func0<Observable<String>>() {
+            @Override
+            public Observable<String> call() {
+                return attempts.incrementAndGet() <= failures ? Observable.<String>error(error) : Observable.just("ok");
+            }
+        };
+    }
+}
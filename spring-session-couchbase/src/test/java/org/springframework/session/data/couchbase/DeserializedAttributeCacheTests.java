@@ -0,0 +1,64 @@
+package org.springframework.session.data.couchbase;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class DeserializedAttributeCacheTests {
+
+    @Test
+    public void immutableValuesAreShared() throws Exception {
+        SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        serializer.setMetrics(metrics);
+        DeserializedAttributeCache cache = new DeserializedAttributeCache(BigDecimal.class);
+        serializer.setDeserializedCache(cache);
+
+        String serialized = serializer.objectToString(new BigDecimal("12.5"));
+        Object first = serializer.stringToObject(serialized);
+        assertThat(first).isEqualTo(new BigDecimal("12.5"));
+        assertThat(serializer.stringToObject(serialized)).isSameAs(first);
+        assertThat(metrics.getDeserializationCacheHitCount()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void otherValuesAreNotShared() throws Exception {
+        SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+        DeserializedAttributeCache cache = new DeserializedAttributeCache(BigDecimal.class);
+        serializer.setDeserializedCache(cache);
+
+        String serialized = serializer.objectToString(new ArrayList<String>(Arrays.asList("a", "b")));
+        Object first = serializer.stringToObject(serialized);
+        assertThat(serializer.stringToObject(serialized)).isNotSameAs(first).isEqualTo(first);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void leastRecentlyUsedValuesAreEvicted() throws Exception {
+        SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+        DeserializedAttributeCache cache = new DeserializedAttributeCache(100, BigDecimal.class);
+        serializer.setDeserializedCache(cache);
+        for (int i = 0; i < 1000; i++) {
+            serializer.stringToObject(serializer.objectToString(new BigDecimal(i)));
+        }
+        assertThat(cache.size()).isGreaterThan(0).isLessThanOrEqualTo(100);
+    }
+
+    @Test
+    public void keysAreEqualOnlyForTheSameSerializedForm() {
+        DeserializedAttributeCache cache = new DeserializedAttributeCache(BigDecimal.class);
+        // distinct strings sharing a hash code
+        assertThat("Aa".hashCode()).isEqualTo("BB".hashCode());
+        assertThat(cache.key("Aa")).isNotEqualTo(cache.key("BB"));
+        assertThat(cache.key("Aa")).isEqualTo(cache.key("Aa"));
+
+        cache.put(cache.key("Aa"), new BigDecimal(1));
+        assertThat(cache.get(cache.key("BB"))).isNull();
+        assertThat(cache.get(cache.key("Aa"))).isEqualTo(new BigDecimal(1));
+    }
+}
@@ -0,0 +1,74 @@
+package org.springframework.session.data.couchbase;
+
+import com.couchbase.client.java.document.json.JsonObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SecurityContextCodecTests {
+
+    private final SessionAttributeSerializer serializer = new SessionAttributeSerializer();
+
+    private final SessionDocumentFormats formats = new SessionDocumentFormats();
+
+    @Before
+    public void registerCodec() {
+        formats.register(new CodecDocumentFormat());
+        formats.setWriteVersion(CodecDocumentFormat.VERSION);
+        serializer.setDocumentFormats(formats);
+        serializer.addCodec(new SecurityContextCodec(serializer));
+    }
+
+    @Test
+    public void userPrincipalRoundTrip() {
+        User user = new User("user", "password", AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN"));
+        user.eraseCredentials();
+        UsernamePasswordAuthenticationToken token =
+                new UsernamePasswordAuthenticationToken(user, null, user.getAuthorities());
+        token.setDetails("details");
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(token);
+
+        Object encoded = serializer.encode(context);
+        assertThat(encoded).isInstanceOf(JsonObject.class);
+        assertThat(encoded.toString().length()).isLessThan(serializer.objectToString(context).length() / 4);
+        assertThat(serializer.isEncoded(encoded)).isTrue();
+
+        SecurityContextImpl decoded = (SecurityContextImpl) serializer.decode((JsonObject) encoded);
+        assertThat(decoded).isEqualTo(context);
+        assertThat(decoded.getAuthentication().getDetails()).isEqualTo("details");
+        assertThat(decoded.getAuthentication().isAuthenticated()).isTrue();
+    }
+
+    @Test
+    public void credentialsAreNotEncoded() {
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(new UsernamePasswordAuthenticationToken("user", "password",
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+        assertThat(serializer.encode(context)).isInstanceOf(String.class);
+    }
+
+    @Test
+    public void javaSerializedUntilTheCodecFormatIsWritten() {
+        formats.setWriteVersion(SessionDocumentFormats.LEGACY_VERSION);
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(new UsernamePasswordAuthenticationToken("user", null,
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+        assertThat(serializer.encode(context)).isInstanceOf(String.class);
+    }
+
+    @Test
+    public void storedInSession() {
+        CouchbaseSession session = new CouchbaseSession();
+        SecurityContextImpl context = new SecurityContextImpl();
+        context.setAuthentication(new UsernamePasswordAuthenticationToken("user", null,
+                AuthorityUtils.createAuthorityList("ROLE_USER")));
+        session.setAttribute("SPRING_SECURITY_CONTEXT", context);
+        assertThat(session.getAttribute("SPRING_SECURITY_CONTEXT")).isEqualTo(context);
+    }
+}
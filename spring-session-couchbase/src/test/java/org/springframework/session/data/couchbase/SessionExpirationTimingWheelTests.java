@@ -0,0 +1,98 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SessionExpirationTimingWheelTests {
+
+    private static final long START = 1000000L;
+
+    @Test
+    public void expiresOnDeadline() {
+        SessionExpirationTimingWheel wheel = new SessionExpirationTimingWheel(1000, START);
+        wheel.schedule("a", START + 5000, 1);
+        assertThat(wheel.advance(START + 4999)).isEmpty();
+        assertThat(ids(wheel.advance(START + 5000))).containsOnly("a");
+        assertThat(wheel.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void expiresAfterCascading() {
+        SessionExpirationTimingWheel wheel = new SessionExpirationTimingWheel(1000, START);
+        long deadline = START + 1800 * 1000;
+        wheel.schedule("a", deadline, 1);
+        wheel.schedule("b", START + 100000 * 1000L, 1);
+        assertThat(wheel.advance(deadline - 1000)).isEmpty();
+        assertThat(ids(wheel.advance(deadline))).containsOnly("a");
+        assertThat(wheel.advance(START + 100000 * 1000L - 1000)).isEmpty();
+        assertThat(ids(wheel.advance(START + 100000 * 1000L))).containsOnly("b");
+    }
+
+    @Test
+    public void pastDeadlineExpiresOnNextTick() {
+        SessionExpirationTimingWheel wheel = new SessionExpirationTimingWheel(1000, START);
+        wheel.schedule("a", START - 5000, 1);
+        assertThat(ids(wheel.advance(START + 1000))).containsOnly("a");
+    }
+
+    @Test
+    public void rescheduleReplacesDeadline() {
+        SessionExpirationTimingWheel wheel = new SessionExpirationTimingWheel(1000, START);
+        wheel.schedule("a", START + 5000, 1);
+        wheel.schedule("a", START + 10000, 2);
+        assertThat(wheel.size()).isEqualTo(1);
+        assertThat(wheel.advance(START + 5000)).isEmpty();
+        List<SessionExpirationTimingWheel.Entry> expired = wheel.advance(START + 10000);
+        assertThat(ids(expired)).containsOnly("a");
+        assertThat(expired.get(0).cas).isEqualTo(2);
+    }
+
+    @Test
+    public void cancel() {
+        SessionExpirationTimingWheel wheel = new SessionExpirationTimingWheel(1000, START);
+        wheel.schedule("a", START + 5000, 1);
+        assertThat(wheel.cancel("a")).isTrue();
+        assertThat(wheel.cancel("a")).isFalse();
+        assertThat(wheel.advance(START + 5000)).isEmpty();
+    }
+
+    @Test
+    public void retryIsSkippedWhenRescheduled() {
+        SessionExpirationTimingWheel wheel = new SessionExpirationTimingWheel(1000, START);
+        wheel.schedule("a", START + 1000, 1);
+        SessionExpirationTimingWheel.Entry expired = wheel.advance(START + 1000).get(0);
+        wheel.schedule("a", START + 60000, 2);
+        assertThat(wheel.retry(expired, START + 2000)).isFalse();
+        wheel.cancel("a");
+        assertThat(wheel.retry(expired, START + 2000)).isTrue();
+        SessionExpirationTimingWheel.Entry retried = wheel.advance(START + 2000).get(0);
+        assertThat(retried.attempts).isEqualTo(1);
+    }
+
+    private List<String> ids(List<SessionExpirationTimingWheel.Entry> entries) {
+        List<String> ids = new ArrayList<String>();
+        for (SessionExpirationTimingWheel.Entry entry : entries) {
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+}
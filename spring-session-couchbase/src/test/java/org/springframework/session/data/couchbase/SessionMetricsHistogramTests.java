@@ -0,0 +1,84 @@
+/*
+ * Copyright 2002-2015 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.session.data.couchbase;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SessionMetricsHistogramTests {
+
+    @Test
+    public void smallValuesAreExact() {
+        SessionMetricsHistogram histogram = new SessionMetricsHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getCount()).isEqualTo(50);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(25);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(50);
+        assertThat(histogram.getMax()).isEqualTo(50);
+    }
+
+    @Test
+    public void largeValuesHaveBoundedError() {
+        SessionMetricsHistogram histogram = new SessionMetricsHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertThat(histogram.getValueAtPercentile(99)).isGreaterThanOrEqualTo(99000).isLessThanOrEqualTo(99000 * 1032 / 1000);
+        assertThat(histogram.getValueAtPercentile(50)).isGreaterThanOrEqualTo(50000).isLessThanOrEqualTo(50000 * 1032 / 1000);
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (long value = 0; value < 100000; value++) {
+            int index = SessionMetricsHistogram.bucketIndex(value);
+            assertThat(SessionMetricsHistogram.highestEquivalentValue(index)).isGreaterThanOrEqualTo(value);
+            if (index > 0) {
+                assertThat(SessionMetricsHistogram.highestEquivalentValue(index - 1)).isLessThan(value);
+            }
+        }
+        assertThat(SessionMetricsHistogram.bucketIndex(Long.MAX_VALUE)).isLessThan(64 * 32);
+    }
+
+    @Test
+    public void reset() {
+        SessionMetricsHistogram histogram = new SessionMetricsHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertThat(histogram.getCount()).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0);
+    }
+
+    @Test
+    public void recentLoadLatencyForgetsOldWindows() {
+        CouchbaseSessionMetrics metrics = new CouchbaseSessionMetrics();
+        long now = System.currentTimeMillis();
+        long window = CouchbaseSessionMetrics.RECENT_WINDOW_MILLIS;
+        for (int i = 0; i < 10; i++) {
+            metrics.recordLoad(System.nanoTime() - 50000000L, true);
+        }
+        assertThat(metrics.getRecentLoadLatency(now).getCount()).isEqualTo(0);
+        assertThat(metrics.getRecentLoadLatency(now + window).getValueAtPercentile(50)).isGreaterThan(49000);
+
+        metrics.recordLoad(System.nanoTime() - 1000000L, true);
+        SessionMetricsHistogram recent = metrics.getRecentLoadLatency(now + 2 * window);
+        assertThat(recent.getCount()).isEqualTo(1);
+        assertThat(recent.getMax()).isLessThan(49000);
+        assertThat(metrics.getLoadLatency().getCount()).isEqualTo(11);
+    }
+}